@@ -16,14 +16,123 @@
 
 package com.beligum.blocks.ontologies.commons.config;
 
+import com.beligum.base.cache.Cache;
 import com.beligum.base.cache.CacheKey;
+import com.beligum.base.cache.EhCacheAdaptor;
+import com.beligum.base.server.R;
 
 /**
  * Created by bas on 07.10.14.
+ *
+ * Application cache keys that cache the most recent results to not bombard the geonames and wikidata servers.
+ * Every kind of cached value gets its own region, so a few large RDF models can't push out hundreds of small search results.
+ * The capacity of a region is configured in (estimated) bytes and translated to a number of entries
+ * using the estimated size of a single entry of that kind.
+ * The time to live and the stale grace window are configurable per region (see Settings), and so is the overflow to disk, but only for the regions
+ * that hold models: the others hold values that can't be serialized. The eviction policy isn't configurable (EhCacheAdaptor doesn't expose it),
+ * so every region evicts its least recently used entries first.
  */
 public enum CacheKeys implements CacheKey
 {
-    //Application cache key that caches the most recent results to not bombard the geonames server
-    GEONAMES_CACHED_RESULTS,
-    WIKIDATA_CACHED_RESULTS
+    //a list of suggestions; ~10 results of a few hundred bytes each
+    GEONAMES_CACHED_SEARCHES("geonamesSearches", 4 * 1024, 4 * 1024 * 1024, 60 * 60, 0, false),
+    //the resources and models are rendered in pages, so they're refreshed in the background instead of expiring (see RefreshAheadCache);
+    //that's why their TTL went from one hour to a day: it's no longer the time until the next miss, but the time until the next background refresh,
+    //and refreshing every rendered place every hour would eat the (hourly) Geonames quota, while place data hardly ever changes
+    GEONAMES_CACHED_RESOURCES("geonamesResources", 2 * 1024, 2 * 1024 * 1024, 24 * 60 * 60, 24 * 60 * 60, false),
+    //the statements about a single geoname (names in a few languages, coordinates, parents, ...)
+    GEONAMES_CACHED_MODELS("geonamesModels", 8 * 1024, 8 * 1024 * 1024, 24 * 60 * 60, 24 * 60 * 60, true),
+    WIKIDATA_CACHED_SEARCHES("wikidataSearches", 4 * 1024, 4 * 1024 * 1024, 60 * 60, 0, false),
+    WIKIDATA_CACHED_RESOURCES("wikidataResources", 1024, 2 * 1024 * 1024, 24 * 60 * 60, 24 * 60 * 60, false),
+    //the ids of the direct classes (P31) of an item; tiny, and they hardly ever change
+    WIKIDATA_CACHED_CLASSES("wikidataClasses", 128, 1024 * 1024, 7 * 24 * 60 * 60, 0, false),
+    //these can get really big (labels and sitelinks in all languages of eg. a country); this is the region that gains most from
+    //blocks.ontologies.commons.cache.wikidataModels.overflowToDisk, but that's off by default (for all regions), since it needs a disk store
+    WIKIDATA_CACHED_MODELS("wikidataModels", 64 * 1024, 32 * 1024 * 1024, 24 * 60 * 60, 24 * 60 * 60, true),
+    //remembers what doesn't exist remotely (empty searches, unknown ids, unresolvable titles), so repeated misses don't go remote again;
+    //these entries are tiny and short-lived, since the thing might exist a little later (and they shouldn't push out the real results)
+    NEGATIVE_RESULTS("negativeResults", 256, 1024 * 1024, 10 * 60, 0, false),
+
+    //the single 100-entry regions (of one hour) the endpoints used to share; this module doesn't use them anymore,
+    //but they're kept (with their old size) for the code outside of it that still does
+    @Deprecated
+    GEONAMES_CACHED_RESULTS("geonamesResults", 8 * 1024, 100 * 8 * 1024, 60 * 60, 0, false),
+    @Deprecated
+    WIKIDATA_CACHED_RESULTS("wikidataResults", 8 * 1024, 100 * 8 * 1024, 60 * 60, 0, false);
+
+    //-----VARIABLES-----
+    private String configName;
+    private long estimatedEntrySize;
+    private long defaultMaxBytes;
+    private int defaultTtl;
+    private int defaultStaleGrace;
+    //true if the values of this region can be serialized, so it can be configured to overflow to disk
+    private boolean diskTier;
+
+    //-----CONSTRUCTORS-----
+    CacheKeys(String configName, long estimatedEntrySize, long defaultMaxBytes, int defaultTtl, int defaultStaleGrace, boolean diskTier)
+    {
+        this.configName = configName;
+        this.estimatedEntrySize = estimatedEntrySize;
+        this.defaultMaxBytes = defaultMaxBytes;
+        this.defaultTtl = defaultTtl;
+        this.defaultStaleGrace = defaultStaleGrace;
+        this.diskTier = diskTier;
+    }
+
+    //-----PUBLIC METHODS-----
+    public String getConfigName()
+    {
+        return configName;
+    }
+    /**
+     * The (average) number of bytes we expect a single entry of this region to take on the heap
+     */
+    public long getEstimatedEntrySize()
+    {
+        return estimatedEntrySize;
+    }
+    public long getDefaultMaxBytes()
+    {
+        return defaultMaxBytes;
+    }
+    /**
+     * In seconds
+     */
+    public int getDefaultTtl()
+    {
+        return defaultTtl;
+    }
+    /**
+     * In seconds
+     */
+    public int getDefaultStaleGrace()
+    {
+        return defaultStaleGrace;
+    }
+    /**
+     * Whether this region can be configured to overflow to disk (its values can be serialized)
+     */
+    public boolean hasDiskTier()
+    {
+        return diskTier;
+    }
+    /**
+     * Returns the cache region of this key, registering it (with the configured capacity, time to live and disk overflow) the first time it's requested.
+     * Entries live for the configured time, both from creation time as from last accessed time, and the least recently used entries are evicted first.
+     * If the region has a stale grace window, the entries live that much longer, so they can be served while they're refreshed.
+     */
+    public Cache getCache()
+    {
+        synchronized (CacheKeys.class) {
+            if (!R.cacheManager().cacheExists(this.name())) {
+                Settings settings = Settings.instance();
+                int maxEntries = (int) Math.max(1, Math.min(Integer.MAX_VALUE, settings.getCacheMaxBytes(this) / this.estimatedEntrySize));
+                int ttl = settings.getCacheTtl(this) + settings.getCacheStaleGrace(this);
+                R.cacheManager().registerCache(new EhCacheAdaptor(this.name(), maxEntries, settings.getCacheOverflowToDisk(this), false, ttl, ttl));
+            }
+        }
+
+        return R.cacheManager().getCache(this.name());
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.config;
+
+import com.beligum.base.server.ifaces.ServerLifecycleListener;
+import com.beligum.blocks.ontologies.commons.utils.Deadline;
+import com.beligum.blocks.ontologies.commons.utils.HttpClientPool;
+import com.beligum.blocks.ontologies.commons.utils.PersistentModelStore;
+import com.beligum.blocks.ontologies.commons.vocabularies.geonames.GeonameQueryEndpoint;
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.server.spi.Container;
+
+/**
+ * Releases the resources this module holds on to (pooled connections, threads, mapped files) when the server stops,
+ * so nothing is left behind when the application is redeployed.
+ */
+public class ServerStartStopListener implements ServerLifecycleListener
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+
+    //-----CONSTRUCTORS-----
+
+    //-----PUBLIC METHODS-----
+    @Override
+    public void onServerStarted(Server server, Container container)
+    {
+    }
+    @Override
+    public void onServerStopped(Server server, Container container)
+    {
+        GeonameQueryEndpoint.shutdownAccountPool();
+        GeonameQueryEndpoint.shutdownRateLimiter();
+        PersistentModelStore.closeInstance();
+        HttpClientPool.shutdownInstance();
+        Deadline.shutdownScheduler();
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
@@ -18,6 +18,13 @@ package com.beligum.blocks.ontologies.commons.config;
 
 import com.beligum.base.server.R;
 import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.utils.RateLimiter;
+import com.beligum.blocks.ontologies.commons.utils.RemoteHost;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by bram on 12.06.17.
@@ -27,11 +34,74 @@ public class Settings
     //-----CONSTANTS-----
     private static final String KEY_PREFIX = "blocks.ontologies.commons";
     private static final String GEONAMES_USERNAME_KEY = KEY_PREFIX + ".geonames.username";
+    //comma separated list of usernames; the calls are spread over all of them
+    private static final String GEONAMES_USERNAMES_KEY = KEY_PREFIX + ".geonames.usernames";
     private static final String DEFAULT_GEONAMES_USERNAME = "demo";
+    private static final String GEONAMES_REQUESTS_PER_HOUR_KEY = KEY_PREFIX + ".geonames.requestsPerHour";
+    private static final String GEONAMES_BURST_SIZE_KEY = KEY_PREFIX + ".geonames.burstSize";
+    private static final String GEONAMES_MAX_WAIT_KEY_PREFIX = KEY_PREFIX + ".geonames.maxWait.";
+    //this is the hourly limit of a free Geonames account
+    private static final int DEFAULT_GEONAMES_REQUESTS_PER_HOUR = 2000;
+    private static final int DEFAULT_GEONAMES_BURST_SIZE = 50;
+    //in milliseconds
+    private static final long DEFAULT_GEONAMES_MAX_WAIT_INTERACTIVE = 3 * 1000;
+    private static final long DEFAULT_GEONAMES_MAX_WAIT_BACKGROUND = 5 * 60 * 1000;
+    private static final String GEONAMES_SEARCH_TIMEOUT_KEY = KEY_PREFIX + ".geonames.searchTimeout";
+    //in milliseconds
+    private static final long DEFAULT_GEONAMES_SEARCH_TIMEOUT = 10 * 1000;
+    private static final String GEONAMES_BULK_CONCURRENCY_KEY = KEY_PREFIX + ".geonames.bulkConcurrency";
+    private static final int DEFAULT_GEONAMES_BULK_CONCURRENCY = 4;
+    private static final String GEONAMES_GAZETTEER_DUMP_DIR_KEY = KEY_PREFIX + ".geonames.gazetteer.dumpDir";
+    private static final String GEONAMES_GAZETTEER_FILE_KEY = KEY_PREFIX + ".geonames.gazetteer.file";
+    private static final String GEONAMES_GAZETTEER_LANGUAGES_KEY = KEY_PREFIX + ".geonames.gazetteer.languages";
+    private static final String DEFAULT_GEONAMES_GAZETTEER_LANGUAGES = "en,nl,fr,de";
+    private static final String GEONAMES_GAZETTEER_FUZZY_MAX_DISTANCE_KEY = KEY_PREFIX + ".geonames.gazetteer.fuzzyMaxDistance";
+    private static final int DEFAULT_GEONAMES_GAZETTEER_FUZZY_MAX_DISTANCE = 2;
+
+    private static final String WIKIDATA_CLASS_HIERARCHY_FILE_KEY = KEY_PREFIX + ".wikidata.classHierarchy.file";
+    private static final String WIKIDATA_CLASS_HIERARCHY_MAX_AGE_KEY = KEY_PREFIX + ".wikidata.classHierarchy.maxAge";
+    //in seconds
+    private static final long DEFAULT_WIKIDATA_CLASS_HIERARCHY_MAX_AGE = 7 * 24 * 60 * 60;
+    private static final String MODEL_STORE_ENABLED_KEY = KEY_PREFIX + ".modelStore.enabled";
+    private static final String MODEL_STORE_FILE_KEY = KEY_PREFIX + ".modelStore.file";
+    private static final String MODEL_STORE_MAX_AGE_KEY = KEY_PREFIX + ".modelStore.maxAge";
+    //in seconds
+    private static final long DEFAULT_MODEL_STORE_MAX_AGE = 30 * 24 * 60 * 60;
+    private static final String CACHE_KEY_PREFIX = KEY_PREFIX + ".cache";
+    private static final String CACHE_MAX_BYTES_SUFFIX = ".maxBytes";
+    private static final String CACHE_TTL_SUFFIX = ".ttl";
+    private static final String CACHE_OVERFLOW_TO_DISK_SUFFIX = ".overflowToDisk";
+    private static final String CACHE_STALE_GRACE_SUFFIX = ".staleGrace";
+    private static final String CACHE_REFRESH_MAX_PENDING_KEY = CACHE_KEY_PREFIX + ".refresh.maxPending";
+    private static final int DEFAULT_CACHE_REFRESH_MAX_PENDING = 50;
+
+    private static final String HTTP_KEY_PREFIX = KEY_PREFIX + ".http";
+    private static final String HTTP_MAX_CONNECTIONS_SUFFIX = ".maxConnections";
+    private static final String HTTP_CONNECT_TIMEOUT_SUFFIX = ".connectTimeout";
+    private static final String HTTP_READ_TIMEOUT_SUFFIX = ".readTimeout";
+    private static final int DEFAULT_HTTP_MAX_CONNECTIONS = 20;
+    //in milliseconds
+    private static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 5 * 1000;
+    private static final int DEFAULT_HTTP_READ_TIMEOUT = 10 * 1000;
+    private static final String HTTP_CIRCUIT_BREAKER_FAILURE_RATE_SUFFIX = ".circuitBreaker.failureRate";
+    private static final String HTTP_CIRCUIT_BREAKER_SLOW_CALL_RATE_SUFFIX = ".circuitBreaker.slowCallRate";
+    private static final String HTTP_CIRCUIT_BREAKER_SLOW_CALL_DURATION_SUFFIX = ".circuitBreaker.slowCallDuration";
+    private static final String HTTP_CIRCUIT_BREAKER_OPEN_DURATION_SUFFIX = ".circuitBreaker.openDuration";
+    //in percent
+    private static final int DEFAULT_HTTP_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+    private static final int DEFAULT_HTTP_CIRCUIT_BREAKER_SLOW_CALL_RATE = 80;
+    //in milliseconds
+    private static final int DEFAULT_HTTP_CIRCUIT_BREAKER_SLOW_CALL_DURATION = 3 * 1000;
+    private static final int DEFAULT_HTTP_CIRCUIT_BREAKER_OPEN_DURATION = 30 * 1000;
+    private static final String HTTP_MAX_THREADS_KEY = HTTP_KEY_PREFIX + ".maxThreads";
+    private static final String HTTP_MAX_QUEUED_REQUESTS_KEY = HTTP_KEY_PREFIX + ".maxQueuedRequests";
+    private static final int DEFAULT_HTTP_MAX_THREADS = 32;
+    private static final int DEFAULT_HTTP_MAX_QUEUED_REQUESTS = 1000;
 
     //-----VARIABLES-----
     private static Settings instance;
     private String cachedGeonamesUsername;
+    private String[] cachedGeonamesUsernames;
 
     //-----CONSTRUCTORS-----
     private Settings()
@@ -59,6 +129,263 @@ public class Settings
 
         return this.cachedGeonamesUsername;
     }
+    /**
+     * All Geonames accounts we may use (the quota applies per account).
+     * Falls back to the single account of getGeonamesUsername() if no list of usernames is configured.
+     */
+    public String[] getGeonamesUsernames()
+    {
+        if (this.cachedGeonamesUsernames == null) {
+            List<String> usernames = new ArrayList<>();
+            String value = R.configuration().getString(GEONAMES_USERNAMES_KEY, null);
+            if (value != null) {
+                for (String username : value.split(",")) {
+                    if (!username.trim().isEmpty() && !usernames.contains(username.trim())) {
+                        usernames.add(username.trim());
+                    }
+                }
+            }
+
+            if (usernames.isEmpty()) {
+                usernames.add(this.getGeonamesUsername());
+            }
+
+            this.cachedGeonamesUsernames = usernames.toArray(new String[usernames.size()]);
+        }
+
+        return this.cachedGeonamesUsernames;
+    }
+    /**
+     * The number of calls we allow ourselves to make to Geonames per hour, per account (the limit of the free account is 2000)
+     */
+    public int getGeonamesRequestsPerHour()
+    {
+        return R.configuration().getInt(GEONAMES_REQUESTS_PER_HOUR_KEY, DEFAULT_GEONAMES_REQUESTS_PER_HOUR);
+    }
+    /**
+     * The number of Geonames calls (per account) we allow in a short burst, before falling back to the steady hourly rate
+     */
+    public int getGeonamesBurstSize()
+    {
+        return R.configuration().getInt(GEONAMES_BURST_SIZE_KEY, DEFAULT_GEONAMES_BURST_SIZE);
+    }
+    /**
+     * How long (in milliseconds) a Geonames call of the specified priority may wait for the rate limiter before it fails.
+     * Configured with blocks.ontologies.commons.geonames.maxWait.[interactive|background]
+     */
+    public long getGeonamesMaxWait(RateLimiter.Priority priority)
+    {
+        long defaultValue = priority == RateLimiter.Priority.INTERACTIVE ? DEFAULT_GEONAMES_MAX_WAIT_INTERACTIVE : DEFAULT_GEONAMES_MAX_WAIT_BACKGROUND;
+        return R.configuration().getLong(GEONAMES_MAX_WAIT_KEY_PREFIX + priority.name().toLowerCase(), defaultValue);
+    }
+    /**
+     * The deadline (in milliseconds) of a search, including all nested searches and remote calls it makes (eg. the fallbacks of a city search);
+     * when it passes, the caller gets what we have so far
+     */
+    public long getGeonamesSearchTimeout()
+    {
+        return R.configuration().getLong(GEONAMES_SEARCH_TIMEOUT_KEY, DEFAULT_GEONAMES_SEARCH_TIMEOUT);
+    }
+    /**
+     * The maximum number of Geonames calls a bulk lookup (eg. of all places referenced by the pages we're re-indexing) has in flight at the same time
+     */
+    public int getGeonamesBulkConcurrency()
+    {
+        return R.configuration().getInt(GEONAMES_BULK_CONCURRENCY_KEY, DEFAULT_GEONAMES_BULK_CONCURRENCY);
+    }
+    /**
+     * The directory with the Geonames dump files (see http://download.geonames.org/export/dump/) the local gazetteer is built from,
+     * or null if we don't have a local gazetteer (the default)
+     */
+    public String getGeonamesGazetteerDumpDir()
+    {
+        return R.configuration().getString(GEONAMES_GAZETTEER_DUMP_DIR_KEY, null);
+    }
+    /**
+     * The file of the index of the local gazetteer, or null if it's not configured (and we don't have a local gazetteer).
+     * Pick a location that's owned by the application, not a shared temp directory.
+     */
+    public String getGeonamesGazetteerFile()
+    {
+        return R.configuration().getString(GEONAMES_GAZETTEER_FILE_KEY, null);
+    }
+    /**
+     * The languages the local gazetteer knows the names of places in (comma separated list of ISO 639-1 codes)
+     */
+    public Set<String> getGeonamesGazetteerLanguages()
+    {
+        Set<String> retVal = new LinkedHashSet<>();
+
+        for (String language : R.configuration().getString(GEONAMES_GAZETTEER_LANGUAGES_KEY, DEFAULT_GEONAMES_GAZETTEER_LANGUAGES).split(",")) {
+            if (!language.trim().isEmpty()) {
+                retVal.add(language.trim().toLowerCase());
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * The maximum number of typos (inserted, deleted or replaced characters) the local gazetteer tolerates
+     * when it doesn't find any exact match; 0 turns fuzzy searching off
+     */
+    public int getGeonamesGazetteerFuzzyMaxDistance()
+    {
+        return R.configuration().getInt(GEONAMES_GAZETTEER_FUZZY_MAX_DISTANCE_KEY, DEFAULT_GEONAMES_GAZETTEER_FUZZY_MAX_DISTANCE);
+    }
+    /**
+     * The extract of the subclass (P279) statements of the Wikidata dump the local class hierarchy is built from (optionally gzipped),
+     * or null if the subclasses should be fetched from the SPARQL endpoint (the default)
+     */
+    public String getWikidataClassHierarchyFile()
+    {
+        return R.configuration().getString(WIKIDATA_CLASS_HIERARCHY_FILE_KEY, null);
+    }
+    /**
+     * The time (in seconds) the subclasses we fetched from the SPARQL endpoint can be used before we fetch them again
+     */
+    public long getWikidataClassHierarchyMaxAge()
+    {
+        return R.configuration().getLong(WIKIDATA_CLASS_HIERARCHY_MAX_AGE_KEY, DEFAULT_WIKIDATA_CLASS_HIERARCHY_MAX_AGE);
+    }
+    /**
+     * Whether the RDF models we fetch from external endpoints should be kept in a persistent store (so they survive restarts).
+     * The store is opt-in: it's only enabled when its file is configured (and it can still be switched off with this setting).
+     */
+    public boolean getModelStoreEnabled()
+    {
+        return this.getModelStoreFile() != null && R.configuration().getBoolean(MODEL_STORE_ENABLED_KEY, true);
+    }
+    /**
+     * The file of the persistent store of external RDF models, or null if it's not configured (and the store is disabled).
+     * Pick a location that's owned by the application (and survives reboots), not a shared temp directory.
+     */
+    public String getModelStoreFile()
+    {
+        return R.configuration().getString(MODEL_STORE_FILE_KEY, null);
+    }
+    /**
+     * The time (in seconds) a model in the persistent store can be used before we fetch it again
+     */
+    public long getModelStoreMaxAge()
+    {
+        return R.configuration().getLong(MODEL_STORE_MAX_AGE_KEY, DEFAULT_MODEL_STORE_MAX_AGE);
+    }
+    /**
+     * The (estimated) number of bytes the entries of the specified cache region may take on the heap.
+     * Configured with blocks.ontologies.commons.cache.[region].maxBytes
+     */
+    public long getCacheMaxBytes(CacheKeys region)
+    {
+        return R.configuration().getLong(CACHE_KEY_PREFIX + "." + region.getConfigName() + CACHE_MAX_BYTES_SUFFIX, region.getDefaultMaxBytes());
+    }
+    /**
+     * The time (in seconds) an entry of the specified cache region lives; configured with blocks.ontologies.commons.cache.[region].ttl
+     */
+    public int getCacheTtl(CacheKeys region)
+    {
+        return R.configuration().getInt(CACHE_KEY_PREFIX + "." + region.getConfigName() + CACHE_TTL_SUFFIX, region.getDefaultTtl());
+    }
+    /**
+     * Whether the entries of the specified cache region that don't fit in memory anymore should be moved to disk instead of being evicted;
+     * configured with blocks.ontologies.commons.cache.[region].overflowToDisk (off by default). This is only read for the regions that have a disk tier
+     * (the ones that hold models), since the values of the others can't be serialized.
+     */
+    public boolean getCacheOverflowToDisk(CacheKeys region)
+    {
+        return region.hasDiskTier() && R.configuration().getBoolean(CACHE_KEY_PREFIX + "." + region.getConfigName() + CACHE_OVERFLOW_TO_DISK_SUFFIX, false);
+    }
+    /**
+     * The time (in seconds) an expired entry of the specified cache region is still served (stale) while it's being refreshed in the background;
+     * zero means entries aren't refreshed ahead and disappear when they expire. Configured with blocks.ontologies.commons.cache.[region].staleGrace
+     */
+    public int getCacheStaleGrace(CacheKeys region)
+    {
+        return R.configuration().getInt(CACHE_KEY_PREFIX + "." + region.getConfigName() + CACHE_STALE_GRACE_SUFFIX, region.getDefaultStaleGrace());
+    }
+    /**
+     * The maximum number of background refreshes of cache entries that can be running at the same time;
+     * when reached, entries are served stale a little longer. Configured with blocks.ontologies.commons.cache.refresh.maxPending
+     */
+    public int getCacheRefreshMaxPending()
+    {
+        return R.configuration().getInt(CACHE_REFRESH_MAX_PENDING_KEY, DEFAULT_CACHE_REFRESH_MAX_PENDING);
+    }
+    /**
+     * The maximum number of (keep-alive) connections we keep open to the specified host.
+     * Configured with blocks.ontologies.commons.http.[host].maxConnections, falling back to blocks.ontologies.commons.http.maxConnections
+     */
+    public int getHttpMaxConnections(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_MAX_CONNECTIONS_SUFFIX, DEFAULT_HTTP_MAX_CONNECTIONS);
+    }
+    /**
+     * The connect timeout (in milliseconds) for the specified host; falls back to blocks.ontologies.commons.http.connectTimeout
+     */
+    public int getHttpConnectTimeout(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_CONNECT_TIMEOUT_SUFFIX, DEFAULT_HTTP_CONNECT_TIMEOUT);
+    }
+    /**
+     * The read (socket) timeout (in milliseconds) for the specified host; falls back to blocks.ontologies.commons.http.readTimeout
+     */
+    public int getHttpReadTimeout(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_READ_TIMEOUT_SUFFIX, DEFAULT_HTTP_READ_TIMEOUT);
+    }
+    /**
+     * The percentage of recent calls to the specified host that may fail before we stop calling it for a while.
+     * Configured with blocks.ontologies.commons.http.[host].circuitBreaker.failureRate, falling back to blocks.ontologies.commons.http.circuitBreaker.failureRate
+     */
+    public int getHttpCircuitBreakerFailureRate(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_CIRCUIT_BREAKER_FAILURE_RATE_SUFFIX, DEFAULT_HTTP_CIRCUIT_BREAKER_FAILURE_RATE);
+    }
+    /**
+     * The percentage of recent calls to the specified host that may be slow before we stop calling it for a while
+     */
+    public int getHttpCircuitBreakerSlowCallRate(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_CIRCUIT_BREAKER_SLOW_CALL_RATE_SUFFIX, DEFAULT_HTTP_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+    }
+    /**
+     * The time (in milliseconds) after which a call to the specified host is considered to be slow
+     */
+    public int getHttpCircuitBreakerSlowCallDuration(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_CIRCUIT_BREAKER_SLOW_CALL_DURATION_SUFFIX, DEFAULT_HTTP_CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+    }
+    /**
+     * The time (in milliseconds) we stop calling the specified host once its circuit breaker opened
+     */
+    public int getHttpCircuitBreakerOpenDuration(RemoteHost host)
+    {
+        return this.getHttpSetting(host, HTTP_CIRCUIT_BREAKER_OPEN_DURATION_SUFFIX, DEFAULT_HTTP_CIRCUIT_BREAKER_OPEN_DURATION);
+    }
+
+    /**
+     * The number of threads that execute the asynchronous outbound calls (see the *Async() methods of the endpoints)
+     */
+    public int getHttpMaxThreads()
+    {
+        return R.configuration().getInt(HTTP_MAX_THREADS_KEY, DEFAULT_HTTP_MAX_THREADS);
+    }
+    /**
+     * The number of asynchronous outbound calls that can wait for a free thread before new ones are rejected
+     */
+    public int getHttpMaxQueuedRequests()
+    {
+        return R.configuration().getInt(HTTP_MAX_QUEUED_REQUESTS_KEY, DEFAULT_HTTP_MAX_QUEUED_REQUESTS);
+    }
 
     //-----PRIVATE METHODS-----
+    private int getHttpSetting(RemoteHost host, String suffix, int defaultValue)
+    {
+        int retVal = R.configuration().getInt(HTTP_KEY_PREFIX + suffix, defaultValue);
+
+        if (host.getConfigName() != null) {
+            retVal = R.configuration().getInt(HTTP_KEY_PREFIX + "." + host.getConfigName() + suffix, retVal);
+        }
+
+        return retVal;
+    }
 }
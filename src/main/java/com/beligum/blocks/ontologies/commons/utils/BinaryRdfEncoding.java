@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.eclipse.rdf4j.model.*;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact binary encoding for (small) RDF models, eg. the statements about a single external resource.
+ * All distinct strings (IRIs, labels, datatypes, language tags) are written once, in a string table,
+ * and the statements only refer to them by index, so the subject (that's the same for all statements) and the predicates cost next to nothing.
+ * All numbers are written as variable-length integers.
+ *
+ * Layout: [#strings] ([#bytes] [UTF-8 bytes])* [#statements] ([subject] [predicate index] [object])*
+ * where every term starts with a kind byte, followed by the index(es) of its string(s).
+ */
+public final class BinaryRdfEncoding
+{
+    //-----CONSTANTS-----
+    private static final byte IRI_TERM = 1;
+    private static final byte BNODE_TERM = 2;
+    private static final byte TYPED_LITERAL_TERM = 3;
+    private static final byte LANGUAGE_LITERAL_TERM = 4;
+
+    //-----VARIABLES-----
+
+    //-----CONSTRUCTORS-----
+    private BinaryRdfEncoding()
+    {
+    }
+
+    //-----PUBLIC METHODS-----
+    public static byte[] encode(Model model)
+    {
+        Map<String, Integer> stringIndex = new LinkedHashMap<>();
+        ByteArrayOutputStream statements = new ByteArrayOutputStream();
+
+        writeVarInt(statements, model.size());
+        for (Statement statement : model) {
+            writeTerm(statements, stringIndex, statement.getSubject());
+            writeVarInt(statements, indexOf(stringIndex, statement.getPredicate().stringValue()));
+            writeTerm(statements, stringIndex, statement.getObject());
+        }
+
+        ByteArrayOutputStream retVal = new ByteArrayOutputStream(statements.size() + stringIndex.size() * 32);
+        writeVarInt(retVal, stringIndex.size());
+        for (String string : stringIndex.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(retVal, bytes.length);
+            retVal.write(bytes, 0, bytes.length);
+        }
+        byte[] statementBytes = statements.toByteArray();
+        retVal.write(statementBytes, 0, statementBytes.length);
+
+        return retVal.toByteArray();
+    }
+    /**
+     * Decodes the model that starts at the current position of the buffer; the position is moved to the end of the encoded model.
+     */
+    public static Model decode(ByteBuffer buffer) throws IOException
+    {
+        try {
+            ValueFactory factory = SimpleValueFactory.getInstance();
+
+            String[] strings = new String[readVarInt(buffer)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readVarInt(buffer)];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            int size = readVarInt(buffer);
+            Model retVal = new LinkedHashModel(size);
+            for (int i = 0; i < size; i++) {
+                Value subject = readTerm(buffer, strings, factory);
+                IRI predicate = factory.createIRI(strings[readVarInt(buffer)]);
+                Value object = readTerm(buffer, strings, factory);
+                if (!(subject instanceof Resource)) {
+                    throw new IOException("Encountered a literal subject while decoding binary RDF model, this shouldn't happen");
+                }
+                retVal.add(factory.createStatement((Resource) subject, predicate, object));
+            }
+
+            return retVal;
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt binary RDF model", e);
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private static void writeTerm(ByteArrayOutputStream out, Map<String, Integer> stringIndex, Value value)
+    {
+        if (value instanceof IRI) {
+            out.write(IRI_TERM);
+            writeVarInt(out, indexOf(stringIndex, value.stringValue()));
+        }
+        else if (value instanceof BNode) {
+            out.write(BNODE_TERM);
+            writeVarInt(out, indexOf(stringIndex, ((BNode) value).getID()));
+        }
+        else if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            Optional<String> language = literal.getLanguage();
+            if (language.isPresent()) {
+                out.write(LANGUAGE_LITERAL_TERM);
+                writeVarInt(out, indexOf(stringIndex, literal.getLabel()));
+                writeVarInt(out, indexOf(stringIndex, language.get()));
+            }
+            else {
+                out.write(TYPED_LITERAL_TERM);
+                writeVarInt(out, indexOf(stringIndex, literal.getLabel()));
+                writeVarInt(out, indexOf(stringIndex, literal.getDatatype().stringValue()));
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported RDF value type, can't encode it; " + value);
+        }
+    }
+    private static Value readTerm(ByteBuffer buffer, String[] strings, ValueFactory factory) throws IOException
+    {
+        Value retVal;
+
+        byte kind = buffer.get();
+        switch (kind) {
+            case IRI_TERM:
+                retVal = factory.createIRI(strings[readVarInt(buffer)]);
+                break;
+            case BNODE_TERM:
+                retVal = factory.createBNode(strings[readVarInt(buffer)]);
+                break;
+            case TYPED_LITERAL_TERM:
+                String label = strings[readVarInt(buffer)];
+                retVal = factory.createLiteral(label, factory.createIRI(strings[readVarInt(buffer)]));
+                break;
+            case LANGUAGE_LITERAL_TERM:
+                String langLabel = strings[readVarInt(buffer)];
+                retVal = factory.createLiteral(langLabel, strings[readVarInt(buffer)]);
+                break;
+            default:
+                throw new IOException("Encountered unknown term kind while decoding binary RDF model; " + kind);
+        }
+
+        return retVal;
+    }
+    private static int indexOf(Map<String, Integer> stringIndex, String string)
+    {
+        Integer retVal = stringIndex.get(string);
+        if (retVal == null) {
+            retVal = stringIndex.size();
+            stringIndex.put(string, retVal);
+        }
+        return retVal;
+    }
+    private static void writeVarInt(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    private static int readVarInt(ByteBuffer buffer) throws IOException
+    {
+        int retVal = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            retVal |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return retVal;
+            }
+        }
+
+        throw new IOException("Malformed variable-length integer while decoding binary RDF model");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.blocks.endpoints.ifaces.AutocompleteSuggestion;
+
+import java.io.Serializable;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A cached autocomplete result, together with the knowledge if it's complete: if the remote endpoint returned less results than we asked for,
+ * we know these are all the resources matching the query. A complete result for a prefix also contains all results for every longer prefix,
+ * so we can answer those by filtering locally, instead of going remote for every keystroke.
+ */
+public class CachedSuggestions implements Serializable
+{
+    //-----CONSTANTS-----
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    //-----VARIABLES-----
+    private final ArrayList<AutocompleteSuggestion> suggestions;
+    private final boolean complete;
+
+    //-----CONSTRUCTORS-----
+    public CachedSuggestions(Collection<AutocompleteSuggestion> suggestions, boolean complete)
+    {
+        this.suggestions = new ArrayList<>(suggestions);
+        this.complete = complete;
+    }
+
+    //-----PUBLIC METHODS-----
+    public Collection<AutocompleteSuggestion> getSuggestions()
+    {
+        return suggestions;
+    }
+    public boolean isComplete()
+    {
+        return complete;
+    }
+    /**
+     * Returns the (first) maxResults suggestions if this result can answer a query for that many results
+     * (because we have at least that many, or because we have all there are), or null if we need to go remote.
+     */
+    public Collection<AutocompleteSuggestion> answer(int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
+
+        if (this.complete || this.suggestions.size() >= maxResults) {
+            retVal = this.limit(this.suggestions, maxResults);
+        }
+
+        return retVal;
+    }
+    /**
+     * Answers a query for the longer prefix by filtering these (complete) suggestions for the shorter cachedPrefix on their title,
+     * or returns null if we can't prove the result would be the same as the one of the remote endpoint.
+     * Note that the remote endpoints may also match on other fields (eg. alternate names or aliases); if one of the cached titles
+     * doesn't start with the cached prefix, that happened and we can't tell what the longer prefix would match, so we bail out.
+     */
+    public Collection<AutocompleteSuggestion> deriveForPrefix(String cachedPrefix, String prefix, int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
+
+        if (this.complete) {
+            String normalizedCachedPrefix = normalize(cachedPrefix);
+            String normalizedPrefix = normalize(prefix);
+
+            if (normalizedPrefix.startsWith(normalizedCachedPrefix)) {
+                Collection<AutocompleteSuggestion> filtered = new ArrayList<>();
+                boolean provable = true;
+                for (AutocompleteSuggestion suggestion : this.suggestions) {
+                    String title = normalize(suggestion.getTitle());
+                    if (!title.startsWith(normalizedCachedPrefix)) {
+                        provable = false;
+                        break;
+                    }
+                    else if (title.startsWith(normalizedPrefix)) {
+                        filtered.add(suggestion);
+                    }
+                }
+
+                if (provable) {
+                    retVal = this.limit(filtered, maxResults);
+                }
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Case- and accent-insensitive form of the value, the way the remote endpoints compare prefixes
+     */
+    public static String normalize(String value)
+    {
+        String retVal = "";
+
+        if (value != null) {
+            retVal = COMBINING_MARKS.matcher(Normalizer.normalize(value.trim(), Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        }
+
+        return retVal;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private Collection<AutocompleteSuggestion> limit(Collection<AutocompleteSuggestion> suggestions, int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = suggestions;
+
+        if (suggestions.size() > maxResults) {
+            retVal = new ArrayList<>(maxResults);
+            for (AutocompleteSuggestion suggestion : suggestions) {
+                if (retVal.size() >= maxResults) {
+                    break;
+                }
+                retVal.add(suggestion);
+            }
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+
+import java.time.Clock;
+
+/**
+ * Protects us against an external service that's down (or very slow): instead of letting every call wait for its timeout,
+ * we stop sending calls for a while once too many of the recent calls failed or were too slow.
+ *
+ * The breaker is CLOSED when everything is fine; it keeps track of the outcome of the last 'windowSize' calls
+ * and trips to OPEN when (after at least 'minimumCalls' calls) the failure rate or the slow call rate exceeds its threshold.
+ * While OPEN, all calls are refused immediately. After 'openDurationMillis', it becomes HALF_OPEN and lets a few trial calls through:
+ * if they all succeed, it's CLOSED again, if one of them fails (or is slow), it's OPEN again.
+ */
+public class CircuitBreaker
+{
+    //-----CONSTANTS-----
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    //-----VARIABLES-----
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationMillis;
+    private final long openDurationMillis;
+    private final int halfOpenCalls;
+    private final Clock clock;
+    //ring buffers with the outcome of the last calls
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int position;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private State state;
+    private long openUntil;
+    private int halfOpenPermitted;
+    private int halfOpenSucceeded;
+
+    //-----CONSTRUCTORS-----
+    /**
+     * @param failureRateThreshold  percentage of failed calls that trips the breaker
+     * @param slowCallRateThreshold percentage of slow calls (taking longer than slowCallDurationMillis) that trips the breaker
+     */
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold, long slowCallDurationMillis, long openDurationMillis,
+                          int halfOpenCalls)
+    {
+        this(name, windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold, slowCallDurationMillis, openDurationMillis, halfOpenCalls, Clock.systemUTC());
+    }
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold, long slowCallDurationMillis, long openDurationMillis,
+                          int halfOpenCalls, Clock clock)
+    {
+        this.name = name;
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationMillis = slowCallDurationMillis;
+        this.openDurationMillis = openDurationMillis;
+        this.halfOpenCalls = halfOpenCalls;
+        this.clock = clock;
+        this.failed = new boolean[windowSize];
+        this.slow = new boolean[windowSize];
+        this.state = State.CLOSED;
+    }
+
+    //-----PUBLIC METHODS-----
+    public String getName()
+    {
+        return name;
+    }
+    public synchronized State getState()
+    {
+        return state;
+    }
+    /**
+     * Returns true if a call would be allowed right now, without actually reserving a permit (use this to bail out early)
+     */
+    public synchronized boolean isCallPermitted()
+    {
+        boolean retVal;
+
+        switch (this.state) {
+            case OPEN:
+                retVal = this.clock.millis() >= this.openUntil;
+                break;
+            case HALF_OPEN:
+                retVal = this.halfOpenPermitted < this.halfOpenCalls;
+                break;
+            default:
+                retVal = true;
+                break;
+        }
+
+        return retVal;
+    }
+    /**
+     * Call this right before executing a call; if it returns false, the call must not be executed.
+     * If it returns true, the outcome of the call must be reported with onResult().
+     */
+    public synchronized boolean tryAcquirePermission()
+    {
+        if (this.state == State.OPEN && this.clock.millis() >= this.openUntil) {
+            this.state = State.HALF_OPEN;
+            this.halfOpenPermitted = 0;
+            this.halfOpenSucceeded = 0;
+        }
+
+        boolean retVal = this.isCallPermitted();
+        if (retVal && this.state == State.HALF_OPEN) {
+            this.halfOpenPermitted++;
+        }
+
+        return retVal;
+    }
+    /**
+     * Reports the outcome of a call that was permitted by tryAcquirePermission()
+     */
+    public synchronized void onResult(boolean success, long durationMillis)
+    {
+        boolean isSlow = durationMillis >= this.slowCallDurationMillis;
+
+        switch (this.state) {
+            case HALF_OPEN:
+                if (!success || isSlow) {
+                    this.open();
+                }
+                else if (++this.halfOpenSucceeded >= this.halfOpenCalls) {
+                    this.close();
+                }
+                break;
+            case CLOSED:
+                this.record(!success, isSlow);
+                if (this.recorded >= this.minimumCalls &&
+                    (this.failures * 100 >= this.failureRateThreshold * this.recorded || this.slowCalls * 100 >= this.slowCallRateThreshold * this.recorded)) {
+                    this.open();
+                }
+                break;
+            default:
+                //calls that were started before we opened; nothing to learn from them anymore
+                break;
+        }
+    }
+    @Override
+    public synchronized String toString()
+    {
+        return "CircuitBreaker{" +
+               "name='" + name + '\'' +
+               ", state=" + state +
+               ", failures=" + failures +
+               ", slowCalls=" + slowCalls +
+               ", recorded=" + recorded +
+               '}';
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private void record(boolean isFailure, boolean isSlow)
+    {
+        if (this.recorded == this.windowSize) {
+            //overwrite the oldest outcome
+            this.failures -= this.failed[this.position] ? 1 : 0;
+            this.slowCalls -= this.slow[this.position] ? 1 : 0;
+        }
+        else {
+            this.recorded++;
+        }
+
+        this.failed[this.position] = isFailure;
+        this.slow[this.position] = isSlow;
+        this.failures += isFailure ? 1 : 0;
+        this.slowCalls += isSlow ? 1 : 0;
+        this.position = (this.position + 1) % this.windowSize;
+    }
+    private void open()
+    {
+        if (this.state != State.OPEN) {
+            Logger.warn("Circuit breaker '" + this.name + "' opened, refusing all calls for the next " + this.openDurationMillis + "ms; " + this);
+        }
+
+        this.state = State.OPEN;
+        this.openUntil = this.clock.millis() + this.openDurationMillis;
+    }
+    private void close()
+    {
+        Logger.info("Circuit breaker '" + this.name + "' closed again");
+
+        this.state = State.CLOSED;
+        this.position = 0;
+        this.recorded = 0;
+        this.failures = 0;
+        this.slowCalls = 0;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown (without even trying) when a call is made to an external service while its circuit breaker is open.
+ */
+public class CircuitOpenException extends IOException
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+    private RemoteHost host;
+
+    //-----CONSTRUCTORS-----
+    public CircuitOpenException(RemoteHost host)
+    {
+        super("Not calling " + host + " because it failed too often recently; the circuit breaker is open");
+
+        this.host = host;
+    }
+
+    //-----PUBLIC METHODS-----
+    public RemoteHost getHost()
+    {
+        return host;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
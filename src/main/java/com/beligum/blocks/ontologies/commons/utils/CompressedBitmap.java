@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of (non-negative) ints that stays small, even when its values are spread over a large range (eg. the numeric part of Wikidata ids).
+ * Like a Roaring bitmap, the values are split in chunks of 2^16 on their high bits and every chunk stores the low bits of its values
+ * as a sorted array if it's sparse, or as a plain bitmap if it's dense. A lookup is an array access, followed by a bit test or a short binary search.
+ */
+public class CompressedBitmap
+{
+    //-----CONSTANTS-----
+    public static final CompressedBitmap EMPTY = new CompressedBitmap(new Object[0], 0);
+    //above this number of values, the bitmap of a chunk (8KB) is smaller than the sorted array of its low bits
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    //-----VARIABLES-----
+    //indexed on the high 16 bits of the values; null for the chunks without values, a char[] for the sparse ones and a long[] for the dense ones
+    private final Object[] chunks;
+    private final int size;
+
+    //-----CONSTRUCTORS-----
+    private CompressedBitmap(Object[] chunks, int size)
+    {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Builds the bitmap of the values (in any order, duplicates are ignored)
+     */
+    public static CompressedBitmap of(int[] values)
+    {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        if (sorted.length > 0 && sorted[0] < 0) {
+            throw new IllegalArgumentException("Can't store negative values in a compressed bitmap; " + sorted[0]);
+        }
+
+        Object[] chunks = new Object[sorted.length == 0 ? 0 : (sorted[sorted.length - 1] >>> 16) + 1];
+        int size = 0;
+        int start = 0;
+        while (start < sorted.length) {
+            int high = sorted[start] >>> 16;
+            int end = start;
+            while (end < sorted.length && (sorted[end] >>> 16) == high) {
+                end++;
+            }
+
+            char[] lows = new char[end - start];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                if (i == start || sorted[i] != sorted[i - 1]) {
+                    lows[count++] = (char) sorted[i];
+                }
+            }
+
+            if (count > MAX_ARRAY_SIZE) {
+                long[] bitmap = new long[BITMAP_WORDS];
+                for (int i = 0; i < count; i++) {
+                    bitmap[lows[i] >>> 6] |= 1L << lows[i];
+                }
+                chunks[high] = bitmap;
+            }
+            else {
+                chunks[high] = Arrays.copyOf(lows, count);
+            }
+
+            size += count;
+            start = end;
+        }
+
+        return new CompressedBitmap(chunks, size);
+    }
+
+    //-----PUBLIC METHODS-----
+    public boolean contains(int value)
+    {
+        boolean retVal = false;
+
+        int high = value >>> 16;
+        if (value >= 0 && high < this.chunks.length) {
+            Object chunk = this.chunks[high];
+            if (chunk instanceof long[]) {
+                retVal = (((long[]) chunk)[(value & 0xFFFF) >>> 6] & (1L << value)) != 0;
+            }
+            else if (chunk != null) {
+                retVal = Arrays.binarySearch((char[]) chunk, (char) value) >= 0;
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns true if at least one of the values is in this bitmap
+     */
+    public boolean containsAny(int[] values)
+    {
+        boolean retVal = false;
+
+        for (int i = 0; !retVal && i < values.length; i++) {
+            retVal = this.contains(values[i]);
+        }
+
+        return retVal;
+    }
+    /**
+     * The number of (distinct) values in this bitmap
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.util.concurrent.*;
+
+/**
+ * The moment a request (eg. a search and all the nested calls it makes) needs to be answered.
+ * Pass the same deadline to everything that works on the same request, so nested calls know how much time is left:
+ * calls that start after the deadline are skipped, waits are shortened to the remaining time,
+ * and bound() makes sure the caller gets its (partial) answer in time, even if a remote call is still on its way.
+ */
+public final class Deadline
+{
+    //-----CONSTANTS-----
+    //a deadline that never passes, eg. for background calls
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    //-----VARIABLES-----
+    //created on first use and stopped when the server stops (see shutdownScheduler())
+    private static ScheduledExecutorService scheduler;
+    private final long expiresAt;
+
+    //-----CONSTRUCTORS-----
+    private Deadline(long expiresAt)
+    {
+        this.expiresAt = expiresAt;
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Returns a deadline that passes the specified number of milliseconds from now
+     */
+    public static Deadline after(long millis)
+    {
+        long now = System.currentTimeMillis();
+        return new Deadline(millis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(millis, 0));
+    }
+    /**
+     * Stops the thread that executes the scheduled tasks (the ones that didn't run yet never will); a new one is started when needed.
+     * This is called when the server (and this module) stops, see ServerStartStopListener.
+     */
+    public static synchronized void shutdownScheduler()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Returns the number of milliseconds left (0 if the deadline passed, Long.MAX_VALUE if there is none)
+     */
+    public long remaining()
+    {
+        return this.expiresAt == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(this.expiresAt - System.currentTimeMillis(), 0);
+    }
+    public boolean isExpired()
+    {
+        return this.remaining() == 0;
+    }
+    /**
+     * Returns the specified duration (in milliseconds), shortened to the remaining time if needed
+     */
+    public long limit(long millis)
+    {
+        return Math.min(millis, this.remaining());
+    }
+    /**
+     * Executes the task when the deadline passes; returns null (and never executes the task) if there's no deadline
+     */
+    public ScheduledFuture<?> schedule(Runnable task)
+    {
+        return this.expiresAt == Long.MAX_VALUE ? null : getScheduler().schedule(task, this.remaining(), TimeUnit.MILLISECONDS);
+    }
+    /**
+     * Returns a future that completes like the supplied one, or fails with a TimeoutException if the deadline passes first.
+     * Note that the supplied future isn't affected, so whatever depends on it (eg. caching its result) still happens when it completes.
+     */
+    public <T> CompletableFuture<T> bound(CompletableFuture<T> future)
+    {
+        CompletableFuture<T> retVal = future;
+
+        if (!future.isDone() && this.expiresAt != Long.MAX_VALUE) {
+            CompletableFuture<T> bounded = new CompletableFuture<>();
+            ScheduledFuture<?> timer = this.schedule(() -> bounded.completeExceptionally(new TimeoutException("Deadline passed before the call completed")));
+            future.whenComplete((value, error) -> {
+                timer.cancel(false);
+                if (error != null) {
+                    bounded.completeExceptionally(Futures.unwrap(error));
+                }
+                else {
+                    bounded.complete(value);
+                }
+            });
+            retVal = bounded;
+        }
+
+        return retVal;
+    }
+    @Override
+    public String toString()
+    {
+        return this.expiresAt == Long.MAX_VALUE ? "no deadline" : "deadline in " + this.remaining() + "ms";
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private static synchronized ScheduledExecutorService getScheduler()
+    {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ontologies-commons-deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return scheduler;
+    }
+}
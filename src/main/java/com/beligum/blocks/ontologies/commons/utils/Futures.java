@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Some helpers to bridge the asynchronous (CompletableFuture) and synchronous (IOException) worlds of our endpoints.
+ */
+public final class Futures
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+
+    //-----CONSTRUCTORS-----
+    private Futures()
+    {
+    }
+
+    //-----PUBLIC METHODS-----
+    public static <T> CompletableFuture<T> failed(Throwable e)
+    {
+        CompletableFuture<T> retVal = new CompletableFuture<>();
+        retVal.completeExceptionally(e);
+        return retVal;
+    }
+    /**
+     * Blocks until the future completes and returns its value, unwrapping the exception it completed with (if any).
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an asynchronous call to complete", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            else {
+                throw new IOException("Error while executing an asynchronous call", cause);
+            }
+        }
+    }
+    /**
+     * Returns a future that completes with the value of the fallback if the supplied future fails with an exception of the specified type;
+     * all other outcomes are passed on unchanged.
+     */
+    public static <T> CompletableFuture<T> recover(CompletableFuture<T> future, Class<? extends Throwable> type, Supplier<? extends T> fallback)
+    {
+        return future.handle((value, error) -> {
+            T retVal = value;
+
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                if (type.isInstance(cause)) {
+                    retVal = fallback.get();
+                }
+                else {
+                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(cause);
+                }
+            }
+
+            return retVal;
+        });
+    }
+    /**
+     * Starts the (asynchronous) call for every key, but never has more than maxConcurrent of them in flight at the same time:
+     * the next one is started as soon as one completes. The outcome of every call is passed to onResult or onError as soon as it's there
+     * (on the thread that completed it) and the returned future completes when all calls did.
+     */
+    public static <K, V> CompletableFuture<Void> forEach(Collection<? extends K> keys, int maxConcurrent, Function<? super K, ? extends CompletableFuture<? extends V>> call,
+                                                         BiConsumer<? super K, ? super V> onResult, BiConsumer<? super K, ? super Throwable> onError)
+    {
+        CompletableFuture<Void> retVal = new CompletableFuture<>();
+
+        Iterator<? extends K> iterator = keys.iterator();
+        int workers = Math.max(1, Math.min(maxConcurrent, keys.size()));
+        AtomicInteger activeWorkers = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            forEachNext(iterator, call, onResult, onError, activeWorkers, retVal);
+        }
+
+        return retVal;
+    }
+    /**
+     * Strips the wrapper exceptions the CompletableFuture API adds around the original exception.
+     */
+    public static Throwable unwrap(Throwable e)
+    {
+        Throwable retVal = e;
+
+        while ((retVal instanceof CompletionException || retVal instanceof ExecutionException) && retVal.getCause() != null) {
+            retVal = retVal.getCause();
+        }
+
+        return retVal;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * One 'worker' of forEach(): keeps starting calls until there are no keys left. Calls that complete right away are handled in this loop
+     * (instead of recursively, from their callback) so a long run of cached or failed calls doesn't overflow the stack.
+     */
+    private static <K, V> void forEachNext(Iterator<? extends K> keys, Function<? super K, ? extends CompletableFuture<? extends V>> call,
+                                           BiConsumer<? super K, ? super V> onResult, BiConsumer<? super K, ? super Throwable> onError,
+                                           AtomicInteger activeWorkers, CompletableFuture<Void> done)
+    {
+        boolean waiting = false;
+
+        while (!waiting) {
+            K key = null;
+            boolean hasNext;
+            synchronized (keys) {
+                hasNext = keys.hasNext();
+                if (hasNext) {
+                    key = keys.next();
+                }
+            }
+
+            if (!hasNext) {
+                if (activeWorkers.decrementAndGet() == 0) {
+                    done.complete(null);
+                }
+                waiting = true;
+            }
+            else {
+                CompletableFuture<? extends V> future;
+                try {
+                    future = call.apply(key);
+                }
+                catch (Throwable e) {
+                    future = failed(e);
+                }
+
+                final K currentKey = key;
+                if (future.isDone()) {
+                    future.whenComplete((value, error) -> forEachResult(currentKey, value, error, onResult, onError));
+                }
+                else {
+                    future.whenComplete((value, error) -> {
+                        forEachResult(currentKey, value, error, onResult, onError);
+                        forEachNext(keys, call, onResult, onError, activeWorkers, done);
+                    });
+                    waiting = true;
+                }
+            }
+        }
+    }
+    /**
+     * Passes the outcome of one call of forEach() to the right listener; a failing listener shouldn't stop the others
+     */
+    private static <K, V> void forEachResult(K key, V value, Throwable error, BiConsumer<? super K, ? super V> onResult, BiConsumer<? super K, ? super Throwable> onError)
+    {
+        try {
+            if (error == null) {
+                onResult.accept(key, value);
+            }
+            else {
+                onError.accept(key, unwrap(error));
+            }
+        }
+        catch (RuntimeException e) {
+            Logger.error("Error in the listener of an asynchronous call for " + key, e);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.execchain.ClientExecChain;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The outbound HTTP layer of this module: a single, long-lived client with a pool of keep-alive connections
+ * that's shared by all endpoints, so we only pay the TCP/TLS handshake once per pooled connection instead of once per request.
+ * Every RemoteHost gets its own per-route connection limit and timeouts.
+ *
+ * Every RemoteHost (except OTHER) also gets a circuit breaker: when it's down (or very slow), calls to it fail immediately
+ * with a CircuitOpenException instead of waiting for their timeout.
+ *
+ * Asynchronous calls are executed by a bounded thread pool (with a bounded queue), so callers (eg. the request threads of the web container)
+ * don't need to wait for the remote round trip. Note that the network I/O itself is still blocking, on one of the pool threads:
+ * we deliberately don't use the NIO client (httpasyncclient), because our response handlers parse straight from the InputStream of the entity
+ * (which the NIO client would need to buffer first) and the circuit breakers hook into the execution chain of this client.
+ * The size of the pool (see Settings.getHttpMaxThreads()) is what bounds the number of threads that can be blocked on a remote host.
+ */
+public class HttpClientPool
+{
+    //-----CONSTANTS-----
+    //idle keep-alive connections are closed (and removed from the pool) after this many seconds
+    private static final long MAX_IDLE_SECONDS = 60;
+    //the circuit breakers look at the outcome of this many recent calls, but only start judging after the minimum
+    private static final int CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    private static final int CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+    //the number of trial calls that need to succeed before an open circuit breaker closes again
+    private static final int CIRCUIT_BREAKER_HALF_OPEN_CALLS = 3;
+
+    //-----VARIABLES-----
+    private static HttpClientPool instance;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Map<RemoteHost, RequestConfig> requestConfigs;
+    private final Map<RemoteHost, CircuitBreaker> circuitBreakers;
+    private final Set<HttpRoute> configuredRoutes;
+    private final ThreadPoolExecutor executor;
+
+    //-----CONSTRUCTORS-----
+    private HttpClientPool()
+    {
+        Settings settings = Settings.instance();
+
+        this.requestConfigs = new EnumMap<>(RemoteHost.class);
+        this.circuitBreakers = new EnumMap<>(RemoteHost.class);
+        int maxTotal = 0;
+        for (RemoteHost host : RemoteHost.values()) {
+            maxTotal += settings.getHttpMaxConnections(host);
+            this.requestConfigs.put(host, RequestConfig.custom()
+                                                       .setConnectTimeout(settings.getHttpConnectTimeout(host))
+                                                       .setSocketTimeout(settings.getHttpReadTimeout(host))
+                                                       //no need to wait longer for a free pooled connection than for a new one
+                                                       .setConnectionRequestTimeout(settings.getHttpConnectTimeout(host))
+                                                       .build());
+            if (host != RemoteHost.OTHER) {
+                this.circuitBreakers.put(host, new CircuitBreaker(host.getConfigName(), CIRCUIT_BREAKER_WINDOW_SIZE, CIRCUIT_BREAKER_MINIMUM_CALLS,
+                                                                  settings.getHttpCircuitBreakerFailureRate(host), settings.getHttpCircuitBreakerSlowCallRate(host),
+                                                                  settings.getHttpCircuitBreakerSlowCallDuration(host), settings.getHttpCircuitBreakerOpenDuration(host),
+                                                                  CIRCUIT_BREAKER_HALF_OPEN_CALLS));
+            }
+        }
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxTotal);
+        this.connectionManager.setDefaultMaxPerRoute(settings.getHttpMaxConnections(RemoteHost.OTHER));
+        this.configuredRoutes = ConcurrentHashMap.newKeySet();
+
+        //hook the circuit breakers into the execution chain of the client, so they see every single request (including redirects)
+        this.httpClient = new HttpClientBuilder()
+        {
+            @Override
+            protected ClientExecChain decorateProtocolExec(ClientExecChain protocolExec)
+            {
+                return (route, request, context, execAware) -> {
+                    RemoteHost host = RemoteHost.forHost(route.getTargetHost().getHostName());
+                    CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+                    if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+                        throw new CircuitOpenException(host);
+                    }
+
+                    boolean success = false;
+                    long start = System.currentTimeMillis();
+                    try {
+                        CloseableHttpResponse response = protocolExec.execute(route, request, context, execAware);
+                        //only server errors mean something's wrong with the host; the rest is our problem
+                        success = response.getStatusLine().getStatusCode() < 500;
+                        return response;
+                    }
+                    finally {
+                        if (circuitBreaker != null) {
+                            circuitBreaker.onResult(success, System.currentTimeMillis() - start);
+                        }
+                    }
+                };
+            }
+        }.setConnectionManager(this.connectionManager)
+         .evictExpiredConnections()
+         .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS)
+         .build();
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(settings.getHttpMaxThreads(), settings.getHttpMaxThreads(), 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<>(settings.getHttpMaxQueuedRequests()), runnable -> {
+            Thread thread = new Thread(runnable, "ontologies-commons-http-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    //-----PUBLIC METHODS-----
+    public static synchronized HttpClientPool instance()
+    {
+        if (HttpClientPool.instance == null) {
+            HttpClientPool.instance = new HttpClientPool();
+        }
+        return HttpClientPool.instance;
+    }
+    /**
+     * Shuts down the shared instance (if there is one) and releases it, so the next call to instance() starts a new one.
+     * This is called when the server (and this module) stops, see ServerStartStopListener.
+     */
+    public static synchronized void shutdownInstance()
+    {
+        if (HttpClientPool.instance != null) {
+            HttpClientPool.instance.shutdown();
+            HttpClientPool.instance = null;
+        }
+    }
+    /**
+     * Executes a GET request to the target, asking for the supplied media type, and passes the response to the handler.
+     * The handler is responsible for reading the response; the connection is released back to the pool afterwards,
+     * no matter what happens, so don't hold on to the response (or its stream) after the handler returned.
+     */
+    public <T> T get(URI target, String mediaType, ResponseHandler<? extends T> handler) throws IOException
+    {
+        return this.execute(new HttpGet(target), mediaType, handler);
+    }
+    /**
+     * Asynchronous variant of get(); the request is executed by our bounded thread pool.
+     */
+    public <T> CompletableFuture<T> getAsync(URI target, String mediaType, ResponseHandler<? extends T> handler)
+    {
+        return this.submit(() -> this.get(target, mediaType, handler));
+    }
+    /**
+     * Executes a POST request to the target with the supplied parameters as its (application/x-www-form-urlencoded) body,
+     * eg. for requests that would get too long as a GET. The rest works like get().
+     */
+    public <T> T post(URI target, Map<String, String> form, String mediaType, ResponseHandler<? extends T> handler) throws IOException
+    {
+        List<NameValuePair> parameters = new ArrayList<>();
+        for (Map.Entry<String, String> entry : form.entrySet()) {
+            parameters.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+        }
+
+        HttpPost request = new HttpPost(target);
+        request.setEntity(new UrlEncodedFormEntity(parameters, StandardCharsets.UTF_8));
+
+        return this.execute(request, mediaType, handler);
+    }
+    /**
+     * Asynchronous variant of post(); the request is executed by our bounded thread pool.
+     */
+    public <T> CompletableFuture<T> postAsync(URI target, Map<String, String> form, String mediaType, ResponseHandler<? extends T> handler)
+    {
+        return this.submit(() -> this.post(target, form, mediaType, handler));
+    }
+    /**
+     * Executes a (blocking) task on our bounded thread pool; use this for other outbound calls that don't go through get() (eg. SPARQL queries).
+     * If the pool and its queue are full, the returned future fails immediately.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task)
+    {
+        CompletableFuture<T> retVal = new CompletableFuture<>();
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    retVal.complete(task.call());
+                }
+                catch (Throwable e) {
+                    retVal.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            retVal.completeExceptionally(new IOException("Too many outbound calls waiting to be executed, rejecting this one", e));
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns false if calls to the specified host will be refused right now because its circuit breaker is open,
+     * so callers can bail out early (eg. before queueing a call or spending a rate limiter permit on it).
+     */
+    public boolean isAvailable(RemoteHost host)
+    {
+        CircuitBreaker circuitBreaker = this.circuitBreakers.get(host);
+        return circuitBreaker == null || circuitBreaker.isCallPermitted();
+    }
+    /**
+     * Closes all pooled connections and stops the thread pool; this instance can't be used anymore afterwards.
+     */
+    public synchronized void shutdown()
+    {
+        this.executor.shutdownNow();
+
+        try {
+            this.httpClient.close();
+        }
+        catch (IOException e) {
+            Logger.error("Error while closing the pooled outbound HTTP client", e);
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private <T> T execute(HttpRequestBase request, String mediaType, ResponseHandler<? extends T> handler) throws IOException
+    {
+        RemoteHost host = RemoteHost.forUri(request.getURI());
+        this.configureRoute(host, request.getURI());
+
+        request.setConfig(this.requestConfigs.get(host));
+        if (mediaType != null) {
+            request.setHeader(HttpHeaders.ACCEPT, mediaType);
+        }
+
+        return this.httpClient.execute(request, handler);
+    }
+    /**
+     * The pool limits connections per route (scheme+host+port), so we need to register the limit of every route we encounter
+     * (eg. every language subdomain of Wikipedia is a separate route)
+     */
+    private void configureRoute(RemoteHost host, URI target)
+    {
+        if (host != RemoteHost.OTHER) {
+            boolean secure = "https".equalsIgnoreCase(target.getScheme());
+            int port = target.getPort() != -1 ? target.getPort() : (secure ? 443 : 80);
+            HttpRoute route = new HttpRoute(new HttpHost(target.getHost(), port, target.getScheme()), null, secure);
+            if (this.configuredRoutes.add(route)) {
+                this.connectionManager.setMaxPerRoute(route, Settings.instance().getHttpMaxConnections(host));
+            }
+        }
+    }
+}
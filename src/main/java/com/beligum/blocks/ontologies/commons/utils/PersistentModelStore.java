@@ -0,0 +1,383 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+import org.eclipse.rdf4j.model.Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent (on-disk) store for the RDF models we fetched from external endpoints, keyed by the id of the external resource,
+ * so they survive restarts and we don't need to fetch them all over again (and spend our quota on them) after every deploy.
+ *
+ * The store is a single append-only file that's memory-mapped. Every record holds one model in the compact BinaryRdfEncoding:
+ * [magic] [body length] [CRC32 of body] [body = key length, key, timestamp, encoded model]
+ * The index (key to offset of the most recent record) is rebuilt by scanning the file on startup; a record that was only partially written
+ * (eg. because of a crash) fails its checksum and marks the end of the valid data. When more than half of the file is occupied by records
+ * that were overwritten (or that expired), the live records are moved to the front of the file; on startup and while we're running.
+ * This happens in place, inside the mapped region, so we never need to replace (or unmap) the mapped file.
+ * When the store is full (it can't grow beyond 2GB), even after a compaction, it stops storing new models until its oldest model expires,
+ * after which the next model that's stored compacts it again to make room.
+ *
+ * If the store can't be opened (or is disabled), it silently stores nothing.
+ */
+public class PersistentModelStore
+{
+    //-----CONSTANTS-----
+    private static final int MAGIC = 0x52444631;
+    private static final int HEADER_SIZE = 3 * 4;
+    //the mapped region grows in steps of (at least) this many bytes
+    private static final int MIN_MAPPED_SIZE = 16 * 1024 * 1024;
+    //don't bother compacting small files
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private static class Entry
+    {
+        private final long offset;
+        private final int length;
+        private final long timestamp;
+
+        public Entry(long offset, int length, long timestamp)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+    }
+
+    //-----VARIABLES-----
+    private static PersistentModelStore instance;
+    private final File file;
+    private final long maxAgeMillis;
+    private final Map<String, Entry> index;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private long writePosition;
+    //the number of bytes taken by the records in the index (the rest, up to the write position, is garbage)
+    private long liveBytes;
+    //when the store is full, the time its oldest model expires (and a compaction can make room again); 0 when it's not full
+    private long fullUntil;
+
+    //-----CONSTRUCTORS-----
+    /**
+     * Opens the store in the file (or a store that stores nothing if it's null); use instance() to get the shared one
+     */
+    PersistentModelStore(File file, long maxAgeMillis)
+    {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+        this.index = new HashMap<>();
+
+        if (this.file != null) {
+            try {
+                this.open();
+                Logger.info("Opened persistent RDF model store at " + this.file + " with " + this.index.size() + " models");
+            }
+            catch (IOException e) {
+                Logger.error("Error while opening the persistent RDF model store at " + this.file + ", continuing without it", e);
+                this.close();
+            }
+        }
+    }
+
+    //-----PUBLIC METHODS-----
+    public static synchronized PersistentModelStore instance()
+    {
+        if (PersistentModelStore.instance == null) {
+            Settings settings = Settings.instance();
+            PersistentModelStore.instance = new PersistentModelStore(settings.getModelStoreEnabled() ? new File(settings.getModelStoreFile()) : null,
+                                                                     settings.getModelStoreMaxAge() * 1000);
+        }
+        return PersistentModelStore.instance;
+    }
+    /**
+     * Flushes and closes the shared instance (if there is one) and releases it, so the next call to instance() opens the store again.
+     * This is called when the server (and this module) stops, see ServerStartStopListener.
+     */
+    public static synchronized void closeInstance()
+    {
+        if (PersistentModelStore.instance != null) {
+            PersistentModelStore.instance.close();
+            PersistentModelStore.instance = null;
+        }
+    }
+    /**
+     * Returns the stored model of the external resource, or null if we don't have it or if it's older than maxAgeMillis.
+     */
+    public synchronized Model get(String key, long maxAgeMillis)
+    {
+        Model retVal = null;
+
+        Entry entry = this.buffer == null ? null : this.index.get(key);
+        if (entry != null && entry.timestamp + maxAgeMillis > System.currentTimeMillis()) {
+            try {
+                ByteBuffer record = this.buffer.duplicate();
+                record.position((int) entry.offset + HEADER_SIZE);
+                record.limit((int) entry.offset + HEADER_SIZE + entry.length);
+                //skip the key and the timestamp
+                record.position(record.position() + 2 + (record.getShort() & 0xFFFF) + 8);
+                retVal = BinaryRdfEncoding.decode(record);
+            }
+            catch (IOException e) {
+                Logger.error("Error while reading model of " + key + " from the persistent RDF model store, ignoring it", e);
+                this.index.remove(key);
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Stores (or replaces) the model of the external resource
+     */
+    public synchronized void put(String key, Model model)
+    {
+        if (this.buffer != null && model != null && System.currentTimeMillis() >= this.fullUntil) {
+            try {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                if (keyBytes.length > 0xFFFF) {
+                    throw new IllegalArgumentException("Key is too long to be stored; " + key);
+                }
+                byte[] modelBytes = BinaryRdfEncoding.encode(model);
+                long timestamp = System.currentTimeMillis();
+
+                ByteBuffer body = ByteBuffer.allocate(2 + keyBytes.length + 8 + modelBytes.length);
+                body.putShort((short) keyBytes.length);
+                body.put(keyBytes);
+                body.putLong(timestamp);
+                body.put(modelBytes);
+
+                CRC32 crc = new CRC32();
+                crc.update(body.array());
+
+                if (!this.ensureCapacity(HEADER_SIZE + body.capacity())) {
+                    if (this.fullUntil == 0) {
+                        Logger.warn("The persistent RDF model store at " + this.file + " is full, not storing any more models until its oldest one expires");
+                    }
+                    this.fullUntil = this.getOldestExpiry();
+                    return;
+                }
+                else if (this.fullUntil != 0) {
+                    Logger.info("The persistent RDF model store at " + this.file + " has room again after compacting it, storing models again");
+                    this.fullUntil = 0;
+                }
+                ByteBuffer record = this.buffer.duplicate();
+                record.position((int) this.writePosition);
+                record.putInt(MAGIC);
+                record.putInt(body.capacity());
+                record.putInt((int) crc.getValue());
+                record.put(body.array());
+
+                Entry previous = this.index.put(key, new Entry(this.writePosition, body.capacity(), timestamp));
+                this.writePosition += HEADER_SIZE + body.capacity();
+                this.liveBytes += HEADER_SIZE + body.capacity() - (previous == null ? 0 : HEADER_SIZE + previous.length);
+
+                if (this.needsCompaction()) {
+                    this.compact();
+                }
+            }
+            catch (IOException | IllegalArgumentException e) {
+                Logger.error("Error while writing model of " + key + " to the persistent RDF model store, ignoring it", e);
+            }
+        }
+    }
+    /**
+     * Flushes everything to disk and closes the store; it won't store anything anymore afterwards.
+     */
+    public synchronized void close()
+    {
+        if (this.buffer != null) {
+            this.buffer.force();
+            this.buffer = null;
+        }
+
+        if (this.randomAccessFile != null) {
+            try {
+                this.randomAccessFile.close();
+            }
+            catch (IOException e) {
+                Logger.error("Error while closing the persistent RDF model store at " + this.file, e);
+            }
+            this.randomAccessFile = null;
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private void open() throws IOException
+    {
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create the directory of the persistent RDF model store; " + parent);
+        }
+
+        this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+        this.map(Math.max(this.randomAccessFile.length(), MIN_MAPPED_SIZE));
+
+        this.scan();
+        //always compact on startup, so the records that expired while we were down are dropped too
+        this.compact();
+    }
+    /**
+     * Rebuilds the index from the records in the file (and counts the bytes taken by the live ones)
+     */
+    private void scan()
+    {
+        this.index.clear();
+        this.liveBytes = 0;
+        ByteBuffer scanner = this.buffer.duplicate();
+        long position = 0;
+        boolean valid = true;
+        while (valid && position + HEADER_SIZE <= scanner.capacity()) {
+            scanner.position((int) position);
+            int length = scanner.getInt() == MAGIC ? scanner.getInt() : -1;
+            int checksum = scanner.getInt();
+
+            valid = length > 0 && position + HEADER_SIZE + length <= scanner.capacity();
+            if (valid) {
+                byte[] body = new byte[length];
+                scanner.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                valid = (int) crc.getValue() == checksum;
+
+                if (valid) {
+                    ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+                    byte[] keyBytes = new byte[bodyBuffer.getShort() & 0xFFFF];
+                    bodyBuffer.get(keyBytes);
+                    long timestamp = bodyBuffer.getLong();
+
+                    //Note: a compaction that was interrupted (eg. by a crash) can leave an older version of a record behind the moved ones
+                    String key = new String(keyBytes, StandardCharsets.UTF_8);
+                    Entry previous = this.index.get(key);
+                    if (previous == null || previous.timestamp <= timestamp) {
+                        this.index.put(key, new Entry(position, length, timestamp));
+                        this.liveBytes += HEADER_SIZE + length - (previous == null ? 0 : HEADER_SIZE + previous.length);
+                    }
+                    position += HEADER_SIZE + length;
+                }
+            }
+        }
+        this.writePosition = position;
+    }
+    private boolean needsCompaction()
+    {
+        long garbage = this.writePosition - this.liveBytes;
+        return garbage > this.liveBytes && garbage > MIN_COMPACTION_GARBAGE;
+    }
+    /**
+     * Moves all live (and not expired) records to the front of the file, in the order they were written, and clears the rest.
+     * Since a record only ever moves to a lower offset, we can do this in place, without a second file.
+     */
+    private void compact()
+    {
+        long start = System.currentTimeMillis();
+        long oldWritePosition = this.writePosition;
+
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(this.index.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().offset));
+
+        ByteBuffer records = this.buffer.duplicate();
+        long position = 0;
+        for (Map.Entry<String, Entry> entry : entries) {
+            Entry record = entry.getValue();
+            int size = HEADER_SIZE + record.length;
+            if (record.timestamp + this.maxAgeMillis <= start) {
+                this.index.remove(entry.getKey());
+            }
+            else {
+                if (record.offset != position) {
+                    byte[] bytes = new byte[size];
+                    records.position((int) record.offset);
+                    records.get(bytes);
+                    records.position((int) position);
+                    records.put(bytes);
+                    entry.setValue(new Entry(position, record.length, record.timestamp));
+                }
+                position += size;
+            }
+        }
+
+        //wipe what's left, so no old record is mistaken for a live one on the next startup
+        byte[] zeros = new byte[64 * 1024];
+        records.position((int) position);
+        while (records.position() < oldWritePosition) {
+            records.put(zeros, 0, (int) Math.min(zeros.length, oldWritePosition - records.position()));
+        }
+        this.buffer.force();
+
+        this.writePosition = position;
+        this.liveBytes = position;
+
+        if (position < oldWritePosition) {
+            Logger.info("Compacted the persistent RDF model store at " + this.file + " from " + oldWritePosition + " to " + position + " bytes in " +
+                        (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+    /**
+     * Makes sure the record fits in the mapped region (growing it if needed); returns false if the store is full, even after compacting it.
+     */
+    private boolean ensureCapacity(int recordSize) throws IOException
+    {
+        long required = this.writePosition + recordSize;
+        if (required > Integer.MAX_VALUE) {
+            this.compact();
+            required = this.writePosition + recordSize;
+        }
+
+        boolean retVal = required <= Integer.MAX_VALUE;
+        if (retVal && required > this.buffer.capacity()) {
+            //Note: the old mapping is released by the garbage collector
+            this.buffer.force();
+            this.map(Math.min(Integer.MAX_VALUE, Math.max(required, 2L * this.buffer.capacity())));
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the time the oldest model in the store expires (or now if the store is empty)
+     */
+    private long getOldestExpiry()
+    {
+        long retVal = System.currentTimeMillis();
+
+        if (!this.index.isEmpty()) {
+            long oldest = Long.MAX_VALUE;
+            for (Entry entry : this.index.values()) {
+                oldest = Math.min(oldest, entry.timestamp);
+            }
+            retVal = Math.max(retVal, oldest + this.maxAgeMillis);
+        }
+
+        return retVal;
+    }
+    private void map(long size) throws IOException
+    {
+        //Note: mapping a region beyond the end of the file grows the file (with zeros, that don't pass for a valid record)
+        this.buffer = this.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Integer.MAX_VALUE, size));
+    }
+}
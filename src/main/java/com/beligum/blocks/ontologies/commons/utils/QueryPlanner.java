@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Executes a number of alternative strategies to answer the same query at once, instead of trying them one after the other,
+ * so the worst case takes as long as the slowest strategy instead of all of them together.
+ *
+ * The strategies are added in order of preference: the result of a strategy is only used when all strategies before it
+ * came back with nothing acceptable (or failed), so we get the same answer as when we'd try them one by one.
+ * As soon as the answer is known, the strategies that are still running are cancelled.
+ * If the deadline passes first, we use the best acceptable result we have, or fail with a TimeoutException.
+ *
+ * A planner executes once; its toString() describes the plan and how every strategy did (eg. for the logs).
+ */
+public class QueryPlanner<T>
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+    private final String name;
+    private final Deadline deadline;
+    private final Predicate<? super T> acceptable;
+    private final List<Strategy<T>> strategies;
+    private final CompletableFuture<T> result;
+    private long start;
+    private ScheduledFuture<?> deadlineTimer;
+    private String outcome;
+
+    //-----CONSTRUCTORS-----
+    /**
+     * Note that the strategies should respect the same deadline (eg. by passing it on to their remote calls)
+     */
+    public QueryPlanner(String name, Deadline deadline, Predicate<? super T> acceptable)
+    {
+        this.name = name;
+        this.deadline = deadline;
+        this.acceptable = acceptable;
+        this.strategies = new ArrayList<>();
+        this.result = new CompletableFuture<>();
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Adds a strategy with a lower preference than the ones that were added before
+     */
+    public synchronized QueryPlanner<T> add(String name, Supplier<CompletableFuture<T>> strategy)
+    {
+        if (this.start > 0) {
+            throw new IllegalStateException("Can't add a strategy to query plan '" + this.name + "', it's already executing");
+        }
+
+        this.strategies.add(new Strategy<>(name, strategy));
+
+        return this;
+    }
+    /**
+     * Launches all strategies and returns a future that completes with the acceptable result of the preferred strategy.
+     * If no strategy has an acceptable result, it completes with the result of the first strategy that didn't fail
+     * (eg. an empty one, which is still a real answer), or with the exception of the first strategy if they all failed.
+     */
+    public synchronized CompletableFuture<T> execute()
+    {
+        if (this.start > 0) {
+            throw new IllegalStateException("Query plan '" + this.name + "' can only be executed once");
+        }
+
+        this.start = System.currentTimeMillis();
+        this.deadlineTimer = this.deadline.schedule(() -> this.decide(true));
+
+        for (Strategy<T> strategy : this.strategies) {
+            CompletableFuture<T> future;
+            try {
+                future = strategy.supplier.get();
+            }
+            catch (Throwable e) {
+                future = Futures.failed(e);
+            }
+            strategy.future = future;
+        }
+        //Note: the strategies can complete while we're launching them, so we only start listening when all of them are launched
+        for (Strategy<T> strategy : this.strategies) {
+            strategy.future.whenComplete((value, error) -> this.onComplete(strategy, value, error));
+        }
+
+        return this.result;
+    }
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder retVal = new StringBuilder("Query plan '").append(this.name).append("'");
+
+        if (this.outcome != null) {
+            retVal.append(" ").append(this.outcome);
+        }
+        for (Strategy<T> strategy : this.strategies) {
+            retVal.append("; ").append(strategy.name).append(": ").append(strategy.state);
+            if (strategy.duration >= 0) {
+                retVal.append(" in ").append(strategy.duration).append("ms");
+            }
+        }
+
+        return retVal.toString();
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private synchronized void onComplete(Strategy<T> strategy, T value, Throwable error)
+    {
+        if (strategy.state == State.RUNNING) {
+            strategy.duration = System.currentTimeMillis() - this.start;
+            strategy.value = value;
+            strategy.error = error;
+            strategy.state = error != null ? State.FAILED : this.acceptable.test(value) ? State.ACCEPTABLE : State.UNACCEPTABLE;
+
+            this.decide(false);
+        }
+    }
+    /**
+     * Completes the result if we know the answer, which is when a strategy has an acceptable result and all preferred ones are done
+     * (or the deadline passed), or when all strategies are done.
+     */
+    private synchronized void decide(boolean deadlinePassed)
+    {
+        if (!this.result.isDone()) {
+            boolean allDone = true;
+            Strategy<T> answer = null;
+            for (int i = 0; answer == null && i < this.strategies.size(); i++) {
+                Strategy<T> strategy = this.strategies.get(i);
+                if (strategy.state == State.ACCEPTABLE) {
+                    answer = strategy;
+                }
+                else if (strategy.state == State.RUNNING) {
+                    allDone = false;
+                    //we can't skip a running strategy we prefer, unless we can't wait for it anymore
+                    if (!deadlinePassed) {
+                        break;
+                    }
+                }
+            }
+
+            if (answer != null) {
+                this.finish("answered by " + answer.name, answer.value, null);
+            }
+            else if (allDone) {
+                Strategy<T> fallback = null;
+                for (Strategy<T> strategy : this.strategies) {
+                    if (fallback == null || (fallback.state == State.FAILED && strategy.state != State.FAILED)) {
+                        fallback = strategy;
+                    }
+                }
+                if (fallback == null) {
+                    this.finish("without any strategy", null, null);
+                }
+                else {
+                    this.finish("without an acceptable result", fallback.value, fallback.error);
+                }
+            }
+            else if (deadlinePassed) {
+                this.finish("timed out", null, new TimeoutException("Query plan '" + this.name + "' didn't find an acceptable result before its deadline"));
+            }
+        }
+    }
+    private void finish(String outcome, T value, Throwable error)
+    {
+        this.outcome = outcome + " after " + (System.currentTimeMillis() - this.start) + "ms";
+        if (this.deadlineTimer != null) {
+            this.deadlineTimer.cancel(false);
+        }
+
+        //we don't need the others anymore; note that this doesn't stop a remote call that's already on its way, but it stops everything that depends on it
+        for (Strategy<T> strategy : this.strategies) {
+            if (strategy.state == State.RUNNING) {
+                strategy.state = State.CANCELLED;
+                strategy.future.cancel(true);
+            }
+        }
+
+        Logger.debug(this);
+
+        if (error != null) {
+            this.result.completeExceptionally(Futures.unwrap(error));
+        }
+        else {
+            this.result.complete(value);
+        }
+    }
+
+    private enum State
+    {
+        RUNNING,
+        ACCEPTABLE,
+        UNACCEPTABLE,
+        FAILED,
+        CANCELLED
+    }
+
+    private static class Strategy<T>
+    {
+        private final String name;
+        private final Supplier<CompletableFuture<T>> supplier;
+        private CompletableFuture<T> future;
+        private State state;
+        private long duration;
+        private T value;
+        private Throwable error;
+
+        public Strategy(String name, Supplier<CompletableFuture<T>> supplier)
+        {
+            this.name = name;
+            this.supplier = supplier;
+            this.state = State.RUNNING;
+            this.duration = -1;
+        }
+    }
+}
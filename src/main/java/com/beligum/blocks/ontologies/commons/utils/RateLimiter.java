@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decides when a remote call may be executed, so we stay below the request quota of an external service.
+ */
+public interface RateLimiter
+{
+    /**
+     * Ordered from most to least important: when calls are queued, the ones with a higher priority get permits first.
+     */
+    enum Priority
+    {
+        //someone is waiting for this (eg. autocomplete)
+        INTERACTIVE,
+        //nobody is actively waiting for this (eg. fetching external RDF models)
+        BACKGROUND
+    }
+
+    /**
+     * Requests a permit to execute one call. The returned future completes as soon as the permit is granted,
+     * or completes exceptionally with a RateLimitExceededException if that didn't happen within maxWaitMillis.
+     */
+    CompletableFuture<Void> acquire(Priority priority, long maxWaitMillis);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.config.CacheKeys;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * A cache region with stale-while-revalidate semantics: entries that are nearing the end of their time to live are still returned,
+ * but a refresh is started in the background, so the callers (eg. page renders) never wait on the network for data we already have.
+ * If the refresh fails (eg. because the remote host is down), the old value is served for the stale grace window of the region,
+ * after which the entry really expires and the next call has to go remote.
+ *
+ * The number of concurrent refreshes (over all regions) is bounded; when the limit is reached, refreshes are skipped
+ * and simply retried on the next access of the entry.
+ */
+public class RefreshAheadCache
+{
+    //-----CONSTANTS-----
+    //entries are refreshed when they lived this fraction of their time to live, so most of them are refreshed before they even go stale
+    private static final double REFRESH_AHEAD_FACTOR = 0.8;
+
+    //-----VARIABLES-----
+    private static Semaphore refreshPermits;
+    private final CacheKeys region;
+    private final Set<Object> refreshing;
+
+    //-----CONSTRUCTORS-----
+    public RefreshAheadCache(CacheKeys region)
+    {
+        this.region = region;
+        this.refreshing = ConcurrentHashMap.newKeySet();
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Returns the cached value (fresh or stale) or null if there's none. If the value should be refreshed,
+     * the refresher is called to start fetching it again; it should put the new value in this cache when it completes.
+     */
+    public <V> V get(Object key, Supplier<CompletableFuture<?>> refresher)
+    {
+        V retVal = null;
+
+        Entry entry = (Entry) this.region.getCache().get(key);
+        if (entry != null) {
+            retVal = (V) entry.value;
+
+            long refreshAfter = (long) (Settings.instance().getCacheTtl(this.region) * 1000 * REFRESH_AHEAD_FACTOR);
+            if (Settings.instance().getCacheStaleGrace(this.region) > 0 && System.currentTimeMillis() - entry.created >= refreshAfter) {
+                this.refresh(key, refresher);
+            }
+        }
+
+        return retVal;
+    }
+    public void put(Object key, Object value)
+    {
+        this.region.getCache().put(key, new Entry(value, System.currentTimeMillis()));
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private static synchronized Semaphore getRefreshPermits()
+    {
+        if (refreshPermits == null) {
+            refreshPermits = new Semaphore(Settings.instance().getCacheRefreshMaxPending());
+        }
+
+        return refreshPermits;
+    }
+    private void refresh(Object key, Supplier<CompletableFuture<?>> refresher)
+    {
+        //only one refresh per entry at a time
+        if (this.refreshing.add(key)) {
+            Semaphore permits = getRefreshPermits();
+            if (permits.tryAcquire()) {
+                try {
+                    refresher.get().whenComplete((value, error) -> {
+                        this.refreshing.remove(key);
+                        permits.release();
+                        if (error != null) {
+                            Logger.debug("Error while refreshing cached entry of " + this.region + ", serving the stale one for now; " + Futures.unwrap(error).getMessage());
+                        }
+                    });
+                }
+                catch (RuntimeException e) {
+                    this.refreshing.remove(key);
+                    permits.release();
+                    Logger.error("Error while starting the refresh of a cached entry of " + this.region, e);
+                }
+            }
+            else {
+                this.refreshing.remove(key);
+                Logger.debug("Too many refreshes of cached entries running, serving a stale entry of " + this.region + " a little longer");
+            }
+        }
+    }
+
+    //Note: serializable because some regions can overflow to disk
+    private static class Entry implements Serializable
+    {
+        private final Object value;
+        private final long created;
+
+        public Entry(Object value, long created)
+        {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.net.URI;
+
+/**
+ * The external hosts this module talks to. Every host gets its own slice of the shared connection pool
+ * and its own timeouts, configured under blocks.ontologies.commons.http.[configName].*
+ */
+public enum RemoteHost
+{
+    GEONAMES("geonames", "api.geonames.org"),
+    GEONAMES_RDF("geonamesRdf", "sws.geonames.org"),
+    WIKIDATA("wikidata", "www.wikidata.org"),
+    WIKIDATA_QUERY("wikidataQuery", "query.wikidata.org"),
+    //Note: this one matches all language subdomains (en.wikipedia.org, nl.wikipedia.org, ...)
+    WIKIPEDIA("wikipedia", ".wikipedia.org"),
+    //fallback for everything we don't know about; uses the general settings
+    OTHER(null, null);
+
+    //-----VARIABLES-----
+    private String configName;
+    private String hostName;
+
+    //-----CONSTRUCTORS-----
+    RemoteHost(String configName, String hostName)
+    {
+        this.configName = configName;
+        this.hostName = hostName;
+    }
+
+    //-----STATIC METHODS-----
+    public static RemoteHost forUri(URI uri)
+    {
+        return forHost(uri == null ? null : uri.getHost());
+    }
+    public static RemoteHost forHost(String host)
+    {
+        RemoteHost retVal = OTHER;
+
+        if (host != null) {
+            for (RemoteHost h : RemoteHost.values()) {
+                if (h.matches(host)) {
+                    retVal = h;
+                    break;
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    //-----PUBLIC METHODS-----
+    public String getConfigName()
+    {
+        return configName;
+    }
+    public boolean matches(String host)
+    {
+        boolean retVal = false;
+
+        if (this.hostName != null) {
+            //a leading dot means we match all subdomains
+            if (this.hostName.startsWith(".")) {
+                retVal = host.endsWith(this.hostName);
+            }
+            else {
+                retVal = host.equalsIgnoreCase(this.hostName);
+            }
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure only one call per key is in flight at any time: concurrent callers asking for the same key
+ * don't start a call of their own, but get the future of the one that's already running and share its result (or its exception).
+ * Note that nothing is remembered once the call finished; that's what the caches are for.
+ */
+public class SingleFlight<K, V>
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight;
+
+    //-----CONSTRUCTORS-----
+    public SingleFlight()
+    {
+        this.inFlight = new ConcurrentHashMap<>();
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * The loader is only invoked if no call for the key is in flight yet, otherwise the future of the running call is returned.
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> loader)
+    {
+        CompletableFuture<V> newCall = new CompletableFuture<>();
+        CompletableFuture<V> retVal = this.inFlight.putIfAbsent(key, newCall);
+
+        if (retVal == null) {
+            retVal = newCall;
+            CompletableFuture<V> call;
+            try {
+                call = loader.get();
+            }
+            catch (Throwable e) {
+                call = Futures.failed(e);
+            }
+
+            call.whenComplete((value, error) -> {
+                this.inFlight.remove(key, newCall);
+                if (error != null) {
+                    newCall.completeExceptionally(Futures.unwrap(error));
+                }
+                else {
+                    newCall.complete(value);
+                }
+            });
+        }
+
+        return retVal;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import com.beligum.base.utils.json.Json;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A remote SPARQL endpoint we send SELECT queries to.
+ * The queries go through the HttpClientPool, so they reuse its pooled keep-alive connections (and respect the circuit breaker of the host),
+ * instead of setting up a new repository (with its own HTTP client) for every query. We don't hold on to the pool ourselves, so its connections
+ * are simply closed with it when the server stops (see ServerStartStopListener).
+ * The queries are POSTed as a form (which the SPARQL protocol allows), so long queries (eg. with a big VALUES block) don't run into the URL length limit of the endpoint.
+ * The results are requested in the SPARQL JSON format and parsed straight from the stream, which is a lot lighter than the default XML format.
+ */
+public class SparqlEndpoint
+{
+    //-----CONSTANTS-----
+    public static final SparqlEndpoint WIKIDATA = new SparqlEndpoint(URI.create("https://query.wikidata.org/sparql"));
+    private static final String RESULTS_MEDIA_TYPE = "application/sparql-results+json";
+
+    //-----VARIABLES-----
+    private final URI endpoint;
+
+    //-----CONSTRUCTORS-----
+    public SparqlEndpoint(URI endpoint)
+    {
+        this.endpoint = endpoint;
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Executes the SELECT query and returns its rows. Every row maps the variables it binds on their values
+     * (the URI of a resource, the lexical value of a literal); unbound variables are left out.
+     */
+    public List<Map<String, String>> select(String query) throws IOException
+    {
+        return HttpClientPool.instance().post(this.endpoint, Collections.singletonMap("query", query), RESULTS_MEDIA_TYPE, this::readResults);
+    }
+    /**
+     * Asynchronous variant of select(); the query is executed by the bounded pool of the HttpClientPool.
+     */
+    public CompletableFuture<List<Map<String, String>>> selectAsync(String query)
+    {
+        return HttpClientPool.instance().postAsync(this.endpoint, Collections.singletonMap("query", query), RESULTS_MEDIA_TYPE, this::readResults);
+    }
+    public URI getEndpoint()
+    {
+        return endpoint;
+    }
+    @Override
+    public String toString()
+    {
+        return this.endpoint.toString();
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * Reads the 'bindings' array of the results, skipping everything else
+     */
+    private List<Map<String, String>> readResults(HttpResponse response) throws IOException
+    {
+        List<Map<String, String>> retVal = new ArrayList<>();
+
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            throw new IOException("SPARQL endpoint " + this.endpoint + " returned unexpected http code (" + response.getStatusLine().getStatusCode() + "); " +
+                                  response.getStatusLine().getReasonPhrase());
+        }
+
+        try (JsonParser parser = Json.getObjectMapper().getFactory().createParser(response.getEntity().getContent())) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+
+                    if (fieldName.equals("results") && value == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String resultsField = parser.getCurrentName();
+                            JsonToken resultsValue = parser.nextToken();
+
+                            if (resultsField.equals("bindings") && resultsValue == JsonToken.START_ARRAY) {
+                                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                    Map<String, String> row = new HashMap<>();
+                                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                        String variable = parser.getCurrentName();
+                                        parser.nextToken();
+                                        row.put(variable, this.readValue(parser));
+                                    }
+                                    retVal.add(row);
+                                }
+                            }
+                            else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                    else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Reads a single bound value, eg. {"type": "literal", "xml:lang": "en", "value": "Brussels"}
+     */
+    private String readValue(JsonParser parser) throws IOException
+    {
+        String retVal = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if (fieldName.equals("value")) {
+                retVal = parser.getValueAsString();
+            }
+            else {
+                parser.skipChildren();
+            }
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.RDFParseException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RDF handler that only keeps the statements about one subject and drops the rest as soon as they're parsed,
+ * so we never need to hold the complete (and possibly very large) remote document in memory.
+ */
+public class SubjectFilteringRdfHandler extends AbstractRDFHandler
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+    private final Model model;
+    private final String subject;
+
+    //-----CONSTRUCTORS-----
+    public SubjectFilteringRdfHandler(Model model, String subject)
+    {
+        this.model = model;
+        this.subject = subject;
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Parses the stream and returns a model with only the statements that have the supplied subject.
+     */
+    public static Model parse(InputStream inputStream, RDFFormat format, String baseUri, String subject) throws IOException
+    {
+        Model retVal = new LinkedHashModel();
+
+        RDFParser parser = Rio.createParser(format);
+        parser.setRDFHandler(new SubjectFilteringRdfHandler(retVal, subject));
+        try {
+            parser.parse(inputStream, baseUri);
+        }
+        catch (RDFParseException | RDFHandlerException e) {
+            throw new IOException("Error while parsing the RDF document of " + baseUri, e);
+        }
+
+        return retVal;
+    }
+
+    //-----PUBLIC METHODS-----
+    @Override
+    public void handleStatement(Statement statement) throws RDFHandlerException
+    {
+        if (statement.getSubject().stringValue().equals(this.subject)) {
+            this.model.add(statement);
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.utils;
+
+import java.time.Clock;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Classic token bucket: the bucket holds at most 'capacity' tokens (the burst size) and is refilled at a steady rate.
+ * Every call takes one token; if there's none left, the call is queued (per priority, first-in-first-out) until
+ * a token becomes available or its deadline passes.
+ *
+ * All time calculations use the supplied clock and all waiting is done through the supplied scheduler (which only triggers drain()
+ * at the moments we expect something to change), so this can be tested with a fake clock and a scheduler that follows it.
+ */
+public class TokenBucketRateLimiter implements RateLimiter
+{
+    //-----CONSTANTS-----
+    /**
+     * Runs the drains of the limiter; the delays are in milliseconds of the clock of the limiter
+     */
+    public interface Scheduler
+    {
+        Future<?> schedule(Runnable task, long delayMillis);
+
+        void shutdown();
+    }
+
+    private static class Waiter
+    {
+        private final CompletableFuture<Void> future;
+        private final long deadline;
+
+        public Waiter(CompletableFuture<Void> future, long deadline)
+        {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    //-----VARIABLES-----
+    private final String name;
+    private final double capacity;
+    private final double tokensPerMilli;
+    private final Clock clock;
+    private final Map<Priority, Deque<Waiter>> waiters;
+    private final Scheduler scheduler;
+    private double tokens;
+    private long lastRefill;
+    private Future<?> scheduledDrain;
+    private long scheduledDrainTime;
+
+    //-----CONSTRUCTORS-----
+    public TokenBucketRateLimiter(String name, int capacity, int tokensPerPeriod, long period, TimeUnit unit)
+    {
+        this(name, capacity, tokensPerPeriod, period, unit, Clock.systemUTC());
+    }
+    public TokenBucketRateLimiter(String name, int capacity, int tokensPerPeriod, long period, TimeUnit unit, Clock clock)
+    {
+        this(name, capacity, tokensPerPeriod, period, unit, clock, createScheduler(name));
+    }
+    public TokenBucketRateLimiter(String name, int capacity, int tokensPerPeriod, long period, TimeUnit unit, Clock clock, Scheduler scheduler)
+    {
+        this.name = name;
+        this.capacity = capacity;
+        this.tokensPerMilli = tokensPerPeriod / (double) unit.toMillis(period);
+        this.clock = clock;
+        this.waiters = new EnumMap<>(Priority.class);
+        for (Priority priority : Priority.values()) {
+            this.waiters.put(priority, new ArrayDeque<>());
+        }
+        this.scheduler = scheduler;
+
+        //we start with a full bucket
+        this.tokens = capacity;
+        this.lastRefill = clock.millis();
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * The default scheduler: a single daemon thread per limiter that waits in real time (so it's meant to be used with the system clock)
+     */
+    public static Scheduler createScheduler(String name)
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-limiter-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        return new Scheduler()
+        {
+            @Override
+            public Future<?> schedule(Runnable task, long delayMillis)
+            {
+                return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            @Override
+            public void shutdown()
+            {
+                executor.shutdownNow();
+            }
+        };
+    }
+
+    //-----PUBLIC METHODS-----
+    @Override
+    public CompletableFuture<Void> acquire(Priority priority, long maxWaitMillis)
+    {
+        CompletableFuture<Void> retVal = new CompletableFuture<>();
+
+        synchronized (this) {
+            this.waiters.get(priority).addLast(new Waiter(retVal, this.clock.millis() + maxWaitMillis));
+        }
+
+        this.drain();
+
+        return retVal;
+    }
+    /**
+     * Hands out the available tokens to the queued calls (most important ones first) and fails the calls that waited too long.
+     */
+    public void drain()
+    {
+        List<Waiter> granted = new ArrayList<>();
+        List<Waiter> expired = new ArrayList<>();
+
+        synchronized (this) {
+            long now = this.clock.millis();
+            this.refill(now);
+
+            for (Priority priority : Priority.values()) {
+                Iterator<Waiter> iter = this.waiters.get(priority).iterator();
+                while (iter.hasNext()) {
+                    Waiter waiter = iter.next();
+                    //cancelled by the caller
+                    if (waiter.future.isDone()) {
+                        iter.remove();
+                    }
+                    else if (this.tokens >= 1) {
+                        this.tokens--;
+                        iter.remove();
+                        granted.add(waiter);
+                    }
+                    else if (waiter.deadline <= now) {
+                        iter.remove();
+                        expired.add(waiter);
+                    }
+                }
+            }
+
+            this.scheduleDrain(now);
+        }
+
+        //don't run the dependent stages of the futures while holding the lock
+        for (Waiter waiter : granted) {
+            waiter.future.complete(null);
+        }
+        for (Waiter waiter : expired) {
+            waiter.future.completeExceptionally(new RateLimitExceededException("Waited too long for a permit of rate limiter '" + this.name + "'"));
+        }
+    }
+    /**
+     * Returns the number of tokens that are currently available (rounded down)
+     */
+    public synchronized int getAvailableTokens()
+    {
+        this.refill(this.clock.millis());
+        return (int) this.tokens;
+    }
+    public void shutdown()
+    {
+        this.scheduler.shutdown();
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private void refill(long now)
+    {
+        if (now > this.lastRefill) {
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerMilli);
+            this.lastRefill = now;
+        }
+    }
+    /**
+     * If there are calls waiting, make sure we wake up when the next token becomes available or when the first deadline passes
+     */
+    private void scheduleDrain(long now)
+    {
+        long nextEvent = Long.MAX_VALUE;
+        for (Deque<Waiter> queue : this.waiters.values()) {
+            for (Waiter waiter : queue) {
+                nextEvent = Math.min(nextEvent, waiter.deadline);
+            }
+        }
+
+        if (nextEvent != Long.MAX_VALUE) {
+            long nextToken = now + (long) Math.ceil((1 - this.tokens) / this.tokensPerMilli);
+            nextEvent = Math.max(now + 1, Math.min(nextEvent, nextToken));
+
+            //no need to reschedule if we're already waking up earlier
+            //(note that a wake-up time in the past means it's running right now or it already ran)
+            if (this.scheduledDrain == null || this.scheduledDrainTime <= now || nextEvent < this.scheduledDrainTime) {
+                if (this.scheduledDrain != null) {
+                    this.scheduledDrain.cancel(false);
+                }
+                this.scheduledDrainTime = nextEvent;
+                this.scheduledDrain = this.scheduler.schedule(this::drain, nextEvent - now);
+            }
+        }
+    }
+}
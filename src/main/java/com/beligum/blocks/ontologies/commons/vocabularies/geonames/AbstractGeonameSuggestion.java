@@ -39,6 +39,16 @@ public abstract class AbstractGeonameSuggestion extends AbstractGeoname implemen
     protected String toponymName;
 
     //-----CONSTRUCTORS-----
+    protected AbstractGeonameSuggestion()
+    {
+    }
+    protected AbstractGeonameSuggestion(URI resourceType, String geonameId, String name, String toponymName)
+    {
+        this.resourceType = resourceType;
+        this.geonameId = geonameId;
+        this.name = name;
+        this.toponymName = toponymName;
+    }
 
     //-----PUBLIC METHODS-----
     @Override
@@ -20,6 +20,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang.StringUtils;
 
+import java.net.URI;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -45,6 +46,18 @@ public class GeonameCitySuggestion extends AbstractGeonameSuggestion
     public GeonameCitySuggestion()
     {
     }
+    /**
+     * Used by the local gazetteer, that doesn't know the lower administrative levels
+     */
+    GeonameCitySuggestion(URI resourceType, String geonameId, String name, String toponymName, String adminName1, String adminName2, String countryCode, String countryName)
+    {
+        super(resourceType, geonameId, name, toponymName);
+
+        this.adminName1 = adminName1;
+        this.adminName2 = adminName2;
+        this.countryCode = countryCode;
+        this.countryName = countryName;
+    }
 
     //-----PUBLIC METHODS-----
     @Override
@@ -20,6 +20,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang3.StringUtils;
 
+import java.net.URI;
+
 /**
  * Created by bram on 3/12/16.
  */
@@ -34,6 +36,15 @@ public class GeonameCountrySuggestion extends AbstractGeonameSuggestion
     public GeonameCountrySuggestion()
     {
     }
+    /**
+     * Used by the local gazetteer
+     */
+    GeonameCountrySuggestion(URI resourceType, String geonameId, String name, String toponymName, String countryName)
+    {
+        super(resourceType, geonameId, name, toponymName);
+
+        this.countryName = countryName;
+    }
 
     //-----PUBLIC METHODS-----
     @Override
@@ -16,40 +16,55 @@
 
 package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
 
-import com.beligum.base.cache.Cache;
-import com.beligum.base.cache.EhCacheAdaptor;
-import com.beligum.base.server.R;
 import com.beligum.base.utils.Logger;
 import com.beligum.base.utils.json.Json;
 import com.beligum.base.utils.xml.XML;
 import com.beligum.blocks.endpoints.ifaces.AutocompleteSuggestion;
 import com.beligum.blocks.endpoints.ifaces.RdfQueryEndpoint;
 import com.beligum.blocks.endpoints.ifaces.ResourceInfo;
+import com.beligum.blocks.ontologies.commons.config.CacheKeys;
 import com.beligum.blocks.ontologies.commons.config.Settings;
+import com.beligum.blocks.ontologies.commons.utils.CachedSuggestions;
+import com.beligum.blocks.ontologies.commons.utils.CircuitOpenException;
+import com.beligum.blocks.ontologies.commons.utils.Deadline;
+import com.beligum.blocks.ontologies.commons.utils.Futures;
+import com.beligum.blocks.ontologies.commons.utils.HttpClientPool;
+import com.beligum.blocks.ontologies.commons.utils.PersistentModelStore;
+import com.beligum.blocks.ontologies.commons.utils.QueryPlanner;
+import com.beligum.blocks.ontologies.commons.utils.RateLimiter;
+import com.beligum.blocks.ontologies.commons.utils.RefreshAheadCache;
+import com.beligum.blocks.ontologies.commons.utils.RemoteHost;
+import com.beligum.blocks.ontologies.commons.utils.SubjectFilteringRdfHandler;
+import com.beligum.blocks.ontologies.commons.utils.TokenBucketRateLimiter;
 import com.beligum.blocks.ontologies.commons.vocabularies.GEONAMES;
-import com.beligum.blocks.rdf.ifaces.Format;
 import com.beligum.blocks.rdf.ifaces.RdfClass;
 import com.beligum.blocks.rdf.ifaces.RdfProperty;
-import com.beligum.blocks.rdf.importers.SesameImporter;
 import com.beligum.blocks.utils.RdfTools;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectReader;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.rdf4j.model.Model;
-import org.eclipse.rdf4j.model.Statement;
-import org.eclipse.rdf4j.model.impl.LinkedHashModel;
-import org.glassfish.jersey.client.ClientConfig;
+import org.eclipse.rdf4j.rio.RDFFormat;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,20 +75,30 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
 {
     //-----CONSTANTS-----
     private static final Pattern CITY_ZIP_COUNTRY_PATTERN = Pattern.compile("([^,]*),(\\d+),(.*)");
+    //the statuses Geonames returns when we ask for something that doesn't exist, see http://www.geonames.org/export/webservice-exception.html
+    private static final int STATUS_RECORD_DOES_NOT_EXIST = 11;
+    private static final int STATUS_NO_RESULT_FOUND = 15;
 
     //Note: don't make this static; it messes with the RdfFactory initialization
     //Also: don't initialize it in the constructor; it suffers from the same problem
     private RdfProperty[] cachedLabelProps;
 
     //-----VARIABLES-----
-    private String username;
+    //shared by all Geonames endpoints because the quota is per account, not per endpoint
+    private static GeonamesAccountPool accountPool;
+    private static RateLimiter rateLimiter;
+    //true if the RDF rate limiter is the one we created (and not one that was set from the outside), so we're the one who should shut it down
+    private static boolean ownRateLimiter;
+    //lazily built, it takes a while to ask Java for the names of all countries in all languages
+    private static Map<String, String> countryCodes;
+    private static final RefreshAheadCache CACHED_RESOURCES = new RefreshAheadCache(CacheKeys.GEONAMES_CACHED_RESOURCES);
+    private static final RefreshAheadCache CACHED_MODELS = new RefreshAheadCache(CacheKeys.GEONAMES_CACHED_MODELS);
     private AbstractGeoname.Type geonameType;
     //note: check the inner cache class if you add variables
 
     //-----CONSTRUCTORS-----
     public GeonameQueryEndpoint(AbstractGeoname.Type geonameType)
     {
-        this.username = Settings.instance().getGeonamesUsername();
         this.geonameType = geonameType;
     }
 
@@ -82,108 +107,161 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
     {
         return true;
     }
+    //-----STATIC METHODS-----
+    /**
+     * Returns the accounts all calls to the Geonames API are spread over; by default, these are the configured accounts,
+     * each with a token bucket configured with the Geonames settings.
+     */
+    public static synchronized GeonamesAccountPool getAccountPool()
+    {
+        if (accountPool == null) {
+            Settings settings = Settings.instance();
+            accountPool = new GeonamesAccountPool(settings.getGeonamesUsernames(), settings.getGeonamesBurstSize(), settings.getGeonamesRequestsPerHour());
+        }
+
+        return accountPool;
+    }
+    /**
+     * Replaces the accounts of all Geonames endpoints; the previous pool is shut down
+     */
+    public static synchronized void setAccountPool(GeonamesAccountPool accountPool)
+    {
+        if (GeonameQueryEndpoint.accountPool != null && GeonameQueryEndpoint.accountPool != accountPool) {
+            GeonameQueryEndpoint.accountPool.shutdown();
+        }
+        GeonameQueryEndpoint.accountPool = accountPool;
+    }
+    /**
+     * Shuts down the account pool (and the rate limiters of its accounts), if there is one; the next call to getAccountPool() creates a new one.
+     * This is called when the server (and this module) stops, see ServerStartStopListener.
+     */
+    public static synchronized void shutdownAccountPool()
+    {
+        setAccountPool(null);
+    }
+    /**
+     * Returns the rate limiter the calls to the Geonames RDF endpoint go through (that one doesn't work with accounts);
+     * by default, this is a token bucket configured with the Geonames settings.
+     */
+    public static synchronized RateLimiter getRateLimiter()
+    {
+        if (rateLimiter == null) {
+            Settings settings = Settings.instance();
+            rateLimiter = new TokenBucketRateLimiter("geonames", settings.getGeonamesBurstSize(), settings.getGeonamesRequestsPerHour(), 1, TimeUnit.HOURS);
+            ownRateLimiter = true;
+        }
+
+        return rateLimiter;
+    }
+    /**
+     * Replaces the RDF rate limiter of all Geonames endpoints (eg. to share it with other parts of the application)
+     */
+    public static synchronized void setRateLimiter(RateLimiter rateLimiter)
+    {
+        shutdownRateLimiter();
+        GeonameQueryEndpoint.rateLimiter = rateLimiter;
+    }
+    /**
+     * Shuts down the RDF rate limiter if we created it (one that was set from the outside is left alone) and releases it,
+     * so the next call to getRateLimiter() creates a new one. This is called when the server (and this module) stops, see ServerStartStopListener.
+     */
+    public static synchronized void shutdownRateLimiter()
+    {
+        if (ownRateLimiter && rateLimiter instanceof TokenBucketRateLimiter) {
+            ((TokenBucketRateLimiter) rateLimiter).shutdown();
+        }
+        rateLimiter = null;
+        ownRateLimiter = false;
+    }
+
     //-----PUBLIC METHODS-----
     @Override
     //Note: check the inner cache class if you add variables
     public Collection<AutocompleteSuggestion> search(RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults, SearchOption... options) throws IOException
     {
-        Collection<AutocompleteSuggestion> retVal = new ArrayList<>();
+        return Futures.await(this.searchAsync(resourceType, query, queryType, language, maxResults, options));
+    }
+    /**
+     * Asynchronous variant of search(): the remote calls are executed by the bounded pool of the HttpClientPool,
+     * so the calling thread is free to do other things while we wait for Geonames.
+     * The search gets the configured search timeout to come up with an answer (see below).
+     */
+    public CompletableFuture<Collection<AutocompleteSuggestion>> searchAsync(RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults,
+                                                                            SearchOption... options)
+    {
+        return this.searchAsync(resourceType, query, queryType, language, maxResults, Deadline.after(Settings.instance().getGeonamesSearchTimeout()), options);
+    }
+    /**
+     * Variant of searchAsync() for callers with their own deadline. The deadline is passed on to all nested searches and remote calls:
+     * the ones that would start after it are skipped, the time they may wait for the rate limiter is cut to what's left,
+     * and when it passes, we answer with what we have (possibly only the guesses of the local gazetteer), while the remote calls that are still on their way
+     * complete in the background (so their results still end up in the cache).
+     */
+    //Note: check the inner cache class if you add variables
+    public CompletableFuture<Collection<AutocompleteSuggestion>> searchAsync(RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults,
+                                                                            Deadline deadline, SearchOption... options)
+    {
+        CompletableFuture<Collection<AutocompleteSuggestion>> retVal = CompletableFuture.completedFuture(new ArrayList<>());
 
         //I guess an empty query can't yield any results, right?
         if (!StringUtils.isEmpty(query)) {
 
-            //use a cached result if it's there
+            //if we have a local gazetteer, it answers without any remote call; Geonames itself is only the fallback for what it doesn't know.
+            //Otherwise, use a cached result if it's there, or derive it from the cached result of a shorter prefix (eg. while the user is typing)
             CachedSearch cacheKey = new CachedSearch(this.geonameType, resourceType, query, queryType, language, options);
-            Collection<AutocompleteSuggestion> cachedResult = this.getCachedEntry(cacheKey);
+            Collection<AutocompleteSuggestion> cachedResult = this.searchGazetteer(resourceType, query, queryType, language, maxResults);
+            if (cachedResult == null) {
+                cachedResult = this.getCachedAnswer(cacheKey, maxResults);
+            }
 
-            if (cachedResult != null) {
-                retVal = cachedResult;
+            //when we (recently) learned Geonames doesn't know the place either, it's probably misspelled
+            if (cachedResult != null && cachedResult.isEmpty()) {
+                retVal = CompletableFuture.completedFuture(this.searchGazetteerFuzzy(resourceType, query, queryType, language, maxResults));
+            }
+            else if (cachedResult != null) {
+                retVal = CompletableFuture.completedFuture(cachedResult);
+            }
+            //no need to start anything if the caller doesn't want to wait for it anymore
+            else if (deadline.isExpired()) {
+                Logger.debug("Skipping Geonames search for '" + query + "', its deadline passed");
+                retVal = CompletableFuture.completedFuture(this.searchGazetteerFuzzy(resourceType, query, queryType, language, maxResults));
             }
             else {
-                ClientConfig config = new ClientConfig();
-                Client httpClient = ClientBuilder.newClient(config);
-                //for details, see http://www.geonames.org/export/geonames-search.html
-                UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/search")
-                                               .queryParam("username", this.username)
-                                               //no need to fetch the entire node; we'll do that during selection
-                                               //note: we select MEDIUM instead of SHORT to get the full country name (for cities)
-                                               //note: we select FULL instead of MEDIUM to get the parents-names to disambiguate in GeonameCitySuggestion.getSubTitle()
-                                               .queryParam("style", "FULL")
-                                               .queryParam("maxRows", maxResults)
-                                               //I think the default is "population", which seems to be more natural
-                                               // (better to find a large, more-or-less-good match, than to find the very specific wrong match)
-                                               //can be any of [population,elevation,relevance]
-                                               //Note: reverted to relevance (inspired by eg. Tielt-Winge, who kept on suggesting Houwaart because it has a higher population)
-                                               //Note 2: reverted to nothing (by the way, population doesn't seem to be the default) because of "Ger" in Normandy;
-                                               //        impossible to find in combination with name_startsWith (note: the API docs seem to say the orderby is only relevant for name_startsWith)
-                                               //.queryParam("orderby", "relevance")
-                                               .queryParam("type", "json");
-
-                //from the Geoname docs: needs to be query encoded (but builder.queryParam() does that for us, so don't encode twice!)!
-                switch (queryType) {
-                    case STARTS_WITH:
-                        builder.queryParam("name_startsWith", query);
-                        break;
-                    case NAME:
-                        builder.queryParam("name", query);
-                        break;
-                    case FULL:
-                        //Note that 'q' searches over everything (capital, continent, etc) of a place or country,
-                        // often resulting in a too-broad result set (often not sorted the way we want, so if we take the first, it's often very wrong)
-                        // but it does allow us to use terms like 'Halen,Belgium' to specify more precisely what we want.
-                        builder.queryParam("q", query);
-                        break;
-                    default:
-                        throw new IOException("Unsupported or unimplemented query type encountered, can't proceed; " + queryType);
-                }
-
-                if (geonameType.featureClasses != null) {
-                    for (String c : geonameType.featureClasses) {
-                        builder.queryParam("featureClass", c);
-                    }
-                }
-
-                if (geonameType.featureCodes != null) {
-                    for (String c : geonameType.featureCodes) {
-                        builder.queryParam("featureCode", c);
-                    }
-                }
-
-                if (language != null) {
-                    builder.queryParam("lang", language.getLanguage());
-                }
-
-                URI target = builder.build();
-                Response response = httpClient.target(target).request(MediaType.APPLICATION_JSON).get();
-                if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-                    JsonNode jsonNode = Json.getObjectMapper().readTree(response.readEntity(String.class));
-                    Iterator<JsonNode> geonames = jsonNode.path("geonames").elements();
-
-                    InjectableValues inject = new InjectableValues.Std().addValue(AbstractGeoname.RESOURCE_TYPE_INJECTABLE, resourceType.getCurieName());
-                    ObjectReader reader = Json.getObjectMapper().readerFor(geonameType.suggestionClass).with(inject);
-
-                    while (geonames.hasNext()) {
-                        try {
-                            retVal.add((AutocompleteSuggestion) reader.readValue(geonames.next()));
-                        }
-                        catch (Exception e) {
-                            Logger.error(query, e);
-                        }
-                    }
+                //a city query with a postal code (eg. 'Halen,3545,Belgium') can be answered in a few ways; instead of trying them one by one,
+                //we try them all at once and use the answer of the preferred one that found something
+                //(note that the results of the fallbacks don't match the query, so they can't be used to answer longer prefixes)
+                CompletableFuture<CachedSuggestions> result;
+                Matcher matcher = CITY_ZIP_COUNTRY_PATTERN.matcher(query);
+                if (this.geonameType.equals(AbstractGeoname.Type.CITY) && matcher.matches()) {
+                    String city = matcher.group(1);
+                    String zipCode = matcher.group(2);
+                    String country = matcher.group(3);
+                    result = new QueryPlanner<CachedSuggestions>("Geonames city search for '" + query + "'", deadline,
+                                                                 suggestions -> !suggestions.getSuggestions().isEmpty())
+                                    .add("query", () -> this.remoteSearch(resourceType, query, queryType, language, maxResults, deadline))
+                                    .add("postalCode", () -> this.postalCodeSearch(resourceType, city, zipCode, country, queryType, language, maxResults, deadline, options)
+                                                                 .thenApply(suggestions -> new CachedSuggestions(suggestions, false)))
+                                    //as a last resort, we omit the postal code
+                                    .add("withoutPostalCode", () -> this.searchAsync(resourceType, city + "," + country, queryType, language, maxResults, deadline, options)
+                                                                        .thenApply(suggestions -> new CachedSuggestions(suggestions, false)))
+                                    .execute();
                 }
                 else {
-                    throw new IOException("Error status returned while searching for geonames resource '" + query + "'; " + response);
-                }
-
-                //if we didn't find any result, use some heuristics to search a little deeper...
-                if (retVal.isEmpty()) {
-                    //for one, we can search deeper if we're dealing with a city
-                    if (this.geonameType.equals(AbstractGeoname.Type.CITY)) {
-                        retVal = this.deeperCitySearch(httpClient, resourceType, query, queryType, language, maxResults, options);
-                    }
+                    result = this.remoteSearch(resourceType, query, queryType, language, maxResults, deadline);
                 }
 
-                this.putCachedEntry(cacheKey, retVal);
+                retVal = deadline.bound(result.thenApply(suggestions -> {
+                    this.putCachedEntry(cacheKey, suggestions);
+                    //Geonames doesn't know the place either, so it's probably misspelled
+                    return suggestions.getSuggestions().isEmpty() ? this.searchGazetteerFuzzy(resourceType, query, queryType, language, maxResults)
+                                                                  : suggestions.getSuggestions();
+                }));
+
+                //when Geonames is down, we rather return what the gazetteer can guess (immediately) than to keep the user waiting for every keystroke
+                //(note that this result isn't cached, since it's not a real one)
+                retVal = Futures.recover(retVal, CircuitOpenException.class, () -> this.searchGazetteerFuzzy(resourceType, query, queryType, language, maxResults));
+                //same thing if the search (or all strategies of a city search) didn't make its deadline
+                retVal = Futures.recover(retVal, TimeoutException.class, () -> this.searchGazetteerFuzzy(resourceType, query, queryType, language, maxResults));
             }
         }
 
@@ -192,62 +270,94 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
     @Override
     public ResourceInfo getResource(RdfClass resourceType, URI resourceId, Locale language) throws IOException
     {
-        GeonameResourceInfo retVal = null;
+        return Futures.await(this.getResourceAsync(resourceType, resourceId, language));
+    }
+    /**
+     * Asynchronous variant of getResource()
+     */
+    public CompletableFuture<ResourceInfo> getResourceAsync(RdfClass resourceType, URI resourceId, Locale language)
+    {
+        CompletableFuture<ResourceInfo> retVal = CompletableFuture.completedFuture(null);
 
         if (resourceId != null && !resourceId.toString().isEmpty()) {
 
-            //use a cached result if it's there
+            //use the local gazetteer or a cached result if it's there (when it's getting old, it's refreshed in the background)
             CachedResource cacheKey = new CachedResource(resourceType, resourceId, language);
-            GeonameResourceInfo cachedResult = this.getCachedEntry(cacheKey);
+            GeonameResourceInfo cachedResult = this.getGazetteerResource(resourceType, resourceId, language);
+            if (cachedResult == null) {
+                cachedResult = this.getCachedEntry(cacheKey);
+            }
             if (cachedResult != null) {
-                retVal = cachedResult;
+                retVal = CompletableFuture.completedFuture(cachedResult);
+            }
+            //we recently learned this id doesn't exist
+            else if (this.isCachedMissing(cacheKey)) {
+                retVal = CompletableFuture.completedFuture(null);
             }
             else {
-                Client httpClient = null;
-                try {
-                    httpClient = ClientBuilder.newClient(new ClientConfig());
-
-                    RdfTools.RdfResourceUri rdfResourceUri = new RdfTools.RdfResourceUri(resourceId);
-                    UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/get")
-                                                   .queryParam("username", this.username)
-                                                   //we pass only the id, not the entire URI
-                                                   .queryParam("geonameId", rdfResourceUri.getResourceId())
-                                                   //when we query, we query for a lot
-                                                   .queryParam("style", "FULL")
-                                                   .queryParam("type", "json");
-
-                    if (language != null) {
-                        builder.queryParam("lang", language.getLanguage());
-                    }
-
-                    //Logger.info("Requesting "+builder.build());
-                    Response response = httpClient.target(builder.build()).request(MediaType.APPLICATION_JSON).get();
-                    if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+                //when Geonames is down (the circuit breaker is open), we act like we don't know the resource,
+                //but we don't remember that (so it's not cached as missing)
+                retVal = Futures.recover(this.fetchResourceAsync(cacheKey, RateLimiter.Priority.INTERACTIVE), CircuitOpenException.class, () -> null);
+            }
+        }
 
-                        InjectableValues inject = new InjectableValues.Std().addValue(AbstractGeoname.RESOURCE_TYPE_INJECTABLE, resourceType.getCurieName());
-                        ObjectReader reader = XML.getObjectMapper().readerFor(GeonameResourceInfo.class).with(inject);
+        return retVal;
+    }
+    /**
+     * Looks up a number of resources at once (eg. all places referenced by the pages we're re-indexing).
+     * Resources that don't exist (or that couldn't be fetched) are left out of the returned map.
+     */
+    public Map<URI, ResourceInfo> getResources(RdfClass resourceType, Collection<URI> resourceIds, Locale language) throws IOException
+    {
+        Map<URI, ResourceInfo> retVal = new ConcurrentHashMap<>();
 
-                        //note: the Geonames '/get' endpoint is XML only!
-                        retVal = reader.readValue(response.readEntity(String.class));
+        Futures.await(this.getResourcesAsync(resourceType, resourceIds, language, retVal::put));
 
-                        //API doesn't seem to return this -> set it manually
-                        retVal.setLanguage(language);
-                    }
-                    else {
-                        throw new IOException("Error status returned while searching for geonames id '" + resourceId + "'; " + response);
-                    }
-
-                    this.putCachedEntry(cacheKey, retVal);
+        return retVal;
+    }
+    /**
+     * Asynchronous variant of getResources(): the listener is called for every resource as soon as we have it (on the thread that fetched it)
+     * and the returned future completes when all resources were looked up.
+     * Resources we have locally (in the gazetteer or the cache) are passed to the listener right away; the rest is fetched from Geonames,
+     * but only a few at a time (see Settings.getGeonamesBulkConcurrency()) and with a background priority, so a big batch doesn't flood
+     * the queues of the rate limiter and the HTTP pool, and doesn't crowd out the calls someone is actively waiting for.
+     */
+    public CompletableFuture<Void> getResourcesAsync(RdfClass resourceType, Collection<URI> resourceIds, Locale language, BiConsumer<URI, ResourceInfo> listener)
+    {
+        Set<URI> remoteIds = new LinkedHashSet<>();
+        for (URI resourceId : resourceIds) {
+            if (resourceId != null && !resourceId.toString().isEmpty()) {
+                CachedResource cacheKey = new CachedResource(resourceType, resourceId, language);
+                GeonameResourceInfo cachedResult = this.getGazetteerResource(resourceType, resourceId, language);
+                if (cachedResult == null) {
+                    cachedResult = this.getCachedEntry(cacheKey);
                 }
-                finally {
-                    if (httpClient != null) {
-                        httpClient.close();
-                    }
+                if (cachedResult != null) {
+                    listener.accept(resourceId, cachedResult);
+                }
+                //no need to ask for the ids we recently learned don't exist
+                else if (!this.isCachedMissing(cacheKey)) {
+                    remoteIds.add(resourceId);
                 }
             }
         }
 
-        return retVal;
+        return Futures.forEach(remoteIds, Settings.instance().getGeonamesBulkConcurrency(),
+                               resourceId -> this.fetchResourceAsync(new CachedResource(resourceType, resourceId, language), RateLimiter.Priority.BACKGROUND),
+                               (resourceId, resourceInfo) -> {
+                                   if (resourceInfo != null) {
+                                       listener.accept(resourceId, resourceInfo);
+                                   }
+                               },
+                               (resourceId, error) -> {
+                                   if (error instanceof CircuitOpenException) {
+                                       //no need to flood the logs; the circuit breaker already logged why it opened
+                                       Logger.debug("Skipping Geonames resource " + resourceId + "; " + error.getMessage());
+                                   }
+                                   else {
+                                       Logger.error("Error while fetching Geonames resource " + resourceId, error);
+                                   }
+                               });
     }
     @Override
     public RdfProperty[] getLabelCandidates(RdfClass localResourceType)
@@ -267,67 +377,30 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
     @Override
     public Model getExternalRdfModel(RdfClass resourceType, URI resourceId, Locale language) throws IOException
     {
-        Model retVal = null;
+        return Futures.await(this.getExternalRdfModelAsync(resourceType, resourceId, language));
+    }
+    /**
+     * Asynchronous variant of getExternalRdfModel()
+     */
+    public CompletableFuture<Model> getExternalRdfModelAsync(RdfClass resourceType, URI resourceId, Locale language)
+    {
+        CompletableFuture<Model> retVal = CompletableFuture.completedFuture(null);
 
         if (resourceId != null && !resourceId.toString().isEmpty()) {
 
-            //use a cached result if it's there
+            //use a cached result if it's there (when it's getting old, it's refreshed in the background)
             CachedExternalModel cacheKey = new CachedExternalModel(resourceType, resourceId, language);
             Model cachedResult = this.getCachedEntry(cacheKey);
             if (cachedResult != null) {
-                retVal = cachedResult;
+                retVal = CompletableFuture.completedFuture(cachedResult);
+            }
+            //we recently learned this resource doesn't exist
+            else if (this.isCachedMissing(cacheKey)) {
+                retVal = CompletableFuture.completedFuture(null);
             }
             else {
-                Client httpClient = null;
-
-                try {
-                    httpClient = ClientBuilder.newClient(new ClientConfig());
-
-                    //Note: when opened in the browser, this will actually redirect to an "about.rdf" page,
-                    // but this is the main subject of our RDF we'll use in the SPARQL below too
-                    URI rdfUri = this.getExternalResourceId(resourceId, language);
-
-                    //this seems to be the only RDF format that's accepted
-                    //TODO the geonames endpoint is limited to 2000 requests per hour, we should probably throttle this
-                    Response response = httpClient.target(rdfUri).request("application/rdf+xml").get();
-                    if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-                        //this will hold subjects about the resource and it's relationship with the about page,
-                        //but we're only interested in the raw resource statements, so filter out the rest
-                        //because it makes more sense: we're asking for a specific resource,
-                        //so it's normal all statements have that resource as subject
-                        Model remoteModel = new SesameImporter(Format.RDF_XML).importDocument(rdfUri, new ByteArrayInputStream(response.readEntity(String.class).getBytes()));
-
-                        // For debug
-                        //                Exporter exporter = new SesameExporter(Format.NTRIPLES);
-                        //                ByteArrayOutputStream exportData = new ByteArrayOutputStream();
-                        //                exporter.exportModel(remoteModel, exportData);
-                        //                Logger.info(exportData);
-
-                        //if we get here, it means we have a model, empty or not
-                        retVal = new LinkedHashModel();
-
-                        String rdfUriStr = rdfUri.toString();
-                        for (Statement statement : remoteModel) {
-                            //Filter only those statements about the external resource id returned by getExternalResourceId()
-                            //Note that this works together with the getExternalResourceId() method,
-                            //so it's possible to query the triplestore using the return value of that method
-                            if (statement.getSubject().stringValue().equals(rdfUriStr)) {
-                                retVal.add(statement);
-                            }
-                        }
-                    }
-                    else {
-                        throw new IOException("Geonames RDF endpoint returned unexpected http code (" + response.getStatus() + ") when fetching dependency model for " + resourceId + "; " +
-                                              response.getStatusInfo().getReasonPhrase());
-                    }
-
-                    this.putCachedEntry(cacheKey, retVal);
-                }
-                finally {
-                    if (httpClient != null) {
-                        httpClient.close();
-                    }
-                }
+                //same as getResourceAsync(): no model (and nothing cached) when Geonames is down
+                retVal = Futures.recover(this.fetchExternalRdfModelAsync(cacheKey), CircuitOpenException.class, () -> null);
             }
         }
 
@@ -342,141 +415,556 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
     //-----PROTECTED METHODS-----
 
     //-----PRIVATE METHODS-----
-    private synchronized Collection<AutocompleteSuggestion> getCachedEntry(CachedSearch query)
+    /**
+     * Asks Geonames itself
+     */
+    private CompletableFuture<CachedSuggestions> remoteSearch(RdfClass resourceType, String query, QueryType queryType, Locale language, int maxResults, Deadline deadline)
+    {
+        return this.<CachedSuggestions>remoteGet(username -> this.buildSearchUri(username, query, queryType, language, maxResults),
+                                                 MediaType.APPLICATION_JSON, RateLimiter.Priority.INTERACTIVE, deadline, response -> {
+            Collection<AutocompleteSuggestion> suggestions = new ArrayList<>();
+
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                InjectableValues inject = new InjectableValues.Std().addValue(AbstractGeoname.RESOURCE_TYPE_INJECTABLE, resourceType.getCurieName());
+                ObjectReader reader = Json.getObjectMapper().readerFor(geonameType.suggestionClass).with(inject);
+
+                //the FULL style makes these responses quite large, so we bind the suggestions straight from the stream,
+                //instead of reading the entire thing in a string and a tree first
+                try (JsonParser parser = Json.getObjectMapper().getFactory().createParser(response.getEntity().getContent())) {
+                    this.readSuggestions(parser, reader, maxResults, suggestions);
+                }
+                //we can't recover from a malformed result in the middle of the stream, but we keep what we have so far
+                catch (JsonProcessingException e) {
+                    Logger.error(query, e);
+                }
+            }
+            else {
+                throw new IOException("Error status returned while searching for geonames resource '" + query + "'; " + response);
+            }
+
+            //if Geonames returned less than we asked for, these are all the matches there are
+            return new CachedSuggestions(suggestions, suggestions.size() < maxResults);
+        });
+    }
+    /**
+     * Returns the exact matches of the local gazetteer, or null if we don't have one or if it doesn't know any matches.
+     */
+    private Collection<AutocompleteSuggestion> searchGazetteer(RdfClass resourceType, String query, QueryType queryType, Locale language, int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
+
+        GeonamesGazetteer gazetteer = GeonamesGazetteer.instance();
+        if (gazetteer != null) {
+            retVal = gazetteer.search(this.geonameType, resourceType.getCurieName(), query, queryType, language, maxResults);
+            if (retVal.isEmpty()) {
+                retVal = null;
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the places in the local gazetteer with a name that looks like the query (eg. with a typo), or an empty list if there are none.
+     * The gazetteer is usually built from a dump with only the larger places, so this is only used when Geonames doesn't know the place either
+     * (or can't be asked); otherwise, we would 'correct' the correctly spelled names of smaller places into the names of larger ones.
+     */
+    private Collection<AutocompleteSuggestion> searchGazetteerFuzzy(RdfClass resourceType, String query, QueryType queryType, Locale language, int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = new ArrayList<>();
+
+        GeonamesGazetteer gazetteer = GeonamesGazetteer.instance();
+        if (gazetteer != null) {
+            retVal = gazetteer.searchFuzzy(this.geonameType, resourceType.getCurieName(), query, queryType, language, maxResults,
+                                           Settings.instance().getGeonamesGazetteerFuzzyMaxDistance());
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the places with the postal code in the local gazetteer, or null if we don't have one or if it doesn't know the postal code
+     */
+    private Collection<AutocompleteSuggestion> searchGazetteerPostalCode(RdfClass resourceType, String city, String postalCode, String countryCode, Locale language,
+                                                                         int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
+
+        GeonamesGazetteer gazetteer = GeonamesGazetteer.instance();
+        if (gazetteer != null) {
+            retVal = gazetteer.searchPostalCode(this.geonameType, resourceType.getCurieName(), city, postalCode, countryCode, language, maxResults);
+            if (retVal.isEmpty()) {
+                retVal = null;
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the resource from the local gazetteer, or null if we don't have one or if it doesn't know the resource
+     */
+    private GeonameResourceInfo getGazetteerResource(RdfClass resourceType, URI resourceId, Locale language)
+    {
+        GeonameResourceInfo retVal = null;
+
+        GeonamesGazetteer gazetteer = GeonamesGazetteer.instance();
+        if (gazetteer != null) {
+            retVal = gazetteer.getResource(resourceType.getCurieName(), new RdfTools.RdfResourceUri(resourceId).getResourceId(), language);
+        }
+
+        return retVal;
+    }
+    /**
+     * Fetches the resource info from Geonames and caches the result (both if it exists and if it doesn't)
+     */
+    private CompletableFuture<ResourceInfo> fetchResourceAsync(CachedResource cacheKey, RateLimiter.Priority priority)
     {
-        return (Collection<AutocompleteSuggestion>) this.getGeonameCache().get(query);
+        RdfTools.RdfResourceUri rdfResourceUri = new RdfTools.RdfResourceUri(cacheKey.resourceId);
+
+        //Logger.info("Requesting "+builder.build());
+        return this.<GeonameResourceInfo>remoteGet(username -> {
+            UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/get")
+                                           .queryParam("username", username)
+                                           //we pass only the id, not the entire URI
+                                           .queryParam("geonameId", rdfResourceUri.getResourceId())
+                                           //when we query, we query for a lot
+                                           .queryParam("style", "FULL")
+                                           .queryParam("type", "json");
+
+            if (cacheKey.language != null) {
+                builder.queryParam("lang", cacheKey.language.getLanguage());
+            }
+
+            return builder.build();
+        }, MediaType.APPLICATION_JSON, priority, Deadline.NONE, response -> {
+            GeonameResourceInfo resourceInfo = null;
+
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+
+                InjectableValues inject = new InjectableValues.Std().addValue(AbstractGeoname.RESOURCE_TYPE_INJECTABLE, cacheKey.resourceType.getCurieName());
+                ObjectReader reader = XML.getObjectMapper().readerFor(GeonameResourceInfo.class).with(inject);
+
+                //note: the Geonames '/get' endpoint is XML only!
+                String xml = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                //errors look like <geonames><status message="..." value="19"/></geonames>
+                boolean missing = false;
+                if (xml.contains("<status")) {
+                    JsonNode root = XML.getObjectMapper().readTree(xml);
+                    GeonamesAccountPool.checkStatus(root);
+                    int statusCode = root.path("status").path("value").asInt();
+                    missing = statusCode == STATUS_RECORD_DOES_NOT_EXIST || statusCode == STATUS_NO_RESULT_FOUND;
+                }
+
+                if (!missing) {
+                    resourceInfo = reader.readValue(xml);
+
+                    //API doesn't seem to return this -> set it manually
+                    resourceInfo.setLanguage(cacheKey.language);
+                }
+            }
+            else {
+                throw new IOException("Error status returned while searching for geonames id '" + cacheKey.resourceId + "'; " + response);
+            }
+
+            return resourceInfo;
+        }).thenApply(resourceInfo -> {
+            if (resourceInfo != null) {
+                this.putCachedEntry(cacheKey, resourceInfo);
+            }
+            else {
+                this.putCachedMissing(cacheKey);
+            }
+            return resourceInfo;
+        });
     }
-    private synchronized void putCachedEntry(CachedSearch key, Collection<AutocompleteSuggestion> results)
+    /**
+     * Fetches the RDF model from Geonames and caches the result (both if it exists and if it doesn't)
+     */
+    private CompletableFuture<Model> fetchExternalRdfModelAsync(CachedExternalModel cacheKey)
     {
-        this.getGeonameCache().put(key, results);
+        //Note: when opened in the browser, this will actually redirect to an "about.rdf" page,
+        // but this is the main subject of our RDF we'll use in the SPARQL below too
+        URI rdfUri = this.getExternalResourceId(cacheKey.resourceId, cacheKey.language);
+
+        //this seems to be the only RDF format that's accepted
+        //Note: the geonames endpoint is limited to 2000 requests per hour, so this passes the rate limiter,
+        //      but with a low priority because nobody is actively waiting for it
+        return this.<Model>remoteGet(rdfUri, "application/rdf+xml", RateLimiter.Priority.BACKGROUND, Deadline.NONE, response -> {
+            Model model = null;
+
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                //this will hold subjects about the resource and it's relationship with the about page,
+                //but we're only interested in the raw resource statements, so filter out the rest
+                //because it makes more sense: we're asking for a specific resource,
+                //so it's normal all statements have that resource as subject
+                //Filter only those statements about the external resource id returned by getExternalResourceId()
+                //Note that this works together with the getExternalResourceId() method,
+                //so it's possible to query the triplestore using the return value of that method
+                //Also note that we filter while parsing, straight from the stream, so the rest of the document is never kept in memory
+                //if we get here, it means we have a model, empty or not
+                model = SubjectFilteringRdfHandler.parse(response.getEntity().getContent(), RDFFormat.RDFXML, rdfUri.toString(), rdfUri.toString());
+            }
+            //an unknown geonameId; we return null, like for an empty resource id
+            else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                model = null;
+            }
+            else {
+                throw new IOException("Geonames RDF endpoint returned unexpected http code (" + response.getStatusLine().getStatusCode() + ") when fetching dependency model for " +
+                                      cacheKey.resourceId + "; " + response.getStatusLine().getReasonPhrase());
+            }
+
+            return model;
+        }).thenApply(model -> {
+            if (model != null) {
+                this.putCachedEntry(cacheKey, model);
+            }
+            else {
+                this.putCachedMissing(cacheKey);
+            }
+            return model;
+        });
     }
-    private synchronized GeonameResourceInfo getCachedEntry(CachedResource query)
+    /**
+     * All calls to the Geonames API should pass here, so they're spread over our accounts and subject to their quota.
+     * The target is built with the username of the account that will be used for the call.
+     */
+    private <T> CompletableFuture<T> remoteGet(TargetBuilder target, String mediaType, RateLimiter.Priority priority, Deadline deadline, ResponseHandler<? extends T> handler)
     {
-        return (GeonameResourceInfo) this.getGeonameCache().get(query);
+        CompletableFuture<T> retVal;
+
+        //don't spend any quota on calls that won't be executed anyway
+        if (!HttpClientPool.instance().isAvailable(RemoteHost.GEONAMES)) {
+            retVal = Futures.failed(new CircuitOpenException(RemoteHost.GEONAMES));
+        }
+        else if (deadline.isExpired()) {
+            retVal = Futures.failed(new TimeoutException("Deadline passed before the Geonames call could start"));
+        }
+        else {
+            retVal = getAccountPool().execute(priority, deadline.limit(Settings.instance().getGeonamesMaxWait(priority)),
+                                              username -> HttpClientPool.instance().getAsync(target.build(username), mediaType, handler));
+        }
+
+        return retVal;
     }
-    private synchronized void putCachedEntry(CachedResource key, GeonameResourceInfo results)
+    /**
+     * All calls to the Geonames RDF endpoint should pass here, so they're subject to the rate limiter
+     */
+    private <T> CompletableFuture<T> remoteGet(URI target, String mediaType, RateLimiter.Priority priority, Deadline deadline, ResponseHandler<? extends T> handler)
     {
-        this.getGeonameCache().put(key, results);
+        CompletableFuture<T> retVal;
+
+        RemoteHost host = RemoteHost.forUri(target);
+        if (!HttpClientPool.instance().isAvailable(host)) {
+            retVal = Futures.failed(new CircuitOpenException(host));
+        }
+        else if (deadline.isExpired()) {
+            retVal = Futures.failed(new TimeoutException("Deadline passed before the Geonames call could start"));
+        }
+        else {
+            retVal = getRateLimiter().acquire(priority, deadline.limit(Settings.instance().getGeonamesMaxWait(priority)))
+                                     .thenCompose(permit -> HttpClientPool.instance().getAsync(target, mediaType, handler));
+        }
+
+        return retVal;
     }
-    private synchronized Model getCachedEntry(CachedExternalModel externalModel)
+    /**
+     * Reads the search results from the parser into the collection, stopping after maxResults suggestions.
+     * Only the 'geonames' array and the 'status' object (if Geonames returns an error) are read, the rest is skipped.
+     */
+    private void readSuggestions(JsonParser parser, ObjectReader reader, int maxResults, Collection<AutocompleteSuggestion> suggestions) throws IOException
     {
-        return (Model) this.getGeonameCache().get(externalModel);
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME && suggestions.size() < maxResults) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (fieldName.equals("geonames") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT && suggestions.size() < maxResults) {
+                        //this only binds the properties the suggestion class knows about and skips the rest
+                        suggestions.add(reader.readValue(parser));
+                    }
+                }
+                else if (fieldName.equals("status")) {
+                    GeonamesAccountPool.checkStatusNode(parser.readValueAsTree());
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
     }
-    private synchronized void putCachedEntry(CachedExternalModel key, Model model)
+    private URI buildSearchUri(String username, final String query, QueryType queryType, Locale language, int maxResults) throws IOException
     {
-        this.getGeonameCache().put(key, model);
+        //for details, see http://www.geonames.org/export/geonames-search.html
+        UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/search")
+                                       .queryParam("username", username)
+                                       //no need to fetch the entire node; we'll do that during selection
+                                       //note: we select MEDIUM instead of SHORT to get the full country name (for cities)
+                                       //note: we select FULL instead of MEDIUM to get the parents-names to disambiguate in GeonameCitySuggestion.getSubTitle()
+                                       .queryParam("style", "FULL")
+                                       .queryParam("maxRows", maxResults)
+                                       //I think the default is "population", which seems to be more natural
+                                       // (better to find a large, more-or-less-good match, than to find the very specific wrong match)
+                                       //can be any of [population,elevation,relevance]
+                                       //Note: reverted to relevance (inspired by eg. Tielt-Winge, who kept on suggesting Houwaart because it has a higher population)
+                                       //Note 2: reverted to nothing (by the way, population doesn't seem to be the default) because of "Ger" in Normandy;
+                                       //        impossible to find in combination with name_startsWith (note: the API docs seem to say the orderby is only relevant for name_startsWith)
+                                       //.queryParam("orderby", "relevance")
+                                       .queryParam("type", "json");
+
+        //from the Geoname docs: needs to be query encoded (but builder.queryParam() does that for us, so don't encode twice!)!
+        switch (queryType) {
+            case STARTS_WITH:
+                builder.queryParam("name_startsWith", query);
+                break;
+            case NAME:
+                builder.queryParam("name", query);
+                break;
+            case FULL:
+                //Note that 'q' searches over everything (capital, continent, etc) of a place or country,
+                // often resulting in a too-broad result set (often not sorted the way we want, so if we take the first, it's often very wrong)
+                // but it does allow us to use terms like 'Halen,Belgium' to specify more precisely what we want.
+                builder.queryParam("q", query);
+                break;
+            default:
+                throw new IOException("Unsupported or unimplemented query type encountered, can't proceed; " + queryType);
+        }
+
+        if (geonameType.featureClasses != null) {
+            for (String c : geonameType.featureClasses) {
+                builder.queryParam("featureClass", c);
+            }
+        }
+
+        if (geonameType.featureCodes != null) {
+            for (String c : geonameType.featureCodes) {
+                builder.queryParam("featureCode", c);
+            }
+        }
+
+        if (language != null) {
+            builder.queryParam("lang", language.getLanguage());
+        }
+
+        return builder.build();
     }
-    private synchronized Cache getGeonameCache()
+    private CachedSuggestions getCachedEntry(CachedSearch query)
     {
-        if (!R.cacheManager().cacheExists(com.beligum.blocks.ontologies.commons.config.CacheKeys.GEONAMES_CACHED_RESULTS.name())) {
-            //we instance a cache where it's entries live for one hour (both from creation time as from last accessed time),
-            //doesn't overflow to disk and keep at most 100 results
-            R.cacheManager().registerCache(new EhCacheAdaptor(com.beligum.blocks.ontologies.commons.config.CacheKeys.GEONAMES_CACHED_RESULTS.name(), 100, false, false, 60 * 60, 60 * 60));
+        CachedSuggestions retVal = (CachedSuggestions) CacheKeys.GEONAMES_CACHED_SEARCHES.getCache().get(query);
+
+        if (retVal == null) {
+            retVal = (CachedSuggestions) CacheKeys.NEGATIVE_RESULTS.getCache().get(query);
         }
 
-        return R.cacheManager().getCache(com.beligum.blocks.ontologies.commons.config.CacheKeys.GEONAMES_CACHED_RESULTS.name());
+        return retVal;
+    }
+    /**
+     * Empty results go to the negative cache, so they expire sooner and don't push out the real results
+     */
+    private void putCachedEntry(CachedSearch key, CachedSuggestions results)
+    {
+        if (results.getSuggestions().isEmpty()) {
+            CacheKeys.NEGATIVE_RESULTS.getCache().put(key, results);
+        }
+        else {
+            CacheKeys.GEONAMES_CACHED_SEARCHES.getCache().put(key, results);
+        }
+    }
+    /**
+     * Looks up the cached answer of the search, or null if we need to go remote.
+     * Autocomplete searches with one keystroke more than the previous one, so for STARTS_WITH queries, we walk back the shorter prefixes of the query
+     * and if one of them has a complete cached result, we filter it locally (and cache that as well, since it's complete too).
+     * Queries with a comma (eg. 'Valkenburg,6305,Netherlands') are skipped, because Geonames doesn't match those on the name alone.
+     */
+    private Collection<AutocompleteSuggestion> getCachedAnswer(CachedSearch key, int maxResults)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
+
+        CachedSuggestions cachedResult = this.getCachedEntry(key);
+        if (cachedResult != null) {
+            retVal = cachedResult.answer(maxResults);
+        }
+
+        if (retVal == null && key.queryType == QueryType.STARTS_WITH && !key.query.contains(",")) {
+            for (int i = key.query.length() - 1; retVal == null && i > 0; i--) {
+                String prefix = key.query.substring(0, i);
+                CachedSuggestions prefixResult = this.getCachedEntry(new CachedSearch(key.geonameType, key.resourceType, prefix, key.queryType, key.language, key.options));
+                if (prefixResult != null) {
+                    retVal = prefixResult.deriveForPrefix(prefix, key.query, maxResults);
+                    if (retVal != null) {
+                        this.putCachedEntry(key, new CachedSuggestions(retVal, retVal.size() < maxResults));
+                    }
+                }
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Nobody should wait for a resource we already have, so old entries are refreshed in the background (with a low priority)
+     */
+    private GeonameResourceInfo getCachedEntry(CachedResource query)
+    {
+        return CACHED_RESOURCES.get(query, () -> this.fetchResourceAsync(query, RateLimiter.Priority.BACKGROUND));
+    }
+    private void putCachedEntry(CachedResource key, GeonameResourceInfo results)
+    {
+        CACHED_RESOURCES.put(key, results);
+    }
+    /**
+     * The models are cached in two tiers: in memory and in the persistent store (that survives restarts).
+     * Like the resources, old models in memory are refreshed in the background.
+     */
+    private Model getCachedEntry(CachedExternalModel externalModel)
+    {
+        Model retVal = CACHED_MODELS.get(externalModel, () -> this.fetchExternalRdfModelAsync(externalModel));
+
+        if (retVal == null) {
+            URI externalId = this.getExternalResourceId(externalModel.resourceId, externalModel.language);
+            retVal = PersistentModelStore.instance().get(externalId.toString(), Settings.instance().getModelStoreMaxAge() * 1000);
+            if (retVal != null) {
+                CACHED_MODELS.put(externalModel, retVal);
+            }
+        }
+
+        return retVal;
+    }
+    private void putCachedEntry(CachedExternalModel key, Model model)
+    {
+        CACHED_MODELS.put(key, model);
+        PersistentModelStore.instance().put(this.getExternalResourceId(key.resourceId, key.language).toString(), model);
+    }
+    private boolean isCachedMissing(Object key)
+    {
+        return CacheKeys.NEGATIVE_RESULTS.getCache().get(key) != null;
+    }
+    private void putCachedMissing(Object key)
+    {
+        CacheKeys.NEGATIVE_RESULTS.getCache().put(key, Boolean.TRUE);
     }
     /**
      * Geonames allows for search queries like 'Valkenburg,6305,Netherlands' where the postalCode is specified to disambiguate between places with the same name,
      * but from time to time, the name of the city doesn't match with the official name of the city for that specific postal code.
      * This method allows us to use queries like the one above, and use the Geonames postalCodeSearch endpoint to query the official name of that city.
      * Note that we have to do a two-step search because the postalCodeSearch doesn't seem to return the geoname ID...
+     * If the local gazetteer knows the postal code, it answers in a single local lookup instead.
+     * This is one of the strategies of the query plan of such queries, see searchAsync().
      */
-    private Collection<AutocompleteSuggestion> deeperCitySearch(Client httpClient, RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults,
-                                                                SearchOption... options)
+    private CompletableFuture<Collection<AutocompleteSuggestion>> postalCodeSearch(RdfClass resourceType, String city, String zipCode, String country, QueryType queryType,
+                                                                                   Locale language, int maxResults, Deadline deadline, SearchOption... options)
     {
-        Collection<AutocompleteSuggestion> retVal = new ArrayList<>();
+        CompletableFuture<Collection<AutocompleteSuggestion>> retVal = CompletableFuture.completedFuture(new ArrayList<>());
 
-        try {
-            //this format allows us to specify an exact zip code, but if the known name doesn't match
-            Matcher matcher = CITY_ZIP_COUNTRY_PATTERN.matcher(query);
-            if (matcher.matches() && matcher.groupCount() == 3) {
-                String city = matcher.group(1);
-                String zipCode = matcher.group(2);
-                String country = matcher.group(3);
-
-                //TODO fast and silly first implementation for our specific needs
-                //see http://www.geonames.org/countries/
-                String countryCode = null;
-                if (country.equals("Belgium")) {
-                    countryCode = "BE";
-                }
-                else if (country.equals("Netherlands")) {
-                    countryCode = "NL";
-                }
-                else if (country.equals("France")) {
-                    countryCode = "FR";
-                }
-                else if (country.equals("Germany")) {
-                    countryCode = "DE";
-                }
-                else if (country.equals("United Kingdom")) {
-                    countryCode = "GB";
-                }
-                else if (country.equals("Hungary")) {
-                    countryCode = "HU";
+        String countryCode = this.toCountryCode(country);
+        //if we have the postal codes locally, we can skip all remote calls
+        Collection<AutocompleteSuggestion> localResult = countryCode == null ? null : this.searchGazetteerPostalCode(resourceType, city, zipCode, countryCode, language, maxResults);
+        if (localResult != null) {
+            retVal = CompletableFuture.completedFuture(localResult);
+        }
+        else if (countryCode != null) {
+            Logger.info("Searching Geonames city '" + city + "' a bit deeper because we have a postal code.");
+
+            retVal = this.<String>remoteGet(username -> {
+                UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/postalCodeSearch")
+                                               .queryParam("username", username)
+                                               //.queryParam("postalcode", zipCode)
+                                               .queryParam("placename", city)
+                                               .queryParam("country", countryCode)
+                                               //reasonable value?
+                                               .queryParam("maxRows", 20)
+                                               .queryParam("type", "json");
+                if (language != null) {
+                    builder.queryParam("lang", language.getLanguage());
                 }
 
-                if (countryCode != null) {
-                    Logger.info("Didn't find any Geonames city result for '" + query + "', searching a bit deeper because we have a postal code.");
-
-                    UriBuilder builder = UriBuilder.fromUri("http://api.geonames.org/postalCodeSearch")
-                                                   .queryParam("username", this.username)
-                                                   //.queryParam("postalcode", zipCode)
-                                                   .queryParam("placename", city)
-                                                   .queryParam("country", countryCode)
-                                                   //reasonable value?
-                                                   .queryParam("maxRows", 20)
-                                                   .queryParam("type", "json");
-                    if (language != null) {
-                        builder.queryParam("lang", language.getLanguage());
-                    }
-
-                    String placeName = null;
-                    URI target = builder.build();
-                    Response response = httpClient.target(target).request(MediaType.APPLICATION_JSON).get();
-                    if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-                        JsonNode jsonNode = Json.getObjectMapper().readTree(response.readEntity(String.class));
-                        Iterator<JsonNode> postalCodes = jsonNode.path("postalCodes").elements();
-                        //we're only searching for one
-                        while (postalCodes.hasNext()) {
-                            JsonNode pc = postalCodes.next();
-                            JsonNode postalCodeNode = pc.get("postalCode");
-                            JsonNode placeNameNode = pc.get("placeName");
-                            if (postalCodeNode != null && placeNameNode != null && postalCodeNode.textValue().equals(zipCode)) {
-                                placeName = placeNameNode.textValue();
-                            }
+                return builder.build();
+            }, MediaType.APPLICATION_JSON, RateLimiter.Priority.INTERACTIVE, deadline, response -> {
+                String name = null;
+
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    JsonNode jsonNode = Json.getObjectMapper().readTree(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                    GeonamesAccountPool.checkStatus(jsonNode);
+                    Iterator<JsonNode> postalCodes = jsonNode.path("postalCodes").elements();
+                    //we're only searching for one
+                    while (postalCodes.hasNext()) {
+                        JsonNode pc = postalCodes.next();
+                        JsonNode postalCodeNode = pc.get("postalCode");
+                        JsonNode placeNameNode = pc.get("placeName");
+                        if (postalCodeNode != null && placeNameNode != null && postalCodeNode.textValue().equals(zipCode)) {
+                            name = placeNameNode.textValue();
                         }
                     }
+                }
 
-                    if (placeName != null) {
-                        //use the new, queried name to search again
-                        //Note that this is a source for infinite recursion if this query doesn't yield any results, but it should, cause we just looked it up (but will be using a different endpoint during search())
-                        //Update: encountered a lot of errors when including the zipCode again, omitting it and hoping for the best...
-                        //String newQuery = placeName+","+zipCode+","+countryCode;
-                        String newQuery = placeName + "," + countryCode;
-                        retVal = this.search(resourceType, newQuery, queryType, language, maxResults, options);
-                    }
+                return name;
+            }).thenCompose(placeName -> {
+                CompletableFuture<Collection<AutocompleteSuggestion>> result = CompletableFuture.completedFuture(new ArrayList<>());
+
+                if (placeName != null) {
+                    //use the new, queried name to search again
+                    //Note that this is a source for infinite recursion if this query doesn't yield any results, but it should, cause we just looked it up (but will be using a different endpoint during search())
+                    //Update: encountered a lot of errors when including the zipCode again, omitting it and hoping for the best...
+                    //String newQuery = placeName+","+zipCode+","+countryCode;
+                    String newQuery = placeName + "," + countryCode;
+                    result = this.searchAsync(resourceType, newQuery, queryType, language, maxResults, deadline, options);
                 }
-                else {
-                    Logger.warn("Unknown country '" + country + "'; can't translate it to a country code and can't use deeper search");
+
+                return result;
+            });
+        }
+        else {
+            //this runs on every keystroke of a city search with a postal code, so while the country is being typed, this is normal
+            Logger.debug("Unknown country '" + country + "'; can't translate it to a country code and can't use deeper search");
+        }
+
+        //don't let this additional search ruin the query, log and eat it
+        return retVal.exceptionally(e -> {
+            Logger.error("Error happened while search a bit deeper for a city resource for '" + city + "," + zipCode + "," + country + "'; ", Futures.unwrap(e));
+            return new ArrayList<>();
+        });
+    }
+    /**
+     * Translates the name (in any language Java knows about) or the ISO 3166 code (two or three letters) of a country to its two letter code,
+     * or returns null if we don't know it
+     */
+    private String toCountryCode(String country)
+    {
+        return getCountryCodes().get(CachedSuggestions.normalize(country));
+    }
+    private static synchronized Map<String, String> getCountryCodes()
+    {
+        if (countryCodes == null) {
+            //see http://www.geonames.org/countries/
+            Set<Locale> languages = new LinkedHashSet<>();
+            for (Locale locale : Locale.getAvailableLocales()) {
+                if (!locale.getLanguage().isEmpty()) {
+                    languages.add(new Locale(locale.getLanguage()));
                 }
+            }
 
-                //as a last try, we omit the postal code and re-launch the search query one more time without postal code
-                if (retVal.isEmpty()) {
-                    String newQuery = city + "," + country;
-                    retVal = this.search(resourceType, newQuery, queryType, language, maxResults, options);
+            Map<String, String> codes = new HashMap<>();
+            for (String code : Locale.getISOCountries()) {
+                Locale country = new Locale("", code);
+                codes.put(CachedSuggestions.normalize(code), code);
+                try {
+                    codes.put(CachedSuggestions.normalize(country.getISO3Country()), code);
+                }
+                catch (MissingResourceException e) {
+                    //no three letter code for this one
+                }
+                for (Locale language : languages) {
+                    codes.putIfAbsent(CachedSuggestions.normalize(country.getDisplayCountry(language)), code);
                 }
             }
-        }
-        //don't let this additional search ruin the query, log and eat it
-        catch (Exception e) {
-            Logger.error("Error happened while search a bit deeper for a city resource for '" + query + "'; ", e);
+
+            countryCodes = codes;
         }
 
-        return retVal;
+        return countryCodes;
     }
 
+    private interface TargetBuilder
+    {
+        URI build(String username) throws IOException;
+    }
     /**
      * This class makes sure the hashmap takes all query parameters into account while caching the resutls
      */
@@ -587,15 +1075,16 @@ public class GeonameQueryEndpoint implements RdfQueryEndpoint
         }
     }
 
-    private static class CachedExternalModel
+    //Note: this one is serializable (and only holds the name of the resource type) because the models can overflow to disk
+    private static class CachedExternalModel implements Serializable
     {
-        private RdfClass resourceType;
+        private URI resourceType;
         private URI resourceId;
         private Locale language;
 
         public CachedExternalModel(RdfClass resourceType, URI resourceId, Locale language)
         {
-            this.resourceType = resourceType;
+            this.resourceType = resourceType == null ? null : resourceType.getCurieName();
             this.resourceId = resourceId;
             this.language = language;
         }
@@ -52,6 +52,17 @@ public class GeonameResourceInfo extends AbstractGeoname implements ResourceInfo
     public GeonameResourceInfo()
     {
     }
+    /**
+     * Used by the local gazetteer
+     */
+    GeonameResourceInfo(URI resourceType, String geonameId, String name, String toponymName, Locale language)
+    {
+        this.resourceType = resourceType;
+        this.geonameId = geonameId;
+        this.name = name;
+        this.toponymName = toponymName;
+        this.language = language;
+    }
 
     //-----PUBLIC METHODS-----
     @Override
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import com.beligum.blocks.ontologies.commons.utils.TokenBucketRateLimiter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Geonames user account, together with its own quota accounting and some usage metrics.
+ */
+public class GeonamesAccount
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+    private final String username;
+    private final TokenBucketRateLimiter rateLimiter;
+    private final AtomicLong requests;
+    private final AtomicLong failures;
+    private final AtomicLong limitsExceeded;
+    private volatile long suspendedUntil;
+
+    //-----CONSTRUCTORS-----
+    public GeonamesAccount(String username, TokenBucketRateLimiter rateLimiter)
+    {
+        this.username = username;
+        this.rateLimiter = rateLimiter;
+        this.requests = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.limitsExceeded = new AtomicLong();
+        this.suspendedUntil = 0;
+    }
+
+    //-----PUBLIC METHODS-----
+    public String getUsername()
+    {
+        return username;
+    }
+    public TokenBucketRateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+    /**
+     * The number of calls that were sent to Geonames using this account
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+    /**
+     * The number of calls that failed for other reasons than the quota of this account
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+    /**
+     * The number of times Geonames told us this account can't be used (most likely because it's over quota)
+     */
+    public long getLimitExceededCount()
+    {
+        return limitsExceeded.get();
+    }
+    /**
+     * The number of calls this account can make right now without waiting
+     */
+    public int getAvailableTokens()
+    {
+        return this.rateLimiter.getAvailableTokens();
+    }
+    /**
+     * The moment (in epoch millis) until which this account won't be used anymore, or 0 if it was never suspended
+     */
+    public long getSuspendedUntil()
+    {
+        return suspendedUntil;
+    }
+    public boolean isSuspended(long now)
+    {
+        return this.suspendedUntil > now;
+    }
+    @Override
+    public String toString()
+    {
+        return "GeonamesAccount{" +
+               "username='" + username + '\'' +
+               ", requests=" + requests +
+               ", failures=" + failures +
+               ", limitsExceeded=" + limitsExceeded +
+               ", suspendedUntil=" + suspendedUntil +
+               '}';
+    }
+
+    //-----PROTECTED METHODS-----
+    void registerRequest()
+    {
+        this.requests.incrementAndGet();
+    }
+    void registerFailure()
+    {
+        this.failures.incrementAndGet();
+    }
+    void suspend(long until)
+    {
+        this.limitsExceeded.incrementAndGet();
+        this.suspendedUntil = until;
+    }
+
+    //-----PRIVATE METHODS-----
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import com.beligum.blocks.ontologies.commons.utils.RateLimitExceededException;
+
+/**
+ * Thrown when Geonames reports (through the 'status' part of its response) that the quota of the account we used is exhausted,
+ * or that the account can't be used at all. Note that these come in with a regular 200 HTTP status code.
+ * See http://www.geonames.org/export/webservice-exception.html
+ */
+public class GeonamesAccountException extends RateLimitExceededException
+{
+    //-----CONSTANTS-----
+    //the user account is not enabled for the webservices (or doesn't exist)
+    public static final int STATUS_AUTHORIZATION_EXCEPTION = 10;
+    public static final int STATUS_DAILY_LIMIT_EXCEEDED = 18;
+    public static final int STATUS_HOURLY_LIMIT_EXCEEDED = 19;
+    public static final int STATUS_WEEKLY_LIMIT_EXCEEDED = 20;
+
+    //-----VARIABLES-----
+    private int statusCode;
+
+    //-----CONSTRUCTORS-----
+    public GeonamesAccountException(int statusCode, String message)
+    {
+        super("Geonames returned status " + statusCode + "; " + message);
+
+        this.statusCode = statusCode;
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Returns true if the supplied Geonames status code means the account can't be used for a while
+     */
+    public static boolean isAccountStatus(int statusCode)
+    {
+        return statusCode == STATUS_AUTHORIZATION_EXCEPTION ||
+               statusCode == STATUS_DAILY_LIMIT_EXCEEDED ||
+               statusCode == STATUS_HOURLY_LIMIT_EXCEEDED ||
+               statusCode == STATUS_WEEKLY_LIMIT_EXCEEDED;
+    }
+    public int getStatusCode()
+    {
+        return statusCode;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.utils.Futures;
+import com.beligum.blocks.ontologies.commons.utils.RateLimitExceededException;
+import com.beligum.blocks.ontologies.commons.utils.RateLimiter;
+import com.beligum.blocks.ontologies.commons.utils.TokenBucketRateLimiter;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls to Geonames over a number of user accounts, so the sustained request rate we can handle
+ * is the sum of the quota of all accounts instead of the quota of a single one.
+ *
+ * Every account has its own token bucket; calls are handed out round-robin, preferring an account that has a token available right now.
+ * When Geonames reports an account is over its quota (or unusable), that account is suspended for a while and the call is retried with the next one.
+ * How long depends on the quota that was exceeded, but the last account that's still usable is never suspended longer than the window of its rate limiter,
+ * so the pool as a whole doesn't go dark for a day (or a week) because of a single status message.
+ * The usage of every account is logged whenever one of them is suspended and when the pool is shut down.
+ */
+public class GeonamesAccountPool
+{
+    //-----CONSTANTS-----
+    /**
+     * A call to Geonames that needs the username of the account to use
+     */
+    public interface Call<T>
+    {
+        CompletableFuture<T> execute(String username) throws IOException;
+    }
+
+    //the window of the (hourly) quota our rate limiters enforce
+    private static final long QUOTA_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    //-----VARIABLES-----
+    private final List<GeonamesAccount> accounts;
+    private final Clock clock;
+    private final AtomicInteger cursor;
+
+    //-----CONSTRUCTORS-----
+    public GeonamesAccountPool(String[] usernames, int burstSize, int requestsPerHour)
+    {
+        this(usernames, burstSize, requestsPerHour, Clock.systemUTC());
+    }
+    public GeonamesAccountPool(String[] usernames, int burstSize, int requestsPerHour, Clock clock)
+    {
+        List<GeonamesAccount> accounts = new ArrayList<>();
+        for (String username : usernames) {
+            accounts.add(new GeonamesAccount(username, new TokenBucketRateLimiter("geonames-" + username, burstSize, requestsPerHour, QUOTA_WINDOW_MILLIS, TimeUnit.MILLISECONDS, clock)));
+        }
+
+        this.accounts = Collections.unmodifiableList(accounts);
+        this.clock = clock;
+        this.cursor = new AtomicInteger();
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Geonames doesn't use HTTP status codes to signal errors, but returns a 'status' object instead of the regular result.
+     * This throws an exception if that status tells us the account we used can't be used anymore (for a while).
+     */
+    public static void checkStatus(JsonNode rootNode) throws GeonamesAccountException
+    {
+        checkStatusNode(rootNode == null ? null : rootNode.get("status"));
+    }
+    /**
+     * Same as checkStatus(), but for the 'status' node itself (eg. when it was read from a streaming parser)
+     */
+    public static void checkStatusNode(JsonNode statusNode) throws GeonamesAccountException
+    {
+        if (statusNode != null) {
+            //note: this is a number in the JSON responses, but a string attribute in the XML responses
+            int statusCode = statusNode.path("value").asInt(-1);
+            if (GeonamesAccountException.isAccountStatus(statusCode)) {
+                throw new GeonamesAccountException(statusCode, statusNode.path("message").asText());
+            }
+        }
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Executes the call with one of our accounts, as soon as that account has quota left (but not waiting longer than maxWaitMillis).
+     * If Geonames says the account is over its quota, the account is suspended and the call is retried with the next account.
+     */
+    public <T> CompletableFuture<T> execute(RateLimiter.Priority priority, long maxWaitMillis, Call<T> call)
+    {
+        return this.execute(priority, maxWaitMillis, call, this.accounts.size());
+    }
+    /**
+     * Returns all accounts in this pool (eg. to inspect their metrics)
+     */
+    public List<GeonamesAccount> getAccounts()
+    {
+        return accounts;
+    }
+    public void shutdown()
+    {
+        this.logUsage("Shutting down Geonames account pool");
+        for (GeonamesAccount account : this.accounts) {
+            account.getRateLimiter().shutdown();
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private <T> CompletableFuture<T> execute(RateLimiter.Priority priority, long maxWaitMillis, Call<T> call, int attemptsLeft)
+    {
+        CompletableFuture<T> retVal;
+
+        GeonamesAccount account = this.selectAccount();
+        if (account == null) {
+            retVal = Futures.failed(new RateLimitExceededException("All Geonames accounts exceeded their quota, can't execute call"));
+        }
+        else {
+            retVal = account.getRateLimiter().acquire(priority, maxWaitMillis).thenCompose(permit -> {
+                CompletableFuture<T> result;
+                account.registerRequest();
+                try {
+                    result = call.execute(account.getUsername());
+                }
+                catch (IOException e) {
+                    result = Futures.failed(e);
+                }
+                return result;
+            }).handle((result, error) -> {
+                CompletableFuture<T> next = CompletableFuture.completedFuture(result);
+
+                if (error != null) {
+                    Throwable cause = Futures.unwrap(error);
+                    if (cause instanceof GeonamesAccountException) {
+                        long now = this.clock.millis();
+                        long suspendedUntil = this.getSuspensionEnd(account, ((GeonamesAccountException) cause).getStatusCode(), now);
+                        account.suspend(suspendedUntil);
+                        Logger.warn("Suspending Geonames account '" + account.getUsername() + "' for " + TimeUnit.MILLISECONDS.toMinutes(suspendedUntil - now) + " minutes; " +
+                                    cause.getMessage());
+                        this.logUsage("Geonames account usage after suspending '" + account.getUsername() + "'");
+
+                        next = attemptsLeft > 1 ? this.execute(priority, maxWaitMillis, call, attemptsLeft - 1) : Futures.failed(cause);
+                    }
+                    else {
+                        //note that this also counts the calls that didn't get a permit in time
+                        account.registerFailure();
+                        next = Futures.failed(cause);
+                    }
+                }
+
+                return next;
+            }).thenCompose(next -> next);
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns until when (in epoch millis) the account should be suspended after Geonames returned the status code.
+     * We assume the hourly and daily quota of Geonames are reset at the start of every hour and every day (UTC). We don't know when the weekly one is reset,
+     * so we check again every day; same thing for an account that's not enabled (anymore), since that's fixed by hand.
+     */
+    private long getSuspensionEnd(GeonamesAccount account, int statusCode, long now)
+    {
+        Instant nextHour = Instant.ofEpochMilli(now).truncatedTo(ChronoUnit.HOURS).plus(1, ChronoUnit.HOURS);
+        Instant nextDay = Instant.ofEpochMilli(now).truncatedTo(ChronoUnit.DAYS).plus(1, ChronoUnit.DAYS);
+        long retVal = statusCode == GeonamesAccountException.STATUS_HOURLY_LIMIT_EXCEEDED ? nextHour.toEpochMilli() : nextDay.toEpochMilli();
+
+        //if this is the last account we can use, we rather check again soon than to stop calling Geonames altogether
+        boolean lastAccount = true;
+        for (GeonamesAccount other : this.accounts) {
+            if (other != account && !other.isSuspended(now)) {
+                lastAccount = false;
+                break;
+            }
+        }
+        if (lastAccount) {
+            retVal = Math.min(retVal, now + QUOTA_WINDOW_MILLIS);
+        }
+
+        return retVal;
+    }
+    /**
+     * Logs the metrics of every account in this pool, so we can see how the load (and the quota) is spread over them
+     */
+    private void logUsage(String title)
+    {
+        long now = this.clock.millis();
+        StringBuilder message = new StringBuilder(title).append(';');
+        for (GeonamesAccount account : this.accounts) {
+            message.append("\n    ").append(account.getUsername()).append(": ")
+                   .append(account.getRequestCount()).append(" requests, ")
+                   .append(account.getFailureCount()).append(" failures, ")
+                   .append(account.getLimitExceededCount()).append(" times over quota, ")
+                   .append(account.isSuspended(now) ? "suspended until " + Instant.ofEpochMilli(account.getSuspendedUntil()) : "available");
+        }
+
+        Logger.info(message.toString());
+    }
+    /**
+     * Round-robin over the accounts that aren't suspended, but skip the ones that would make us wait if there's another one that wouldn't.
+     * Returns null if all accounts are suspended.
+     */
+    private GeonamesAccount selectAccount()
+    {
+        GeonamesAccount retVal = null;
+
+        long now = this.clock.millis();
+        List<GeonamesAccount> available = new ArrayList<>(this.accounts.size());
+        for (GeonamesAccount account : this.accounts) {
+            if (!account.isSuspended(now)) {
+                available.add(account);
+            }
+        }
+
+        if (!available.isEmpty()) {
+            int start = Math.floorMod(this.cursor.getAndIncrement(), available.size());
+            for (int i = 0; i < available.size() && retVal == null; i++) {
+                GeonamesAccount account = available.get((start + i) % available.size());
+                if (account.getAvailableTokens() > 0) {
+                    retVal = account;
+                }
+            }
+
+            //all accounts are depleted; queue the call at the next one in line
+            if (retVal == null) {
+                retVal = available.get(start);
+            }
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,894 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.endpoints.ifaces.AutocompleteSuggestion;
+import com.beligum.blocks.endpoints.ifaces.RdfQueryEndpoint;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+import com.beligum.blocks.ontologies.commons.utils.CachedSuggestions;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * A local, read-only search engine for Geonames, built from the public dump files (see GeonamesGazetteerBuilder),
+ * so we can answer searches and resource lookups without calling the (rate limited) Geonames API.
+ *
+ * The index is a single memory-mapped file:
+ * [header] [records, sorted on geonameId] [alternate names] [string offsets] [string data] [keys, sorted] [entries] [trigrams, sorted] [postings] [postal codes, sorted] [prefix tree]
+ * Every record has a fixed size and points to its strings in the (deduplicated) string table and to its localized names.
+ * Every key is a normalized (lowercase, no accents) name and points to the range of entries (record indexes) of the places with that name.
+ *
+ * Autocompletion uses the prefix tree on top of the keys: every node covers the range of keys that start with its prefix,
+ * and the large nodes also hold the best records (per type) of their range, so even very short prefixes are answered with a handful of reads.
+ * The small nodes are leaves; their few keys are simply scanned. None of this creates objects, except for the suggestions we return.
+ * The trigrams point to the keys that contain them, so we can also find the names that look like a misspelled one.
+ * The postal codes (if the postal code dump was there) point to the records of their places, so we can resolve them without any remote call.
+ */
+public class GeonamesGazetteer
+{
+    //-----CONSTANTS-----
+    static final int MAGIC = 0x47415A31;
+    static final int VERSION = 5;
+    //magic, version, created, record/alternate/string/key/entry/trigram/posting/postal code count, offsets of the ten sections
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 * 4 + 10 * 4;
+
+    //layout of a single record
+    static final int RECORD_SIZE = 60;
+    static final int RECORD_ID = 0;
+    static final int RECORD_NAME = 4;
+    static final int RECORD_FEATURE_CLASS = 8;
+    static final int RECORD_FEATURE_CODE = 12;
+    static final int RECORD_COUNTRY_CODE = 16;
+    static final int RECORD_COUNTRY_NAME = 20;
+    static final int RECORD_ADMIN1_NAME = 24;
+    static final int RECORD_ADMIN2_NAME = 28;
+    static final int RECORD_POPULATION = 32;
+    static final int RECORD_ALTERNATES_START = 40;
+    static final int RECORD_ALTERNATES_COUNT = 44;
+    //the bitmask of the types (their ordinal) and the importance of the feature, so we can filter and rank without decoding strings
+    static final int RECORD_TYPES = 48;
+    static final int RECORD_PRIORITY = 52;
+    //the normalized names of the country and the administrative divisions, so qualifiers are matched without normalizing anything at search time
+    static final int RECORD_PARENTS = 56;
+    //separates the names in the parents of a record; it can't be part of a name, so a qualifier can't match across two of them
+    static final char PARENTS_SEPARATOR = '\0';
+    //an alternate name is a language and a name
+    static final int ALTERNATE_SIZE = 8;
+    //a key is a string and the index of its first entry
+    static final int KEY_SIZE = 8;
+    static final int ENTRY_SIZE = 4;
+    //a trigram is three characters (packed in a long) and the index of its first posting (the index of a key that has the trigram)
+    static final int TRIGRAM_SIZE = 12;
+    static final int POSTING_SIZE = 4;
+    //a postal code is its (postal) key, the normalized name of its place and the record of that place
+    static final int POSTAL_CODE_SIZE = 12;
+    //layout of a node in the prefix tree, followed by its top lists (if any): [number of lists or -1] ([number of records] [record]*)*
+    static final int TRIE_KEY_FROM = 0;
+    static final int TRIE_KEY_TO = 4;
+    static final int TRIE_CHILD_COUNT = 8;
+    static final int TRIE_CHILDREN = 12;
+    //a child is a character and the offset of its node
+    static final int TRIE_CHILD_SIZE = 8;
+    //nodes with more entries than this get children and top lists of this size
+    static final int TOP_SIZE = 32;
+
+    //a prefix of one or two letters matches a huge number of names; we only look at this many of them
+    private static final int MAX_CANDIDATES = 10000;
+    //shorter names look like way too many others to search for them with typos
+    private static final int MIN_FUZZY_LENGTH = 3;
+
+    //-----VARIABLES-----
+    private static volatile GeonamesGazetteer instance;
+    private static volatile boolean initialized;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int recordCount;
+    private final int keyCount;
+    private final int trigramCount;
+    private final int postalCodeCount;
+    private final int recordsOffset;
+    private final int alternatesOffset;
+    private final int stringOffsetsOffset;
+    private final int stringDataOffset;
+    private final int keysOffset;
+    private final int entriesOffset;
+    private final int trigramsOffset;
+    private final int postingsOffset;
+    private final int postalCodesOffset;
+    private final int trieOffset;
+
+    //-----CONSTRUCTORS-----
+    private GeonamesGazetteer(File file) throws IOException
+    {
+        this.file = file;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() > Integer.MAX_VALUE) {
+                throw new IOException("Gazetteer index " + file + " is too large to be mapped; please use a smaller dump file or less languages");
+            }
+            //Note: the mapping stays valid after the channel is closed
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        }
+
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION) {
+            throw new IOException("File " + file + " is not a gazetteer index (of this version)");
+        }
+
+        int position = 16;
+        this.recordCount = this.buffer.getInt(position);
+        //skip the alternate, string, entry and posting counts, we only need those while building
+        this.keyCount = this.buffer.getInt(position + 12);
+        this.trigramCount = this.buffer.getInt(position + 20);
+        this.postalCodeCount = this.buffer.getInt(position + 28);
+        position += 8 * 4;
+        this.recordsOffset = this.buffer.getInt(position);
+        this.alternatesOffset = this.buffer.getInt(position + 4);
+        this.stringOffsetsOffset = this.buffer.getInt(position + 8);
+        this.stringDataOffset = this.buffer.getInt(position + 12);
+        this.keysOffset = this.buffer.getInt(position + 16);
+        this.entriesOffset = this.buffer.getInt(position + 20);
+        this.trigramsOffset = this.buffer.getInt(position + 24);
+        this.postingsOffset = this.buffer.getInt(position + 28);
+        this.postalCodesOffset = this.buffer.getInt(position + 32);
+        this.trieOffset = this.buffer.getInt(position + 36);
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Returns the local gazetteer, or null if we don't have one (yet). The first call opens the index, or (re)builds it in the background
+     * if the dump files are newer, so we don't block anyone while that's going on; until it's ready, this keeps on returning null.
+     */
+    public static GeonamesGazetteer instance()
+    {
+        if (!initialized) {
+            synchronized (GeonamesGazetteer.class) {
+                if (!initialized) {
+                    initialized = true;
+                    init();
+                }
+            }
+        }
+
+        return instance;
+    }
+    /**
+     * Returns the (distinct) trigrams of the value, packed in a long, three characters of 16 bits each.
+     * The value is padded with a space at the start (and at the end, if requested), so the first (and last) characters count as much as the others.
+     */
+    static long[] getTrigrams(String value, boolean padEnd)
+    {
+        String padded = " " + value + (padEnd ? " " : "");
+        return IntStream.range(0, Math.max(padded.length() - 2, 0))
+                        .mapToLong(i -> ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2))
+                        .distinct()
+                        .toArray();
+    }
+    /**
+     * Returns the normalized (non-empty) names of the parents of a place, separated by PARENTS_SEPARATOR, or null if it has none
+     */
+    static String getParents(String... names)
+    {
+        StringBuilder retVal = new StringBuilder();
+
+        for (String name : names) {
+            String normalized = CachedSuggestions.normalize(name);
+            if (!normalized.isEmpty()) {
+                if (retVal.length() > 0) {
+                    retVal.append(PARENTS_SEPARATOR);
+                }
+                retVal.append(normalized);
+            }
+        }
+
+        return retVal.length() == 0 ? null : retVal.toString();
+    }
+    /**
+     * Returns the normalized combination of a country (ISO 3166 code) and a postal code or name within that country
+     */
+    static String getPostalKey(String countryCode, String value)
+    {
+        return CachedSuggestions.normalize(countryCode) + ":" + CachedSuggestions.normalize(value);
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Searches the places of the specified type, ordered on importance (capitals and seats of administrative divisions first) and population (largest first).
+     * Like the Geonames API, the query can be qualified with (comma separated) names of the country or the administrative divisions, eg. 'Halen,Belgium'.
+     * Postal codes in the query are ignored.
+     */
+    public List<AutocompleteSuggestion> search(AbstractGeoname.Type type, URI resourceType, String query, RdfQueryEndpoint.QueryType queryType, Locale language, int maxResults)
+    {
+        List<AutocompleteSuggestion> retVal = new ArrayList<>();
+
+        //note: the limit keeps the (empty) parts of a query that's all commas, so there's always a first one
+        String[] parts = query.split(",", -1);
+        String name = CachedSuggestions.normalize(parts[0]);
+        List<String> qualifiers = this.getQualifiers(parts);
+
+        if (!name.isEmpty() && maxResults > 0) {
+            //the (indexes of the) best records so far, best first
+            int[] ranked = new int[maxResults];
+            int count;
+            switch (queryType) {
+                case STARTS_WITH:
+                    count = this.findPrefix(name, type, qualifiers, ranked);
+                    break;
+                case NAME:
+                    count = this.findExact(name, type, qualifiers, ranked);
+                    break;
+                default:
+                    //the full text search of Geonames also matches on partial names, but prefers the exact ones
+                    count = this.findExact(name, type, qualifiers, ranked);
+                    if (count == 0) {
+                        count = this.findPrefix(name, type, qualifiers, ranked);
+                    }
+                    break;
+            }
+
+            for (int i = 0; i < count; i++) {
+                retVal.add(this.toSuggestion(ranked[i], type, resourceType, language));
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Searches the places of the specified type with a name that looks like the (misspelled) query, eg. 'Bruxels' or 'Tielt Winge',
+     * ordered on the number of typos first and like search() after that. Use this when search() doesn't find anything.
+     * We look up the keys that share enough trigrams with the name (every typo breaks at most four of them)
+     * and only calculate the edit distance of those.
+     */
+    public List<AutocompleteSuggestion> searchFuzzy(AbstractGeoname.Type type, URI resourceType, String query, RdfQueryEndpoint.QueryType queryType, Locale language,
+                                                    int maxResults, int maxDistance)
+    {
+        List<AutocompleteSuggestion> retVal = new ArrayList<>();
+
+        String[] parts = query.split(",", -1);
+        String name = CachedSuggestions.normalize(parts[0]);
+        List<String> qualifiers = this.getQualifiers(parts);
+
+        if (name.length() >= MIN_FUZZY_LENGTH && maxDistance > 0 && maxResults > 0) {
+            //while the user is typing, the name only needs to look like the start of a key
+            boolean prefix = queryType == RdfQueryEndpoint.QueryType.STARTS_WITH;
+            //tolerate less typos in short names, or about everything matches
+            int distance = Math.min(maxDistance, Math.max(1, name.length() / 3));
+
+            long[] trigrams = getTrigrams(name, !prefix);
+            int threshold = trigrams.length - 4 * distance;
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (long trigram : trigrams) {
+                int index = this.findTrigram(trigram);
+                if (index >= 0) {
+                    int firstPosting = this.getFirstPosting(index);
+                    int lastPosting = this.getFirstPosting(index + 1);
+                    //a trigram that's in a huge number of keys doesn't tell us much; skip it, but don't count it against the keys either
+                    if (lastPosting - firstPosting > MAX_CANDIDATES) {
+                        threshold--;
+                    }
+                    else {
+                        for (int posting = firstPosting; posting < lastPosting; posting++) {
+                            counts.merge(this.buffer.getInt(this.postingsOffset + posting * POSTING_SIZE), 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+            threshold = Math.max(threshold, 1);
+
+            Map<Integer, Integer> distances = new HashMap<>();
+            for (Map.Entry<Integer, Integer> count : counts.entrySet()) {
+                if (count.getValue() >= threshold) {
+                    int key = count.getKey();
+                    int keyDistance = getEditDistance(name, this.getKey(key), prefix);
+                    if (keyDistance <= distance) {
+                        int lastEntry = this.getFirstEntry(key + 1);
+                        for (int entry = this.getFirstEntry(key); entry < lastEntry; entry++) {
+                            int record = this.buffer.getInt(this.entriesOffset + entry * ENTRY_SIZE);
+                            if (this.matchesType(record, type) && this.matchesQualifiers(record, qualifiers)) {
+                                distances.merge(record, keyDistance, Math::min);
+                            }
+                        }
+                    }
+                }
+            }
+
+            List<Integer> matches = new ArrayList<>(distances.keySet());
+            matches.sort(Comparator.comparingInt((Integer record) -> distances.get(record)).thenComparing(this::compareRank));
+            for (int i = 0; i < matches.size() && i < maxResults; i++) {
+                retVal.add(this.toSuggestion(matches.get(i), type, resourceType, language));
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Searches the places of the specified type with the postal code in the country (ISO 3166 code), ordered like search().
+     * If some of them have the name of the city, only those are returned; other names often share a postal code with a larger place
+     * (eg. villages that are part of a municipality), so the postal code is what tells us which one the user meant.
+     */
+    public List<AutocompleteSuggestion> searchPostalCode(AbstractGeoname.Type type, URI resourceType, String city, String postalCode, String countryCode, Locale language,
+                                                         int maxResults)
+    {
+        List<AutocompleteSuggestion> retVal = new ArrayList<>();
+
+        if (maxResults > 0) {
+            String key = getPostalKey(countryCode, postalCode);
+            String name = CachedSuggestions.normalize(city);
+            int[] ranked = new int[maxResults];
+            int count = 0;
+            int first = this.lowerBoundPostalCode(key);
+            for (int pass = 0; count == 0 && pass < 2; pass++) {
+                for (int postalCodeIndex = first; postalCodeIndex < this.postalCodeCount && this.compareString(this.getPostalCodeInt(postalCodeIndex, 0), key, false) == 0;
+                     postalCodeIndex++) {
+                    if (pass == 1 || this.compareString(this.getPostalCodeInt(postalCodeIndex, 4), name, false) == 0) {
+                        count = this.addCandidate(ranked, count, this.getPostalCodeInt(postalCodeIndex, 8), type, Collections.emptyList());
+                    }
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                retVal.add(this.toSuggestion(ranked[i], type, resourceType, language));
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the place with the specified id, or null if we don't know it
+     */
+    public GeonameResourceInfo getResource(URI resourceType, String geonameId, Locale language)
+    {
+        GeonameResourceInfo retVal = null;
+
+        int record = -1;
+        try {
+            record = this.findRecord(Integer.parseInt(geonameId));
+        }
+        catch (NumberFormatException e) {
+            //not a geoname, we can't know it
+        }
+
+        if (record >= 0) {
+            String toponymName = this.getRecordString(record, RECORD_NAME);
+            retVal = new GeonameResourceInfo(resourceType, geonameId, this.getLocalizedName(record, language, toponymName), toponymName, language);
+        }
+
+        return retVal;
+    }
+    public File getFile()
+    {
+        return file;
+    }
+
+    //-----PROTECTED METHODS-----
+    /**
+     * Returns the edit distance between the name and the key, or between the name and the closest start of the key if prefix is true.
+     * Next to inserted, deleted and replaced characters, two swapped characters count as a single typo as well.
+     */
+    static int getEditDistance(String name, String key, boolean prefix)
+    {
+        int[] beforePrevious = new int[key.length() + 1];
+        int[] previous = new int[key.length() + 1];
+        int[] current = new int[key.length() + 1];
+        for (int j = 0; j <= key.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= name.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= key.length(); j++) {
+                int replace = previous[j - 1] + (name.charAt(i - 1) == key.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(replace, Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && name.charAt(i - 1) == key.charAt(j - 2) && name.charAt(i - 2) == key.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                }
+            }
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int retVal = previous[key.length()];
+        if (prefix) {
+            for (int distance : previous) {
+                retVal = Math.min(retVal, distance);
+            }
+        }
+
+        return retVal;
+    }
+
+    //-----PRIVATE METHODS-----
+    private static void init()
+    {
+        Settings settings = Settings.instance();
+        String dumpDir = settings.getGeonamesGazetteerDumpDir();
+        String file = settings.getGeonamesGazetteerFile();
+
+        if (dumpDir != null && file == null) {
+            Logger.warn("The Geonames dump directory of the gazetteer is configured, but the file of its index isn't; continuing without a local gazetteer");
+        }
+        else if (dumpDir != null) {
+            File dumpFiles = new File(dumpDir);
+            File indexFile = new File(file);
+
+            if (indexFile.exists() && indexFile.lastModified() >= GeonamesGazetteerBuilder.lastModified(dumpFiles) && isCurrentVersion(indexFile)) {
+                open(indexFile);
+            }
+            else {
+                Thread builder = new Thread(() -> {
+                    try {
+                        long start = System.currentTimeMillis();
+                        new GeonamesGazetteerBuilder(dumpFiles, settings.getGeonamesGazetteerLanguages()).build(indexFile);
+                        Logger.info("Built the gazetteer index from the Geonames dump files in " + dumpFiles + " in " + (System.currentTimeMillis() - start) + "ms");
+                        open(indexFile);
+                    }
+                    catch (Throwable e) {
+                        Logger.error("Error while building the gazetteer index from the Geonames dump files in " + dumpFiles + ", continuing without it", e);
+                    }
+                }, "ontologies-commons-gazetteer-builder");
+                builder.setDaemon(true);
+                builder.start();
+            }
+        }
+    }
+    /**
+     * An index that was built by an older version of this class needs to be rebuilt, even if the dump files didn't change
+     */
+    private static boolean isCurrentVersion(File indexFile)
+    {
+        boolean retVal = false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+            retVal = in.readInt() == MAGIC && in.readInt() == VERSION;
+        }
+        catch (IOException e) {
+            Logger.warn("Error while reading the version of the gazetteer index at " + indexFile + ", rebuilding it; " + e.getMessage());
+        }
+
+        return retVal;
+    }
+    private static void open(File indexFile)
+    {
+        try {
+            instance = new GeonamesGazetteer(indexFile);
+            Logger.info("Opened gazetteer index at " + indexFile + " with " + instance.recordCount + " places");
+        }
+        catch (IOException e) {
+            Logger.error("Error while opening the gazetteer index at " + indexFile + ", continuing without it", e);
+        }
+    }
+    /**
+     * Collects the best records with a name that starts with the normalized name in the ranked array and returns how many we found.
+     * We walk the prefix tree as far as the name goes: if we end up in a large node, its precalculated top list usually suffices,
+     * otherwise we end up in a small node and only need to scan a handful of keys.
+     */
+    private int findPrefix(String name, AbstractGeoname.Type type, List<String> qualifiers, int[] ranked)
+    {
+        int retVal = 0;
+
+        int node = 0;
+        int depth = 0;
+        while (node >= 0 && depth < name.length() && this.getTrieInt(node, TRIE_CHILD_COUNT) > 0) {
+            node = this.findChild(node, name.charAt(depth));
+            depth++;
+        }
+
+        //if a large node doesn't have a child for the next character, nothing starts with the name
+        if (node >= 0) {
+            int keyFrom = this.getTrieInt(node, TRIE_KEY_FROM);
+            int keyTo = this.getTrieInt(node, TRIE_KEY_TO);
+            int topList = depth == name.length() ? this.getTopList(node, type) : -1;
+            boolean scan = true;
+            if (topList >= 0) {
+                int topCount = this.buffer.getInt(topList);
+                for (int i = 0; i < topCount && retVal < ranked.length; i++) {
+                    int record = this.buffer.getInt(topList + 4 + i * 4);
+                    if (this.matchesQualifiers(record, qualifiers)) {
+                        retVal = this.insertRanked(ranked, retVal, record);
+                    }
+                }
+                //a top list that's not full contains all matching records; if it's full, we only need more if we don't have enough yet
+                scan = topCount == TOP_SIZE && retVal < ranked.length;
+            }
+
+            if (scan) {
+                int candidates = 0;
+                for (int key = keyFrom; key < keyTo && candidates < MAX_CANDIDATES; key++) {
+                    if (depth == name.length() || this.compareKey(key, name, true) == 0) {
+                        int lastEntry = this.getFirstEntry(key + 1);
+                        for (int entry = this.getFirstEntry(key); entry < lastEntry && candidates < MAX_CANDIDATES; entry++, candidates++) {
+                            retVal = this.addCandidate(ranked, retVal, this.buffer.getInt(this.entriesOffset + entry * ENTRY_SIZE), type, qualifiers);
+                        }
+                    }
+                }
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Collects the best records with exactly the normalized name in the ranked array and returns how many we found
+     */
+    private int findExact(String name, AbstractGeoname.Type type, List<String> qualifiers, int[] ranked)
+    {
+        int retVal = 0;
+
+        int key = this.lowerBound(name);
+        if (key < this.keyCount && this.compareKey(key, name, false) == 0) {
+            int lastEntry = Math.min(this.getFirstEntry(key + 1), this.getFirstEntry(key) + MAX_CANDIDATES);
+            for (int entry = this.getFirstEntry(key); entry < lastEntry; entry++) {
+                retVal = this.addCandidate(ranked, retVal, this.buffer.getInt(this.entriesOffset + entry * ENTRY_SIZE), type, qualifiers);
+            }
+        }
+
+        return retVal;
+    }
+    private int addCandidate(int[] ranked, int count, int record, AbstractGeoname.Type type, List<String> qualifiers)
+    {
+        int retVal = count;
+
+        if (this.matchesType(record, type) && this.matchesQualifiers(record, qualifiers)) {
+            retVal = this.insertRanked(ranked, count, record);
+        }
+
+        return retVal;
+    }
+    /**
+     * Inserts the record in the (sorted) array of the best records so far, unless it's already in there or it's not good enough,
+     * and returns the new number of records in the array.
+     */
+    private int insertRanked(int[] ranked, int count, int record)
+    {
+        int retVal = count;
+
+        boolean present = false;
+        for (int i = 0; !present && i < count; i++) {
+            present = ranked[i] == record;
+        }
+
+        if (!present) {
+            int position = count;
+            while (position > 0 && this.compareRank(record, ranked[position - 1]) < 0) {
+                position--;
+            }
+            if (position < ranked.length) {
+                System.arraycopy(ranked, position, ranked, position + 1, Math.min(count, ranked.length - 1) - position);
+                ranked[position] = record;
+                retVal = Math.min(count + 1, ranked.length);
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns a negative number if the first record should come before the second one in the search results
+     */
+    private int compareRank(int first, int second)
+    {
+        int retVal = Integer.compare(this.getRecordInt(second, RECORD_PRIORITY), this.getRecordInt(first, RECORD_PRIORITY));
+
+        if (retVal == 0) {
+            retVal = Long.compare(this.getPopulation(second), this.getPopulation(first));
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the offset of the child of the (large) trie node for the character, or -1 if it doesn't have one
+     */
+    private int findChild(int node, char character)
+    {
+        int low = 0;
+        int high = this.getTrieInt(node, TRIE_CHILD_COUNT) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int childCharacter = this.getTrieInt(node, TRIE_CHILDREN + middle * TRIE_CHILD_SIZE);
+            if (childCharacter < character) {
+                low = middle + 1;
+            }
+            else if (childCharacter > character) {
+                high = middle - 1;
+            }
+            else {
+                return this.getTrieInt(node, TRIE_CHILDREN + middle * TRIE_CHILD_SIZE + 4);
+            }
+        }
+
+        return -1;
+    }
+    /**
+     * Returns the absolute position of the top list of the trie node for the type, or -1 if the node is too small to have top lists
+     */
+    private int getTopList(int node, AbstractGeoname.Type type)
+    {
+        int retVal = -1;
+
+        int position = this.trieOffset + node + TRIE_CHILDREN + this.getTrieInt(node, TRIE_CHILD_COUNT) * TRIE_CHILD_SIZE;
+        if (this.buffer.getInt(position) > type.ordinal()) {
+            //skip the top lists of the other types
+            position += 4;
+            for (int i = 0; i < type.ordinal(); i++) {
+                position += 4 + this.buffer.getInt(position) * 4;
+            }
+            retVal = position;
+        }
+
+        return retVal;
+    }
+    private int getTrieInt(int node, int field)
+    {
+        return this.buffer.getInt(this.trieOffset + node + field);
+    }
+    /**
+     * Returns the index of the first key that's not smaller than the value
+     */
+    private int lowerBound(String value)
+    {
+        int low = 0;
+        int high = this.keyCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.compareKey(middle, value, false) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+    /**
+     * Returns the index of the first postal code with a key that's not smaller than the (postal) key
+     */
+    private int lowerBoundPostalCode(String key)
+    {
+        int low = 0;
+        int high = this.postalCodeCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.compareString(this.getPostalCodeInt(middle, 0), key, false) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+    private int getPostalCodeInt(int postalCode, int field)
+    {
+        return this.buffer.getInt(this.postalCodesOffset + postalCode * POSTAL_CODE_SIZE + field);
+    }
+    /**
+     * Compares the key to the value like String.compareTo() would (so on UTF-16 characters), but directly on the UTF-8 bytes of the index,
+     * so we don't need to create a string for every key we look at. If prefix is true, a key that starts with the value equals it.
+     */
+    private int compareKey(int key, String value, boolean prefix)
+    {
+        return this.compareString(this.buffer.getInt(this.keysOffset + key * KEY_SIZE), value, prefix);
+    }
+    private int compareString(int index, String value, boolean prefix)
+    {
+        int position = this.stringDataOffset + this.buffer.getInt(this.stringOffsetsOffset + index * 4);
+        int end = this.stringDataOffset + this.buffer.getInt(this.stringOffsetsOffset + (index + 1) * 4);
+
+        int i = 0;
+        while (position < end) {
+            int codePoint = this.buffer.get(position) & 0xFF;
+            int length = codePoint < 0x80 ? 1 : codePoint < 0xE0 ? 2 : codePoint < 0xF0 ? 3 : 4;
+            if (length > 1) {
+                codePoint &= 0xFF >>> (length + 1);
+                for (int j = 1; j < length; j++) {
+                    codePoint = (codePoint << 6) | (this.buffer.get(position + j) & 0x3F);
+                }
+            }
+            position += length;
+
+            //characters outside of the basic plane take two UTF-16 characters
+            boolean supplementary = Character.isSupplementaryCodePoint(codePoint);
+            for (int j = 0; j < (supplementary ? 2 : 1); j++) {
+                if (i == value.length()) {
+                    return prefix ? 0 : 1;
+                }
+                char keyCharacter = !supplementary ? (char) codePoint : j == 0 ? Character.highSurrogate(codePoint) : Character.lowSurrogate(codePoint);
+                if (keyCharacter != value.charAt(i)) {
+                    return keyCharacter - value.charAt(i);
+                }
+                i++;
+            }
+        }
+
+        return i == value.length() ? 0 : -1;
+    }
+    private String getKey(int key)
+    {
+        return this.getString(this.buffer.getInt(this.keysOffset + key * KEY_SIZE));
+    }
+    /**
+     * Returns the index of the trigram in the trigram table, or -1 if no key has it
+     */
+    private int findTrigram(long trigram)
+    {
+        int low = 0;
+        int high = this.trigramCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = this.buffer.getLong(this.trigramsOffset + middle * TRIGRAM_SIZE);
+            if (value < trigram) {
+                low = middle + 1;
+            }
+            else if (value > trigram) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+    /**
+     * Note that this also works for trigram == trigramCount (there's a sentinel trigram at the end)
+     */
+    private int getFirstPosting(int trigram)
+    {
+        return this.buffer.getInt(this.trigramsOffset + trigram * TRIGRAM_SIZE + 8);
+    }
+    private List<String> getQualifiers(String[] parts)
+    {
+        List<String> retVal = new ArrayList<>();
+
+        for (int i = 1; i < parts.length; i++) {
+            //(the separator of the parents of a record shouldn't match anything)
+            String qualifier = CachedSuggestions.normalize(parts[i]).replace(PARENTS_SEPARATOR, ' ');
+            if (!qualifier.isEmpty() && !qualifier.chars().allMatch(Character::isDigit)) {
+                retVal.add(qualifier);
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Note that this also works for key == keyCount (there's a sentinel key at the end)
+     */
+    private int getFirstEntry(int key)
+    {
+        return this.buffer.getInt(this.keysOffset + key * KEY_SIZE + 4);
+    }
+    private int findRecord(int geonameId)
+    {
+        int low = 0;
+        int high = this.recordCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = this.buffer.getInt(this.recordsOffset + middle * RECORD_SIZE + RECORD_ID);
+            if (id < geonameId) {
+                low = middle + 1;
+            }
+            else if (id > geonameId) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+    private boolean matchesType(int record, AbstractGeoname.Type type)
+    {
+        return (this.getRecordInt(record, RECORD_TYPES) & (1 << type.ordinal())) != 0;
+    }
+    /**
+     * Every qualifier should match (a part of) the country or one of the administrative divisions of the place
+     */
+    private boolean matchesQualifiers(int record, List<String> qualifiers)
+    {
+        boolean retVal = true;
+
+        if (!qualifiers.isEmpty()) {
+            String parents = this.getRecordString(record, RECORD_PARENTS);
+            for (int i = 0; retVal && i < qualifiers.size(); i++) {
+                retVal = parents != null && parents.contains(qualifiers.get(i));
+            }
+        }
+
+        return retVal;
+    }
+    private AutocompleteSuggestion toSuggestion(int record, AbstractGeoname.Type type, URI resourceType, Locale language)
+    {
+        String geonameId = String.valueOf(this.buffer.getInt(this.recordsOffset + record * RECORD_SIZE + RECORD_ID));
+        String toponymName = this.getRecordString(record, RECORD_NAME);
+        String name = this.getLocalizedName(record, language, toponymName);
+        String countryName = this.getRecordString(record, RECORD_COUNTRY_NAME);
+
+        AutocompleteSuggestion retVal;
+        if (type == AbstractGeoname.Type.COUNTRY) {
+            retVal = new GeonameCountrySuggestion(resourceType, geonameId, name, toponymName, countryName);
+        }
+        else {
+            retVal = new GeonameCitySuggestion(resourceType, geonameId, name, toponymName, this.getRecordString(record, RECORD_ADMIN1_NAME),
+                                               this.getRecordString(record, RECORD_ADMIN2_NAME), this.getRecordString(record, RECORD_COUNTRY_CODE), countryName);
+        }
+
+        return retVal;
+    }
+    private String getLocalizedName(int record, Locale language, String defaultName)
+    {
+        String retVal = defaultName;
+
+        if (language != null) {
+            int start = this.buffer.getInt(this.recordsOffset + record * RECORD_SIZE + RECORD_ALTERNATES_START);
+            int count = this.buffer.getInt(this.recordsOffset + record * RECORD_SIZE + RECORD_ALTERNATES_COUNT);
+            for (int i = start; i < start + count; i++) {
+                if (language.getLanguage().equals(this.getString(this.buffer.getInt(this.alternatesOffset + i * ALTERNATE_SIZE)))) {
+                    retVal = this.getString(this.buffer.getInt(this.alternatesOffset + i * ALTERNATE_SIZE + 4));
+                    break;
+                }
+            }
+        }
+
+        return retVal;
+    }
+    private long getPopulation(int record)
+    {
+        return this.buffer.getLong(this.recordsOffset + record * RECORD_SIZE + RECORD_POPULATION);
+    }
+    private int getRecordInt(int record, int field)
+    {
+        return this.buffer.getInt(this.recordsOffset + record * RECORD_SIZE + field);
+    }
+    private String getRecordString(int record, int field)
+    {
+        return this.getString(this.buffer.getInt(this.recordsOffset + record * RECORD_SIZE + field));
+    }
+    /**
+     * Returns the string with the specified index in the string table, or null for -1
+     */
+    private String getString(int index)
+    {
+        String retVal = null;
+
+        if (index >= 0) {
+            int start = this.buffer.getInt(this.stringOffsetsOffset + index * 4);
+            int end = this.buffer.getInt(this.stringOffsetsOffset + (index + 1) * 4);
+            byte[] bytes = new byte[end - start];
+            //Note: we work on a duplicate, so concurrent readers don't mess with each other's position
+            ByteBuffer data = this.buffer.duplicate();
+            data.position(this.stringDataOffset + start);
+            data.get(bytes);
+            retVal = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,769 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import com.beligum.blocks.ontologies.commons.utils.CachedSuggestions;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * Builds the index of the GeonamesGazetteer from the Geonames dump files (see http://download.geonames.org/export/dump/) in a directory:
+ * - allCountries.txt or one of the citiesNNNN.txt files (the most complete one is used): the places themselves
+ * - countryInfo.txt: the names of the countries (countries that aren't in the places file are added from this one)
+ * - admin1CodesASCII.txt and admin2Codes.txt (or admin2CodesASCII.txt): the names of the administrative divisions
+ * - alternateNamesV2.txt (or alternateNames.txt): the names of the places in other languages
+ * - zip/allCountries.txt or zip/XX.txt (see http://download.geonames.org/export/zip/): the postal codes of the places
+ * Only the first file is required. Only the places we can search for (see AbstractGeoname.Type) are kept,
+ * and only the alternate names in the configured languages, because allCountries.txt and alternateNamesV2.txt are huge.
+ * Note that everything is collected in memory before it's written, so the large files need a large heap.
+ */
+public class GeonamesGazetteerBuilder
+{
+    //-----CONSTANTS-----
+    private static final String ALL_COUNTRIES_FILE = "allCountries.txt";
+    private static final String CITIES_FILE_PREFIX = "cities";
+    private static final String COUNTRY_INFO_FILE = "countryInfo.txt";
+    private static final String[] ADMIN1_FILES = { "admin1CodesASCII.txt" };
+    private static final String[] ADMIN2_FILES = { "admin2Codes.txt", "admin2CodesASCII.txt" };
+    private static final String[] ALTERNATE_NAMES_FILES = { "alternateNamesV2.txt", "alternateNames.txt" };
+    private static final String TXT_EXTENSION = ".txt";
+    //the postal code dump (see http://download.geonames.org/export/zip/) has the same file names, so it lives in its own subdirectory
+    private static final String POSTAL_CODES_DIR = "zip";
+    //the feature of the countries we add from countryInfo.txt
+    private static final String COUNTRY_FEATURE_CLASS = "A";
+    private static final String COUNTRY_FEATURE_CODE = "PCLI";
+    //the more important features come first in the search results, before the larger but less important ones
+    private static final Map<String, Integer> FEATURE_PRIORITIES = new HashMap<>();
+    static {
+        FEATURE_PRIORITIES.put("PCLI", 3);
+        FEATURE_PRIORITIES.put("PPLC", 3);
+        FEATURE_PRIORITIES.put("PPLG", 3);
+        FEATURE_PRIORITIES.put("PPLA", 2);
+        FEATURE_PRIORITIES.put("PPLA2", 1);
+    }
+
+    private static class Place
+    {
+        private int id;
+        private String name;
+        private String featureClass;
+        private String featureCode;
+        private String countryCode;
+        private String admin1Code;
+        private String admin2Code;
+        private long population;
+        //names we search on, but don't show (in unknown languages)
+        private String[] otherNames;
+        //the (preferred) name per language
+        private Map<String, String> localizedNames;
+        private Set<String> preferredLanguages;
+    }
+
+    private static class TrieNode
+    {
+        private final int keyFrom;
+        private final int keyTo;
+        private char character;
+        //only the large nodes have children and top lists (one per type)
+        private TrieNode[] children;
+        private int[][] topLists;
+        private long offset;
+
+        public TrieNode(int keyFrom, int keyTo)
+        {
+            this.keyFrom = keyFrom;
+            this.keyTo = keyTo;
+        }
+
+        /**
+         * [key from] [key to] [number of children] [child character, child offset]* [number of top lists or -1] ([number of records] [record]*)*
+         */
+        public long getSize()
+        {
+            long retVal = 4 * 4;
+
+            if (this.children != null) {
+                retVal += this.children.length * GeonamesGazetteer.TRIE_CHILD_SIZE;
+                for (int[] topList : this.topLists) {
+                    retVal += 4 + topList.length * 4;
+                }
+            }
+
+            return retVal;
+        }
+        public void write(DataOutputStream out) throws IOException
+        {
+            out.writeInt(this.keyFrom);
+            out.writeInt(this.keyTo);
+            if (this.children != null) {
+                out.writeInt(this.children.length);
+                for (TrieNode child : this.children) {
+                    out.writeInt(child.character);
+                    out.writeInt((int) child.offset);
+                }
+                out.writeInt(this.topLists.length);
+                for (int[] topList : this.topLists) {
+                    out.writeInt(topList.length);
+                    for (int record : topList) {
+                        out.writeInt(record);
+                    }
+                }
+            }
+            else {
+                out.writeInt(0);
+                out.writeInt(-1);
+            }
+        }
+    }
+
+    //-----VARIABLES-----
+    private final File dumpDir;
+    private final Set<String> languages;
+    private final Map<String, String> countryNames;
+    private final Map<String, String> adminNames;
+    private final Map<Integer, Place> places;
+    private final List<String[]> postalCodes;
+    private final Map<String, Integer> stringIndexes;
+    private final List<String> strings;
+    //these are only used while writing
+    private int[] recordTypes;
+    private int[] recordPriorities;
+    private long[] recordPopulations;
+    private String[] sortedKeys;
+    private int[] keyFirstEntries;
+    private int[] entries;
+
+    //-----CONSTRUCTORS-----
+    public GeonamesGazetteerBuilder(File dumpDir, Set<String> languages)
+    {
+        this.dumpDir = dumpDir;
+        this.languages = languages;
+        this.countryNames = new HashMap<>();
+        this.adminNames = new HashMap<>();
+        this.places = new HashMap<>();
+        this.postalCodes = new ArrayList<>();
+        this.stringIndexes = new HashMap<>();
+        this.strings = new ArrayList<>();
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Returns the most recent modification time of the dump files in the directory and its postal code directory (or 0 if there are none)
+     */
+    public static long lastModified(File dumpDir)
+    {
+        long retVal = 0;
+
+        for (File dir : new File[] { dumpDir, new File(dumpDir, POSTAL_CODES_DIR) }) {
+            File[] files = dir.listFiles((parent, name) -> name.endsWith(TXT_EXTENSION));
+            if (files != null) {
+                for (File file : files) {
+                    retVal = Math.max(retVal, file.lastModified());
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Reads all dump files and writes the index to the file; the file is replaced at once when the new index is complete.
+     */
+    public void build(File indexFile) throws IOException
+    {
+        File placesFile = this.findPlacesFile();
+        if (placesFile == null) {
+            throw new IOException("Can't build gazetteer index, no " + ALL_COUNTRIES_FILE + " or " + CITIES_FILE_PREFIX + "NNNN" + TXT_EXTENSION + " file found in " + this.dumpDir);
+        }
+
+        this.readCountryInfo();
+        this.readAdminCodes(ADMIN1_FILES);
+        this.readAdminCodes(ADMIN2_FILES);
+        this.readPlaces(placesFile);
+        this.readAlternateNames();
+        this.readPostalCodes();
+
+        File tempFile = new File(indexFile.getAbsolutePath() + ".tmp");
+        this.write(tempFile);
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * allCountries.txt if it's there, otherwise the cities file with the lowest population limit (eg. cities500.txt over cities15000.txt)
+     */
+    private File findPlacesFile()
+    {
+        File retVal = new File(this.dumpDir, ALL_COUNTRIES_FILE);
+
+        if (!retVal.isFile()) {
+            retVal = null;
+            int lowestLimit = Integer.MAX_VALUE;
+            File[] files = this.dumpDir.listFiles((dir, name) -> name.startsWith(CITIES_FILE_PREFIX) && name.endsWith(TXT_EXTENSION));
+            if (files != null) {
+                for (File file : files) {
+                    String limit = file.getName().substring(CITIES_FILE_PREFIX.length(), file.getName().length() - TXT_EXTENSION.length());
+                    if (!limit.isEmpty() && limit.chars().allMatch(Character::isDigit) && Integer.parseInt(limit) < lowestLimit) {
+                        lowestLimit = Integer.parseInt(limit);
+                        retVal = file;
+                    }
+                }
+            }
+        }
+
+        return retVal;
+    }
+    private void readCountryInfo() throws IOException
+    {
+        File file = new File(this.dumpDir, COUNTRY_INFO_FILE);
+        if (file.isFile()) {
+            try (BufferedReader reader = this.open(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split("\t", -1);
+                    if (!line.startsWith("#") && columns.length > 16) {
+                        this.countryNames.put(columns[0], columns[4]);
+
+                        //we add the countries as places as well (if the places file doesn't have them), so we can search for them
+                        if (!columns[16].isEmpty()) {
+                            Place country = new Place();
+                            country.id = Integer.parseInt(columns[16]);
+                            country.name = columns[4];
+                            country.featureClass = COUNTRY_FEATURE_CLASS;
+                            country.featureCode = COUNTRY_FEATURE_CODE;
+                            country.countryCode = columns[0];
+                            country.population = this.parseLong(columns[7]);
+                            country.otherNames = new String[] { columns[1] };
+                            this.places.put(country.id, country);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    private void readAdminCodes(String[] fileNames) throws IOException
+    {
+        File file = this.findFile(fileNames);
+        if (file != null) {
+            try (BufferedReader reader = this.open(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split("\t", -1);
+                    if (columns.length > 1) {
+                        this.adminNames.put(columns[0], columns[1]);
+                    }
+                }
+            }
+        }
+    }
+    private void readPlaces(File file) throws IOException
+    {
+        try (BufferedReader reader = this.open(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", -1);
+                if (columns.length > 14 && this.getTypes(columns[6], columns[7]) != 0) {
+                    Place place = new Place();
+                    place.id = Integer.parseInt(columns[0]);
+                    place.name = columns[1];
+                    place.featureClass = columns[6];
+                    place.featureCode = columns[7];
+                    place.countryCode = columns[8];
+                    place.admin1Code = columns[10];
+                    place.admin2Code = columns[11];
+                    place.population = this.parseLong(columns[14]);
+                    //the ascii name and the alternate names (in all languages) are only used for searching
+                    List<String> otherNames = new ArrayList<>();
+                    otherNames.add(columns[2]);
+                    if (!columns[3].isEmpty()) {
+                        otherNames.addAll(Arrays.asList(columns[3].split(",")));
+                    }
+                    place.otherNames = otherNames.toArray(new String[otherNames.size()]);
+                    this.places.put(place.id, place);
+                }
+            }
+        }
+    }
+    /**
+     * Reads the names of our places in the configured languages; the preferred (or short) name of a language wins, historic and colloquial names are skipped.
+     */
+    private void readAlternateNames() throws IOException
+    {
+        File file = this.findFile(ALTERNATE_NAMES_FILES);
+        if (file != null) {
+            try (BufferedReader reader = this.open(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split("\t", -1);
+                    if (columns.length > 7 && this.languages.contains(columns[2]) && !"1".equals(columns[6]) && !"1".equals(columns[7])) {
+                        Place place = this.places.get(Integer.parseInt(columns[1]));
+                        if (place != null) {
+                            if (place.localizedNames == null) {
+                                place.localizedNames = new HashMap<>();
+                                place.preferredLanguages = new HashSet<>();
+                            }
+
+                            boolean preferred = "1".equals(columns[4]) || "1".equals(columns[5]);
+                            if (!place.localizedNames.containsKey(columns[2]) || (preferred && !place.preferredLanguages.contains(columns[2]))) {
+                                place.localizedNames.put(columns[2], columns[3]);
+                                if (preferred) {
+                                    place.preferredLanguages.add(columns[2]);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * Reads the postal codes of zip/allCountries.txt if it's there, otherwise of all (per country) files in the postal code directory
+     */
+    private void readPostalCodes() throws IOException
+    {
+        File dir = new File(this.dumpDir, POSTAL_CODES_DIR);
+        File[] files = new File[] { new File(dir, ALL_COUNTRIES_FILE) };
+        if (!files[0].isFile()) {
+            //the per country files are named after their country code, eg. BE.txt
+            files = dir.listFiles((parent, name) -> name.length() == 2 + TXT_EXTENSION.length() && name.endsWith(TXT_EXTENSION));
+        }
+
+        if (files != null) {
+            for (File file : files) {
+                try (BufferedReader reader = this.open(file)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] columns = line.split("\t", -1);
+                        if (columns.length > 2 && !columns[1].isEmpty() && !columns[2].isEmpty()) {
+                            this.postalCodes.add(new String[] { columns[0], columns[1], columns[2] });
+                        }
+                    }
+                }
+            }
+        }
+    }
+    private void write(File file) throws IOException
+    {
+        List<Place> sortedPlaces = new ArrayList<>(this.places.values());
+        sortedPlaces.sort(Comparator.comparingInt(place -> place.id));
+
+        //collect the strings of the records and their localized names, and precalculate what we need to rank and filter them
+        int[][] recordStrings = new int[sortedPlaces.size()][];
+        int[] recordParents = new int[sortedPlaces.size()];
+        this.recordTypes = new int[sortedPlaces.size()];
+        this.recordPriorities = new int[sortedPlaces.size()];
+        this.recordPopulations = new long[sortedPlaces.size()];
+        List<int[]> alternates = new ArrayList<>();
+        int[] alternatesStart = new int[sortedPlaces.size()];
+        for (int i = 0; i < sortedPlaces.size(); i++) {
+            Place place = sortedPlaces.get(i);
+            String countryName = this.countryNames.get(place.countryCode);
+            String admin1Name = this.adminNames.get(place.countryCode + "." + place.admin1Code);
+            String admin2Name = this.adminNames.get(place.countryCode + "." + place.admin1Code + "." + place.admin2Code);
+            recordStrings[i] = new int[] { this.intern(place.name),
+                                           this.intern(place.featureClass),
+                                           this.intern(place.featureCode),
+                                           this.intern(place.countryCode),
+                                           this.intern(countryName),
+                                           this.intern(admin1Name),
+                                           this.intern(admin2Name) };
+            recordParents[i] = this.intern(GeonamesGazetteer.getParents(place.countryCode, countryName, admin1Name, admin2Name));
+            this.recordTypes[i] = this.getTypes(place.featureClass, place.featureCode);
+            this.recordPriorities[i] = FEATURE_PRIORITIES.getOrDefault(place.featureCode, 0);
+            this.recordPopulations[i] = place.population;
+            alternatesStart[i] = alternates.size();
+            if (place.localizedNames != null) {
+                for (Map.Entry<String, String> localizedName : place.localizedNames.entrySet()) {
+                    alternates.add(new int[] { this.intern(localizedName.getKey()), this.intern(localizedName.getValue()) });
+                }
+            }
+        }
+
+        //link the postal codes to the cities with their name in their country (the most important one if there are more);
+        //the ones we can't find aren't of much use to us
+        Map<String, Integer> cities = new HashMap<>();
+        for (int i = 0; i < sortedPlaces.size(); i++) {
+            if ((this.recordTypes[i] & (1 << AbstractGeoname.Type.CITY.ordinal())) != 0) {
+                Place place = sortedPlaces.get(i);
+                List<String> names = new ArrayList<>(Arrays.asList(place.otherNames));
+                names.add(place.name);
+                if (place.localizedNames != null) {
+                    names.addAll(place.localizedNames.values());
+                }
+                for (String name : names) {
+                    cities.merge(GeonamesGazetteer.getPostalKey(place.countryCode, name), i, (previous, current) -> this.isBetter(current, previous) ? current : previous);
+                }
+            }
+        }
+        List<int[]> postalEntries = new ArrayList<>();
+        for (String[] postalCode : this.postalCodes) {
+            Integer record = cities.get(GeonamesGazetteer.getPostalKey(postalCode[0], postalCode[2]));
+            if (record != null) {
+                postalEntries.add(new int[] { this.intern(GeonamesGazetteer.getPostalKey(postalCode[0], postalCode[1])), this.intern(CachedSuggestions.normalize(postalCode[2])), record });
+            }
+        }
+        postalEntries.sort(Comparator.comparing(postalEntry -> this.strings.get(postalEntry[0])));
+
+        //collect the (normalized) names we search on; the entries are packed in longs (key << 32 | record) so we can sort them cheaply
+        Map<String, Integer> keyIds = new HashMap<>();
+        List<String> keys = new ArrayList<>();
+        LongStream.Builder entryBuilder = LongStream.builder();
+        for (int i = 0; i < sortedPlaces.size(); i++) {
+            Place place = sortedPlaces.get(i);
+            Set<String> names = new HashSet<>();
+            names.add(CachedSuggestions.normalize(place.name));
+            for (String name : place.otherNames) {
+                names.add(CachedSuggestions.normalize(name));
+            }
+            if (place.localizedNames != null) {
+                for (String name : place.localizedNames.values()) {
+                    names.add(CachedSuggestions.normalize(name));
+                }
+            }
+            names.remove("");
+
+            for (String name : names) {
+                Integer keyId = keyIds.get(name);
+                if (keyId == null) {
+                    keyId = keys.size();
+                    keyIds.put(name, keyId);
+                    keys.add(name);
+                }
+                entryBuilder.add(((long) keyId << 32) | i);
+            }
+        }
+
+        //sort the keys and renumber the entries to their rank, so the entries of a key end up next to each other (in the order of the keys)
+        Integer[] ranking = new Integer[keys.size()];
+        for (int i = 0; i < ranking.length; i++) {
+            ranking[i] = i;
+        }
+        Arrays.sort(ranking, Comparator.comparing(keys::get));
+        int[] ranks = new int[ranking.length];
+        for (int i = 0; i < ranking.length; i++) {
+            ranks[ranking[i]] = i;
+        }
+        long[] packedEntries = entryBuilder.build().map(entry -> ((long) ranks[(int) (entry >>> 32)] << 32) | (entry & 0xFFFFFFFFL)).sorted().toArray();
+        this.sortedKeys = new String[ranking.length];
+        int[] keyStrings = new int[ranking.length];
+        for (int i = 0; i < ranking.length; i++) {
+            this.sortedKeys[i] = keys.get(ranking[i]);
+            keyStrings[i] = this.intern(this.sortedKeys[i]);
+        }
+        //the entries are sorted on key, so the first entry of a key is the number of entries with a lower key
+        this.entries = new int[packedEntries.length];
+        this.keyFirstEntries = new int[ranking.length + 1];
+        int entry = 0;
+        for (int i = 0; i <= ranking.length; i++) {
+            while (entry < packedEntries.length && (int) (packedEntries[entry] >>> 32) < i) {
+                this.entries[entry] = (int) packedEntries[entry];
+                entry++;
+            }
+            this.keyFirstEntries[i] = entry;
+        }
+
+        //index the keys on their trigrams (the same way we renumber the keys above), so we can find the keys that look like a misspelled name
+        Map<Long, Integer> trigramIds = new HashMap<>();
+        List<Long> trigrams = new ArrayList<>();
+        LongStream.Builder postingBuilder = LongStream.builder();
+        for (int i = 0; i < this.sortedKeys.length; i++) {
+            for (long trigram : GeonamesGazetteer.getTrigrams(this.sortedKeys[i], true)) {
+                Integer trigramId = trigramIds.get(trigram);
+                if (trigramId == null) {
+                    trigramId = trigrams.size();
+                    trigramIds.put(trigram, trigramId);
+                    trigrams.add(trigram);
+                }
+                postingBuilder.add(((long) trigramId << 32) | i);
+            }
+        }
+        long[] sortedTrigrams = trigrams.stream().mapToLong(Long::longValue).sorted().toArray();
+        int[] trigramRanks = new int[sortedTrigrams.length];
+        for (int i = 0; i < sortedTrigrams.length; i++) {
+            trigramRanks[trigramIds.get(sortedTrigrams[i])] = i;
+        }
+        long[] packedPostings = postingBuilder.build().map(posting -> ((long) trigramRanks[(int) (posting >>> 32)] << 32) | (posting & 0xFFFFFFFFL)).sorted().toArray();
+
+        //build the prefix tree over the sorted keys and lay out its nodes (breadth first, so every node knows the offsets of its children)
+        TrieNode root = this.buildTrie(0, this.sortedKeys.length, 0);
+        List<TrieNode> trieNodes = new ArrayList<>();
+        trieNodes.add(root);
+        long trieSize = 0;
+        for (int i = 0; i < trieNodes.size(); i++) {
+            TrieNode node = trieNodes.get(i);
+            node.offset = trieSize;
+            trieSize += node.getSize();
+            if (node.children != null) {
+                trieNodes.addAll(Arrays.asList(node.children));
+            }
+        }
+
+        //now all strings are known, so we can calculate the layout
+        byte[][] stringBytes = new byte[this.strings.size()][];
+        long stringDataSize = 0;
+        for (int i = 0; i < stringBytes.length; i++) {
+            stringBytes[i] = this.strings.get(i).getBytes(StandardCharsets.UTF_8);
+            stringDataSize += stringBytes[i].length;
+        }
+        long recordsOffset = GeonamesGazetteer.HEADER_SIZE;
+        long alternatesOffset = recordsOffset + (long) sortedPlaces.size() * GeonamesGazetteer.RECORD_SIZE;
+        long stringOffsetsOffset = alternatesOffset + (long) alternates.size() * GeonamesGazetteer.ALTERNATE_SIZE;
+        long stringDataOffset = stringOffsetsOffset + (stringBytes.length + 1L) * 4;
+        long keysOffset = stringDataOffset + stringDataSize;
+        long entriesOffset = keysOffset + (keyStrings.length + 1L) * GeonamesGazetteer.KEY_SIZE;
+        long trigramsOffset = entriesOffset + (long) this.entries.length * GeonamesGazetteer.ENTRY_SIZE;
+        long postingsOffset = trigramsOffset + (sortedTrigrams.length + 1L) * GeonamesGazetteer.TRIGRAM_SIZE;
+        long postalCodesOffset = postingsOffset + (long) packedPostings.length * GeonamesGazetteer.POSTING_SIZE;
+        long trieOffset = postalCodesOffset + (long) postalEntries.size() * GeonamesGazetteer.POSTAL_CODE_SIZE;
+        long size = trieOffset + trieSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Gazetteer index would be too large (" + size + " bytes); please use a smaller dump file or less languages");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024))) {
+            out.writeInt(GeonamesGazetteer.MAGIC);
+            out.writeInt(GeonamesGazetteer.VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(sortedPlaces.size());
+            out.writeInt(alternates.size());
+            out.writeInt(stringBytes.length);
+            out.writeInt(keyStrings.length);
+            out.writeInt(this.entries.length);
+            out.writeInt(sortedTrigrams.length);
+            out.writeInt(packedPostings.length);
+            out.writeInt(postalEntries.size());
+            out.writeInt((int) recordsOffset);
+            out.writeInt((int) alternatesOffset);
+            out.writeInt((int) stringOffsetsOffset);
+            out.writeInt((int) stringDataOffset);
+            out.writeInt((int) keysOffset);
+            out.writeInt((int) entriesOffset);
+            out.writeInt((int) trigramsOffset);
+            out.writeInt((int) postingsOffset);
+            out.writeInt((int) postalCodesOffset);
+            out.writeInt((int) trieOffset);
+
+            for (int i = 0; i < sortedPlaces.size(); i++) {
+                Place place = sortedPlaces.get(i);
+                out.writeInt(place.id);
+                for (int string : recordStrings[i]) {
+                    out.writeInt(string);
+                }
+                out.writeLong(place.population);
+                out.writeInt(alternatesStart[i]);
+                out.writeInt((i + 1 < sortedPlaces.size() ? alternatesStart[i + 1] : alternates.size()) - alternatesStart[i]);
+                out.writeInt(this.recordTypes[i]);
+                out.writeInt(this.recordPriorities[i]);
+                out.writeInt(recordParents[i]);
+            }
+
+            for (int[] alternate : alternates) {
+                out.writeInt(alternate[0]);
+                out.writeInt(alternate[1]);
+            }
+
+            int stringOffset = 0;
+            for (byte[] bytes : stringBytes) {
+                out.writeInt(stringOffset);
+                stringOffset += bytes.length;
+            }
+            out.writeInt(stringOffset);
+            for (byte[] bytes : stringBytes) {
+                out.write(bytes);
+            }
+
+            for (int i = 0; i <= keyStrings.length; i++) {
+                out.writeInt(i < keyStrings.length ? keyStrings[i] : -1);
+                out.writeInt(this.keyFirstEntries[i]);
+            }
+
+            for (int record : this.entries) {
+                out.writeInt(record);
+            }
+
+            //the postings are sorted on trigram, so the first posting of a trigram is the number of postings with a lower trigram
+            int posting = 0;
+            for (int i = 0; i <= sortedTrigrams.length; i++) {
+                out.writeLong(i < sortedTrigrams.length ? sortedTrigrams[i] : -1);
+                while (posting < packedPostings.length && (int) (packedPostings[posting] >>> 32) < i) {
+                    posting++;
+                }
+                out.writeInt(posting);
+            }
+
+            for (long key : packedPostings) {
+                out.writeInt((int) key);
+            }
+
+            for (int[] postalEntry : postalEntries) {
+                out.writeInt(postalEntry[0]);
+                out.writeInt(postalEntry[1]);
+                out.writeInt(postalEntry[2]);
+            }
+
+            for (TrieNode node : trieNodes) {
+                node.write(out);
+            }
+        }
+    }
+    /**
+     * Builds the node of the prefix (of the specified length) that all keys in the range share.
+     * Only nodes with more entries than fit in a top list get children (and top lists); the small ones are simply scanned while searching.
+     */
+    private TrieNode buildTrie(int keyFrom, int keyTo, int depth)
+    {
+        TrieNode retVal = new TrieNode(keyFrom, keyTo);
+
+        if (this.keyFirstEntries[keyTo] - this.keyFirstEntries[keyFrom] > GeonamesGazetteer.TOP_SIZE) {
+            //the key that equals the prefix (if any) comes first and doesn't belong to a child
+            int childFrom = keyFrom;
+            if (childFrom < keyTo && this.sortedKeys[childFrom].length() == depth) {
+                childFrom++;
+            }
+
+            List<TrieNode> children = new ArrayList<>();
+            while (childFrom < keyTo) {
+                char c = this.sortedKeys[childFrom].charAt(depth);
+                int childTo = childFrom + 1;
+                while (childTo < keyTo && this.sortedKeys[childTo].charAt(depth) == c) {
+                    childTo++;
+                }
+                TrieNode child = this.buildTrie(childFrom, childTo, depth + 1);
+                child.character = c;
+                children.add(child);
+                childFrom = childTo;
+            }
+            retVal.children = children.toArray(new TrieNode[children.size()]);
+
+            //the best records of this node are the best of its (small) own entries and the top lists of its children
+            retVal.topLists = new int[AbstractGeoname.Type.values().length][];
+            for (AbstractGeoname.Type type : AbstractGeoname.Type.values()) {
+                Set<Integer> candidates = new LinkedHashSet<>();
+                if (keyFrom < keyTo && this.sortedKeys[keyFrom].length() == depth) {
+                    this.addEntries(candidates, keyFrom, keyFrom + 1);
+                }
+                for (TrieNode child : retVal.children) {
+                    if (child.topLists != null) {
+                        for (int record : child.topLists[type.ordinal()]) {
+                            candidates.add(record);
+                        }
+                    }
+                    else {
+                        this.addEntries(candidates, child.keyFrom, child.keyTo);
+                    }
+                }
+                retVal.topLists[type.ordinal()] = candidates.stream()
+                                                            .filter(record -> (this.recordTypes[record] & (1 << type.ordinal())) != 0)
+                                                            .sorted(Comparator.comparingInt((Integer record) -> this.recordPriorities[record])
+                                                                              .thenComparingLong(record -> this.recordPopulations[record])
+                                                                              .reversed())
+                                                            .limit(GeonamesGazetteer.TOP_SIZE)
+                                                            .mapToInt(Integer::intValue)
+                                                            .toArray();
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns true if the first record should come before the second one in the search results
+     */
+    private boolean isBetter(int record, int other)
+    {
+        return this.recordPriorities[record] > this.recordPriorities[other] ||
+               (this.recordPriorities[record] == this.recordPriorities[other] && this.recordPopulations[record] > this.recordPopulations[other]);
+    }
+    private void addEntries(Set<Integer> records, int keyFrom, int keyTo)
+    {
+        for (int i = this.keyFirstEntries[keyFrom]; i < this.keyFirstEntries[keyTo]; i++) {
+            records.add(this.entries[i]);
+        }
+    }
+    /**
+     * Returns the bitmask of the types (their ordinal) the feature belongs to
+     */
+    private int getTypes(String featureClass, String featureCode)
+    {
+        int retVal = 0;
+
+        for (AbstractGeoname.Type type : AbstractGeoname.Type.values()) {
+            if ((type.featureClasses == null || Arrays.asList(type.featureClasses).contains(featureClass)) &&
+                (type.featureCodes == null || Arrays.asList(type.featureCodes).contains(featureCode))) {
+                retVal |= 1 << type.ordinal();
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the index of the string in the string table (adding it if needed), or -1 for null
+     */
+    private int intern(String value)
+    {
+        int retVal = -1;
+
+        if (value != null) {
+            Integer index = this.stringIndexes.get(value);
+            if (index == null) {
+                index = this.strings.size();
+                this.stringIndexes.put(value, index);
+                this.strings.add(value);
+            }
+            retVal = index;
+        }
+
+        return retVal;
+    }
+    private File findFile(String[] fileNames)
+    {
+        File retVal = null;
+
+        for (int i = 0; retVal == null && i < fileNames.length; i++) {
+            File file = new File(this.dumpDir, fileNames[i]);
+            if (file.isFile()) {
+                retVal = file;
+            }
+        }
+
+        return retVal;
+    }
+    private BufferedReader open(File file) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1024 * 1024);
+    }
+    private long parseLong(String value)
+    {
+        long retVal = 0;
+
+        try {
+            retVal = value.isEmpty() ? 0 : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            //some numbers in the dumps are formatted (eg. with decimals), we don't really need them
+        }
+
+        return retVal;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.vocabularies.wikidata;
+
+import com.beligum.base.utils.Logger;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+import com.beligum.blocks.ontologies.commons.utils.CompressedBitmap;
+import com.beligum.blocks.ontologies.commons.utils.Futures;
+import com.beligum.blocks.ontologies.commons.utils.SingleFlight;
+import com.beligum.blocks.ontologies.commons.utils.SparqlEndpoint;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The subclass (P279) hierarchy of Wikidata, so we can check locally (in constant time) whether a class is a subclass (at any depth) of another one,
+ * something the SPARQL endpoint can only answer with a slow property path query (P31/P279*).
+ * For every root class we're asked about, we compute its closure (the class itself and all its subclasses) once and keep it as a compressed bitmap
+ * of the numeric part of the ids.
+ *
+ * The closures are computed from an extract of the subclass statements of the Wikidata dump if one is configured (see Settings.getWikidataClassHierarchyFile()),
+ * eg. the output of 'zgrep "/prop/direct/P279>" latest-truthy.nt.gz' or a file with a 'subclass superclass' pair of ids on every line.
+ * Without an extract (or while it's being loaded), they're fetched from the SPARQL endpoint in the background and fetched again when they get older than
+ * Settings.getWikidataClassHierarchyMaxAge(). Nobody waits for such a fetch: until it's done, the closure is only the root class itself
+ * (or the previous closure, when it's being refreshed).
+ */
+public class WikidataClassHierarchy
+{
+    //-----CONSTANTS-----
+    //when we couldn't fetch a closure, we make do with the root class itself for a while before trying again (in milliseconds)
+    private static final long FAILED_CLOSURE_RETRY = 60 * 1000;
+
+    //-----VARIABLES-----
+    private static WikidataClassHierarchy instance;
+    private final Map<Integer, Closure> closures;
+    //makes sure we only fetch the closure of every root once at a time
+    private final SingleFlight<Integer, Closure> fetches;
+    //the statements of the extract, packed as (superclass << 32 | subclass) and sorted, so we find all subclasses of a class with a binary search;
+    //null if we don't have an extract (yet)
+    private volatile long[] edges;
+
+    //-----CONSTRUCTORS-----
+    private WikidataClassHierarchy()
+    {
+        this.closures = new ConcurrentHashMap<>();
+        this.fetches = new SingleFlight<>();
+    }
+
+    //-----STATIC METHODS-----
+    /**
+     * Returns the class hierarchy; the first call starts loading the extract (if one is configured) in the background
+     */
+    public static synchronized WikidataClassHierarchy instance()
+    {
+        if (instance == null) {
+            instance = new WikidataClassHierarchy();
+
+            String file = Settings.instance().getWikidataClassHierarchyFile();
+            if (file != null) {
+                instance.load(new File(file));
+            }
+        }
+
+        return instance;
+    }
+    /**
+     * Returns the numeric part of a Wikidata item id or entity URI (eg. 515 for Q515 or http://www.wikidata.org/entity/Q515), or -1 if it's not an item.
+     */
+    public static int toNumericId(String id)
+    {
+        int retVal = -1;
+
+        if (id != null) {
+            int start = id.lastIndexOf('/') + 1;
+            if (id.length() > start + 1 && id.charAt(start) == 'Q' && Character.isDigit(id.charAt(start + 1))) {
+                try {
+                    retVal = Integer.parseInt(id.substring(start + 1));
+                }
+                catch (NumberFormatException e) {
+                    retVal = -1;
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    //-----PUBLIC METHODS-----
+    /**
+     * Returns true if the class is the root class or one of its subclasses (at any depth)
+     */
+    public boolean isSubclassOf(int classId, int rootId)
+    {
+        return this.getClosure(rootId).contains(classId);
+    }
+    /**
+     * Returns the root class and all its subclasses (at any depth). This never waits for the SPARQL endpoint: if we don't have the closure of the root yet,
+     * it's fetched in the background and we return the root class itself in the meantime (so only the direct classes of an item count until then).
+     */
+    public CompressedBitmap getClosure(int rootId)
+    {
+        Closure retVal = this.closures.get(rootId);
+
+        if (retVal == null || retVal.isExpired()) {
+            long[] edges = this.edges;
+            if (edges != null) {
+                retVal = new Closure(this.closeOver(edges, rootId), Long.MAX_VALUE);
+                this.closures.put(rootId, retVal);
+            }
+            else {
+                this.fetchClosureAsync(rootId);
+                //an expired closure is still a lot better than nothing while it's being refreshed
+                if (retVal == null) {
+                    retVal = new Closure(CompressedBitmap.of(new int[] { rootId }), 0);
+                }
+            }
+        }
+
+        return retVal.classes;
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * Starts fetching the closure of the root class from the SPARQL endpoint, unless that's already going on.
+     * When it fails, we keep what we had (or the root class itself) and only try again after FAILED_CLOSURE_RETRY.
+     */
+    private void fetchClosureAsync(int rootId)
+    {
+        this.fetches.executeAsync(rootId, () -> {
+            long start = System.currentTimeMillis();
+            return SparqlEndpoint.WIKIDATA.selectAsync("SELECT ?class WHERE { ?class wdt:P279* wd:Q" + rootId + " }")
+                                          .thenApply(bindingSets -> {
+                                              Closure closure = new Closure(this.readClosure(rootId, bindingSets),
+                                                                            start + Settings.instance().getWikidataClassHierarchyMaxAge() * 1000);
+                                              Logger.debug("Fetched the " + closure.classes.size() + " subclasses of Wikidata class Q" + rootId + " in " +
+                                                           (System.currentTimeMillis() - start) + "ms");
+                                              return closure;
+                                          });
+        }).whenComplete((closure, error) -> {
+            //once the extract is loaded, the closures are computed from that
+            if (this.edges == null) {
+                if (error != null) {
+                    Logger.error("Error while fetching the subclasses of Wikidata class Q" + rootId + ", trying again in " + (FAILED_CLOSURE_RETRY / 1000) + "s",
+                                 Futures.unwrap(error));
+                    Closure previous = this.closures.get(rootId);
+                    closure = new Closure(previous == null ? CompressedBitmap.of(new int[] { rootId }) : previous.classes,
+                                          System.currentTimeMillis() + FAILED_CLOSURE_RETRY);
+                }
+                this.closures.put(rootId, closure);
+            }
+        });
+    }
+    /**
+     * Walks the statements of the extract down from the root class, breadth first
+     */
+    private CompressedBitmap closeOver(long[] edges, int rootId)
+    {
+        Set<Integer> visited = new HashSet<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        visited.add(rootId);
+        queue.add(rootId);
+
+        while (!queue.isEmpty()) {
+            int superclass = queue.poll();
+            int index = Arrays.binarySearch(edges, (long) superclass << 32);
+            for (int i = index < 0 ? -index - 1 : index; i < edges.length && (int) (edges[i] >>> 32) == superclass; i++) {
+                int subclass = (int) edges[i];
+                //the hierarchy should be acyclic, but it isn't always
+                if (visited.add(subclass)) {
+                    queue.add(subclass);
+                }
+            }
+        }
+
+        return CompressedBitmap.of(visited.stream().mapToInt(Integer::intValue).toArray());
+    }
+    /**
+     * Reads the result of the SPARQL query for the root class and all its subclasses (the zero length path matches the root itself)
+     */
+    private CompressedBitmap readClosure(int rootId, List<Map<String, String>> bindingSets)
+    {
+        Set<Integer> classes = new HashSet<>();
+        classes.add(rootId);
+
+        for (Map<String, String> bindingSet : bindingSets) {
+            int classId = toNumericId(bindingSet.get("class"));
+            if (classId >= 0) {
+                classes.add(classId);
+            }
+        }
+
+        return CompressedBitmap.of(classes.stream().mapToInt(Integer::intValue).toArray());
+    }
+    /**
+     * Loads the extract in the background, so we don't block anyone while that's going on
+     */
+    private void load(File file)
+    {
+        Thread loader = new Thread(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                long[] edges = this.readEdges(file);
+                this.edges = edges;
+                //the closures we fetched in the meantime are computed again, from the extract
+                this.closures.clear();
+                Logger.info("Loaded the " + edges.length + " subclass statements of the Wikidata class hierarchy in " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+            catch (Throwable e) {
+                Logger.error("Error while loading the Wikidata class hierarchy from " + file + ", continuing without it", e);
+            }
+        }, "ontologies-commons-class-hierarchy-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+    /**
+     * Reads the subclass statements of the extract; every line is either an N-Triples statement (only the P279 ones are used)
+     * or a pair of ids (or entity URIs) of a subclass and its superclass, separated by whitespace or a comma.
+     */
+    private long[] readEdges(File file) throws IOException
+    {
+        long[] retVal = new long[1024];
+        int size = 0;
+
+        try (InputStream fileStream = new FileInputStream(file);
+             InputStream inputStream = file.getName().endsWith(".gz") ? new GZIPInputStream(fileStream, 64 * 1024) : fileStream;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024)) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("[\\s,]+");
+                int subclass = -1;
+                int superclass = -1;
+                if (tokens.length >= 3 && tokens[1].endsWith("/P279>")) {
+                    subclass = toNumericId(this.stripBrackets(tokens[0]));
+                    superclass = toNumericId(this.stripBrackets(tokens[2]));
+                }
+                else if (tokens.length == 2) {
+                    subclass = toNumericId(this.stripBrackets(tokens[0]));
+                    superclass = toNumericId(this.stripBrackets(tokens[1]));
+                }
+
+                if (subclass >= 0 && superclass >= 0) {
+                    if (size == retVal.length) {
+                        retVal = Arrays.copyOf(retVal, size * 2);
+                    }
+                    retVal[size++] = ((long) superclass << 32) | subclass;
+                }
+            }
+        }
+
+        long[] sorted = Arrays.copyOf(retVal, size);
+        Arrays.sort(sorted);
+
+        return Arrays.stream(sorted).distinct().toArray();
+    }
+    private String stripBrackets(String token)
+    {
+        return token.startsWith("<") && token.endsWith(">") ? token.substring(1, token.length() - 1) : token;
+    }
+
+    /**
+     * The closure of a root class and the time (in milliseconds) it should be computed again
+     */
+    private static class Closure
+    {
+        private final CompressedBitmap classes;
+        private final long expires;
+
+        public Closure(CompressedBitmap classes, long expires)
+        {
+            this.classes = classes;
+            this.expires = expires;
+        }
+
+        public boolean isExpired()
+        {
+            return System.currentTimeMillis() > this.expires;
+        }
+    }
+}
@@ -15,45 +15,57 @@
  */
 package com.beligum.blocks.ontologies.commons.vocabularies.wikidata;
 
-import com.beligum.base.cache.Cache;
-import com.beligum.base.cache.EhCacheAdaptor;
-import com.beligum.base.server.R;
 import com.beligum.base.utils.Logger;
 import com.beligum.base.utils.json.Json;
 import com.beligum.blocks.config.RdfFactory;
 import com.beligum.blocks.endpoints.ifaces.AutocompleteSuggestion;
 import com.beligum.blocks.endpoints.ifaces.ResourceInfo;
+import com.beligum.blocks.ontologies.commons.config.Settings;
+import com.beligum.blocks.ontologies.commons.utils.CachedSuggestions;
+import com.beligum.blocks.ontologies.commons.utils.CircuitOpenException;
+import com.beligum.blocks.ontologies.commons.utils.CompressedBitmap;
+import com.beligum.blocks.ontologies.commons.utils.Futures;
+import com.beligum.blocks.ontologies.commons.utils.HttpClientPool;
+import com.beligum.blocks.ontologies.commons.utils.PersistentModelStore;
+import com.beligum.blocks.ontologies.commons.utils.RefreshAheadCache;
+import com.beligum.blocks.ontologies.commons.utils.RemoteHost;
+import com.beligum.blocks.ontologies.commons.utils.SingleFlight;
+import com.beligum.blocks.ontologies.commons.utils.SparqlEndpoint;
+import com.beligum.blocks.ontologies.commons.utils.SubjectFilteringRdfHandler;
 import com.beligum.blocks.ontologies.commons.vocabularies.SKOS;
 import com.beligum.blocks.ontologies.commons.vocabularies.WB;
-import com.beligum.blocks.rdf.ifaces.Format;
 import com.beligum.blocks.rdf.ifaces.RdfClass;
 import com.beligum.blocks.rdf.ifaces.RdfProperty;
-import com.beligum.blocks.rdf.importers.SesameImporter;
 import com.beligum.blocks.utils.RdfTools;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.rdf4j.model.Model;
-import org.eclipse.rdf4j.model.Statement;
-import org.eclipse.rdf4j.model.impl.LinkedHashModel;
-import org.eclipse.rdf4j.query.*;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.RepositoryException;
-import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
-import org.glassfish.jersey.client.ClientConfig;
-
-import javax.ws.rs.ProcessingException;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
+import org.eclipse.rdf4j.rio.RDFFormat;
+
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
-import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CACHED_RESULTS;
+import static com.beligum.blocks.ontologies.commons.config.CacheKeys.NEGATIVE_RESULTS;
+import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CACHED_CLASSES;
+import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CACHED_MODELS;
+import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CACHED_RESOURCES;
+import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CACHED_SEARCHES;
 
 /**
  * Created by Bram on 6/01/17.
@@ -62,10 +74,20 @@ import static com.beligum.blocks.ontologies.commons.config.CacheKeys.WIKIDATA_CA
  */
 public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.ifaces.RdfQueryEndpoint
 {
+    //makes sure concurrent identical searches (eg. multiple editors typing the same thing) share one remote call
+    private static final SingleFlight<CachedSearch, Collection<AutocompleteSuggestion>> SEARCHES_IN_FLIGHT = new SingleFlight<>();
+    //the number of results we ask wbsearchentities for; if we get less, we know we have all of them
+    private static final int SEARCH_LIMIT = 15;
+    //the maximum number of ids wbgetentities accepts in one call (for non-bot users)
+    private static final int MAX_ENTITIES_PER_CALL = 50;
+    //only plain item ids can be batched; a single unknown id format makes wbgetentities reject the entire call
+    private static final Pattern ENTITY_ID = Pattern.compile("Q[0-9]+");
+    //the image property of Wikidata and the way the SPARQL endpoint turns its value (a file name on Commons) into a URI
+    private static final String IMAGE_PROPERTY = "P18";
+    private static final String COMMONS_FILE_PATH = "http://commons.wikimedia.org/wiki/Special:FilePath/";
+    private static final RefreshAheadCache CACHED_RESOURCES = new RefreshAheadCache(WIKIDATA_CACHED_RESOURCES);
+    private static final RefreshAheadCache CACHED_MODELS = new RefreshAheadCache(WIKIDATA_CACHED_MODELS);
 
-    private final String WIKIPEDIPrefix = "https://";
-    private final String WIKIPEDIA_API_URI = ".wikipedia.org/w/api.php";
-    private final String WIKIDATA_PUBLIC_URI = "http://www.wikidata.org/entity/";
     private final String action = "action";
     private final String search = "search";
     private AbstractWikidata.Type wikiType;
@@ -102,7 +124,7 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
     public Collection<AutocompleteSuggestion> search(RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults, SearchOption... options) throws IOException
     {
         try {
-            Collection<AutocompleteSuggestion> retVal = this.doSearchQueryForLanguage(query, resourceType, language);
+            Collection<AutocompleteSuggestion> retVal = Futures.await(this.searchAsync(resourceType, query, queryType, language, maxResults, options));
             return retVal;
         }
         catch (Exception ex) {
@@ -110,6 +132,44 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
         }
 
     }
+    /**
+     * Asynchronous variant of search(); the remote calls are executed by the bounded pool of the HttpClientPool.
+     */
+    public CompletableFuture<Collection<AutocompleteSuggestion>> searchAsync(RdfClass resourceType, final String query, QueryType queryType, Locale language, int maxResults,
+                                                                            SearchOption... options)
+    {
+        CompletableFuture<Collection<AutocompleteSuggestion>> retVal;
+
+        //use a cached result if it's there, or derive it from the cached result of a shorter prefix (eg. while the user is typing)
+        CachedSearch cacheKey = new CachedSearch(this.wikiType, resourceType, this.normalizeQuery(query), language, this.wikidataInstancesOff);
+        Collection<AutocompleteSuggestion> cachedResult = this.getCachedAnswer(cacheKey);
+        if (cachedResult != null) {
+            retVal = CompletableFuture.completedFuture(cachedResult);
+        }
+        //when Wikidata is down, don't even bother queueing the search; return nothing immediately (but the cached results are still fine)
+        else if (!HttpClientPool.instance().isAvailable(RemoteHost.WIKIDATA)) {
+            retVal = CompletableFuture.completedFuture(new HashSet<>());
+        }
+        else {
+            retVal = SEARCHES_IN_FLIGHT.executeAsync(cacheKey, () -> HttpClientPool.instance().submit(() -> {
+                CachedSuggestions result = this.doSearchQueryForLanguage(query, resourceType, language);
+                Collection<AutocompleteSuggestion> suggestions;
+
+                //don't cache the empty result of a failed search
+                if (result != null) {
+                    this.putCachedEntry(cacheKey, result);
+                    suggestions = result.getSuggestions();
+                }
+                else {
+                    suggestions = new HashSet<>();
+                }
+
+                return suggestions;
+            }));
+        }
+
+        return retVal;
+    }
 
     /**
      * Looks up the actual resource.
@@ -122,6 +182,272 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
      */
     @Override
     public ResourceInfo getResource(RdfClass resourceType, URI resourceId, Locale language) throws IOException
+    {
+        return Futures.await(this.getResourceAsync(resourceType, resourceId, language));
+    }
+    /**
+     * Asynchronous variant of getResource()
+     */
+    public CompletableFuture<ResourceInfo> getResourceAsync(RdfClass resourceType, URI resourceId, Locale language)
+    {
+        CompletableFuture<ResourceInfo> retVal;
+
+        //use a cached result if it's there (when it's getting old, it's refreshed in the background)
+        CachedResource cacheKey = new CachedResource(resourceType, resourceId, language);
+        WikidataResourceInfo cachedResult = this.getCachedEntry(cacheKey);
+        if (cachedResult != null) {
+            retVal = CompletableFuture.completedFuture(cachedResult);
+        }
+        //we recently learned this resource doesn't exist
+        else if (this.isCachedMissing(cacheKey)) {
+            retVal = CompletableFuture.completedFuture(null);
+        }
+        else {
+            //when Wikidata is down (the circuit breaker is open), we act like we don't know the resource,
+            //but we don't remember that (so it's not cached as missing)
+            retVal = Futures.recover(this.fetchResourceAsync(cacheKey), CircuitOpenException.class, () -> null);
+        }
+
+        return retVal;
+    }
+    /**
+     * Looks up a number of resources at once (eg. all resources referenced by a page).
+     * The ones we don't have cached are fetched with one wbgetentities call per MAX_ENTITIES_PER_CALL resources (instead of one SPARQL query per resource)
+     * and cached, just like the ones fetched by getResource().
+     * Resources that don't exist (or that couldn't be fetched) are left out of the returned map.
+     */
+    public Map<URI, ResourceInfo> getResources(RdfClass resourceType, Collection<URI> resourceIds, Locale language) throws IOException
+    {
+        return Futures.await(this.getResourcesAsync(resourceType, resourceIds, language));
+    }
+    /**
+     * Asynchronous variant of getResources()
+     */
+    public CompletableFuture<Map<URI, ResourceInfo>> getResourcesAsync(RdfClass resourceType, Collection<URI> resourceIds, Locale language)
+    {
+        Map<URI, ResourceInfo> cachedResults = new LinkedHashMap<>();
+        //note that different URIs can point to the same item (eg. a local and an external one)
+        Map<String, List<URI>> batchedIds = new LinkedHashMap<>();
+        List<CompletableFuture<Map<URI, ResourceInfo>>> fetches = new ArrayList<>();
+
+        for (URI resourceId : resourceIds) {
+            CachedResource cacheKey = new CachedResource(resourceType, resourceId, language);
+            WikidataResourceInfo cachedResult = this.getCachedEntry(cacheKey);
+            String wikibase_item = resourceId.toString().substring(resourceId.toString().lastIndexOf('/') + 1);
+            if (cachedResult != null) {
+                cachedResults.put(resourceId, cachedResult);
+            }
+            else if (this.isCachedMissing(cacheKey)) {
+                //we recently learned this resource doesn't exist
+            }
+            //Wikipedia titles need to be resolved first (and only things are looked up), so those go the regular way
+            else if (!this.wikiType.equals(AbstractWikidata.Type.THING) || (resourceId.getAuthority() != null && resourceId.getAuthority().contains("wikipedia"))
+                     || !ENTITY_ID.matcher(wikibase_item).matches()) {
+                fetches.add(this.fetchResourceAsync(cacheKey).thenApply(resourceInfo -> resourceInfo == null ? Collections.<URI, ResourceInfo>emptyMap()
+                                                                                                              : Collections.singletonMap(resourceId, resourceInfo)));
+            }
+            else {
+                batchedIds.computeIfAbsent(wikibase_item, k -> new ArrayList<>()).add(resourceId);
+            }
+        }
+
+        List<String> ids = new ArrayList<>(batchedIds.keySet());
+        for (int i = 0; i < ids.size(); i += MAX_ENTITIES_PER_CALL) {
+            Map<String, List<URI>> batch = new LinkedHashMap<>();
+            for (String id : ids.subList(i, Math.min(i + MAX_ENTITIES_PER_CALL, ids.size()))) {
+                batch.put(id, batchedIds.get(id));
+            }
+            fetches.add(this.fetchResourcesAsync(resourceType, batch, language));
+        }
+
+        //one failed call shouldn't take the results of the others down with it
+        CompletableFuture<Map<URI, ResourceInfo>> retVal = CompletableFuture.completedFuture(cachedResults);
+        for (CompletableFuture<Map<URI, ResourceInfo>> fetch : fetches) {
+            retVal = retVal.thenCombine(fetch.exceptionally(e -> {
+                Throwable cause = Futures.unwrap(e);
+                if (cause instanceof CircuitOpenException) {
+                    Logger.debug("Skipping Wikidata resources; " + cause.getMessage());
+                }
+                else {
+                    Logger.error("Error while fetching Wikidata resources", cause);
+                }
+                return Collections.emptyMap();
+            }), (results, fetched) -> {
+                results.putAll(fetched);
+                return results;
+            });
+        }
+
+        return retVal;
+    }
+    @Override
+    public RdfProperty[] getLabelCandidates(RdfClass rdfClass)
+    {
+        if (this.cachedLabelProps == null) {
+            this.cachedLabelProps = new RdfProperty[] { SKOS.prefLabel, SKOS.altLabel };
+        }
+
+        return this.cachedLabelProps;
+    }
+    @Override
+    public URI getExternalResourceId(URI resourceId, Locale locale)
+    {
+        return AbstractWikidata.toWikidataUri(new RdfTools.RdfResourceUri(resourceId).getResourceId());
+    }
+    @Override
+    public Model getExternalRdfModel(RdfClass rdfClass, URI resourceId, Locale language) throws IOException
+    {
+        return Futures.await(this.getExternalRdfModelAsync(rdfClass, resourceId, language));
+    }
+    /**
+     * Asynchronous variant of getExternalRdfModel()
+     */
+    public CompletableFuture<Model> getExternalRdfModelAsync(RdfClass rdfClass, URI resourceId, Locale language)
+    {
+        CompletableFuture<Model> retVal = CompletableFuture.completedFuture(null);
+        if (resourceId != null && !resourceId.toString().isEmpty()) {
+
+            //use a cached result if it's there (when it's getting old, it's refreshed in the background)
+            WikidataQueryEndpoint.CachedExternalModel cacheKey = new WikidataQueryEndpoint.CachedExternalModel(rdfClass, resourceId, language);
+            Model cachedResult = this.getCachedEntry(cacheKey);
+            if (cachedResult != null) {
+                retVal = CompletableFuture.completedFuture(cachedResult);
+            }
+            //we recently learned this entity doesn't exist
+            else if (this.isCachedMissing(cacheKey)) {
+                retVal = CompletableFuture.completedFuture(null);
+            }
+            else {
+                //same as getResourceAsync(): no model (and nothing cached) when Wikidata is down
+                retVal = Futures.recover(this.fetchExternalRdfModelAsync(cacheKey), CircuitOpenException.class, () -> null);
+            }
+        }
+
+        return retVal;
+    }
+    @Override
+    public RdfClass getExternalClasses(RdfClass rdfClass)
+    {
+        return WB.Item;
+    }
+
+    /**
+     * Fetches the resource info (on the pool of the HttpClientPool) and caches the result (both if it exists and if it doesn't)
+     */
+    private CompletableFuture<ResourceInfo> fetchResourceAsync(WikidataQueryEndpoint.CachedResource cacheKey)
+    {
+        return HttpClientPool.instance().submit(() -> {
+            WikidataResourceInfo resourceInfo = this.fetchResource(cacheKey.resourceType, cacheKey.resourceId, cacheKey.language);
+            if (resourceInfo != null) {
+                this.putCachedEntry(cacheKey, resourceInfo);
+            }
+            else {
+                this.putCachedMissing(cacheKey);
+            }
+            return resourceInfo;
+        });
+    }
+    /**
+     * Fetches a batch of resources (the URIs they were requested with, mapped by their Wikidata id) with one wbgetentities call: the labels, sitelinks and claims (for the image) all come back in one response.
+     * Like fetchResourceAsync(), the results are cached (both if they exist and if they don't).
+     */
+    private CompletableFuture<Map<URI, ResourceInfo>> fetchResourcesAsync(RdfClass resourceType, Map<String, List<URI>> batch, Locale language)
+    {
+        String lang = language.getLanguage();
+        String englishLang = Locale.ENGLISH.getLanguage();
+        URI target = UriBuilder.fromUri("https://www.wikidata.org/w/api.php?")
+                               .queryParam(action, "wbgetentities")
+                               .queryParam("format", "json")
+                               .queryParam("ids", String.join("|", batch.keySet()))
+                               .queryParam("props", "labels|sitelinks/urls|claims")
+                               .queryParam("languages", lang + "|" + englishLang)
+                               .queryParam("sitefilter", lang + "wiki|" + englishLang + "wiki")
+                               .build();
+
+        return HttpClientPool.instance().<Map<String, WikidataResourceInfo>>getAsync(target, MediaType.APPLICATION_JSON, response -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                throw new IOException("Wikidata API returned unexpected http code (" + response.getStatusLine().getStatusCode() + ") when fetching " + batch.size() +
+                                      " resources; " + response.getStatusLine().getReasonPhrase());
+            }
+            try (JsonParser parser = Json.getObjectMapper().getFactory().createParser(response.getEntity().getContent())) {
+                return this.readEntities(parser, resourceType, language);
+            }
+        }).thenApply(entities -> {
+            Map<URI, ResourceInfo> resources = new LinkedHashMap<>();
+            for (Map.Entry<String, List<URI>> entry : batch.entrySet()) {
+                WikidataResourceInfo resourceInfo = entities.get(entry.getKey());
+                for (URI resourceId : entry.getValue()) {
+                    CachedResource cacheKey = new CachedResource(resourceType, resourceId, language);
+                    if (resourceInfo != null) {
+                        this.putCachedEntry(cacheKey, resourceInfo);
+                        resources.put(resourceId, resourceInfo);
+                    }
+                    else {
+                        this.putCachedMissing(cacheKey);
+                    }
+                }
+            }
+            return resources;
+        });
+    }
+    /**
+     * Fetches the RDF model of the entity and caches the result (both if it exists and if it doesn't)
+     */
+    private CompletableFuture<Model> fetchExternalRdfModelAsync(WikidataQueryEndpoint.CachedExternalModel cacheKey)
+    {
+        CompletableFuture<Model> retVal = CompletableFuture.completedFuture(null);
+
+        try {
+            URI rdfUri = this.getExternalResourceId(cacheKey.resourceId, cacheKey.language);
+            //the wikidata endpoint is actually https.
+            String[] segments = rdfUri.getPath().split("/");
+            String idStr = segments[segments.length - 1];
+            //we'll query the https directly so we don't get redirected
+            final URI httpsUri = new URI("https://www.wikidata.org/entity/" + idStr);
+            //this seems to be the only RDF format that's accepted
+            //Note: the pooled client follows the redirect (to the Special:EntityData page) for us
+            retVal = HttpClientPool.instance().<Model>getAsync(httpsUri, "application/rdf+xml", response -> {
+                Model model = null;
+
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    //only adds the properties that hava to do with the actual entity (filtered while parsing, the rest is never kept in memory).
+                    //Note that the predicate uses http, while the actual URL uses https.
+                    //if we get here, it means we have a model, empty or not
+                    model = SubjectFilteringRdfHandler.parse(response.getEntity().getContent(), RDFFormat.RDFXML, httpsUri.toString(),
+                                                             "http://www.wikidata.org/entity/" + new RdfTools.RdfResourceUri(cacheKey.resourceId).getResourceId());
+                }
+                //an unknown (or deleted) entity; we return null, like for an empty resource id
+                else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                    model = null;
+                }
+                else {
+                    throw new IOException("Wikidata RDF endpoint returned unexpected http code (" + response.getStatusLine().getStatusCode() + ") when fetching dependency model for " +
+                                          cacheKey.resourceId + "; " + response.getStatusLine().getReasonPhrase());
+                }
+
+                return model;
+            }).thenApply(model -> {
+                if (model != null) {
+                    this.putCachedEntry(cacheKey, model);
+                }
+                else {
+                    this.putCachedMissing(cacheKey);
+                }
+                return model;
+            });
+        }
+        catch (URISyntaxException e) {
+            retVal = Futures.failed(new IOException("Can't build the Wikidata RDF URI of " + cacheKey.resourceId, e));
+        }
+
+        return retVal;
+    }
+    /**
+     * Looks up the actual resource (synchronously).
+     *
+     * @param resourceId is the id of the 'local' resource, e.g. /resource/WikidataCountry/Q12345. The 'Q12345' is the Wikidata resource id.
+     */
+    private WikidataResourceInfo fetchResource(RdfClass resourceType, URI resourceId, Locale language) throws IOException
     {
         String wikibase_item = null;
         if (resourceId.getAuthority() != null && resourceId.getAuthority().contains("wikipedia")) {
@@ -141,46 +467,15 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
                            wikibase_item +
                            " AS ?data) { ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://en.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"en\". }}UNION{ ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://fr.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"?lang, fr\". } }UNION{ ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://nl.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"?lang, nl\". } } OPTIONAL{?data wdt:P18 ?pic}}";
             //                           " AS ?data) { ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://en.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"en\". }}UNION{ ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://fr.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"?lang, en\". } }UNION{ ?sitelink schema:about ?data. ?sitelink schema:isPartOf <https://nl.wikipedia.org/>.?sitelink schema:inLanguage ?lang. SERVICE wikibase:label { bd:serviceParam wikibase:language \"?lang, en\". } } OPTIONAL{?data wdt:P18 ?pic}}";
-            RepositoryConnection sparqlConnection = null;
-            try {
-                SPARQLRepository sparqlRepository = new SPARQLRepository("https://query.wikidata.org/sparql");
-                sparqlRepository.initialize();
-                sparqlConnection = sparqlRepository.getConnection();
-
-            }
-            catch (Exception e) {
-                e.printStackTrace();
-            }
-            TupleQuery tupleQuery = null;
-            try {
-                tupleQuery = sparqlConnection.prepareTupleQuery(QueryLanguage.SPARQL, query);
-            }
-            catch (MalformedQueryException e) {
-                e.printStackTrace();
-            }
-            catch (RepositoryException e) {
-                e.printStackTrace();
-            }
             Map<String, TupleResult> tupleResults = new HashMap<>();
-            try {
-                TupleQueryResult tupleQueryResult = tupleQuery.evaluate();
-                while (tupleQueryResult.hasNext()) {
-                    BindingSet bindingSet = tupleQueryResult.next();
-                    String lang = bindingSet.getValue("lang").stringValue();
-                    String labelForLanguage = bindingSet.getValue("dataLabel") == null ? null : bindingSet.getValue("dataLabel").stringValue();
-                    String label = labelForLanguage;
-                    String pic = bindingSet.getValue("pic") == null ? null : bindingSet.getValue("pic").stringValue();
-                    String sitelink = bindingSet.getValue("sitelink") == null ? null : bindingSet.getValue("sitelink").stringValue();
-                    tupleResults.put(lang, new TupleResult(
-                                    lang,
-                                    label,
-                                    pic,
-                                    sitelink
-                    ));
-                }
-            }
-            catch (QueryEvaluationException e) {
-                e.printStackTrace();
+            for (Map<String, String> bindingSet : SparqlEndpoint.WIKIDATA.select(query)) {
+                String lang = bindingSet.get("lang");
+                tupleResults.put(lang, new TupleResult(
+                                lang,
+                                bindingSet.get("dataLabel"),
+                                bindingSet.get("pic"),
+                                bindingSet.get("sitelink")
+                ));
             }
 
             //see if we got it in the proper language
@@ -192,10 +487,9 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
                 }
                 else if(tupleResults.keySet().contains(Locale.ENGLISH.toLanguageTag())){
                     //fall back to english
-                    choosenTupleResult = tupleResults.get(language.toLanguageTag());
+                    choosenTupleResult = tupleResults.get(Locale.ENGLISH.toLanguageTag());
                 }else{
                     //pic the first
-                    String key = null;
                     Iterator<String> it = tupleResults.keySet().iterator();
                     if(it.hasNext()){
                         choosenTupleResult = tupleResults.get(it.next());
@@ -211,7 +505,7 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
                 }
             }
             catch (URISyntaxException e) {
-                e.printStackTrace();
+                Logger.error("Error while linking Wikidata item " + wikibase_item + " to its sitelink " + choosenTupleResult.getSitelink(), e);
             }
 
             retVal.setId(wikibase_item);
@@ -239,101 +533,18 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
             return retVal;
         }
     }
-    @Override
-    public RdfProperty[] getLabelCandidates(RdfClass rdfClass)
-    {
-        if (this.cachedLabelProps == null) {
-            this.cachedLabelProps = new RdfProperty[] { SKOS.prefLabel, SKOS.altLabel };
-        }
 
-        return this.cachedLabelProps;
-    }
-    @Override
-    public URI getExternalResourceId(URI resourceId, Locale locale)
-    {
-        return AbstractWikidata.toWikidataUri(new RdfTools.RdfResourceUri(resourceId).getResourceId());
-    }
-    @Override
-    public Model getExternalRdfModel(RdfClass rdfClass, URI resourceId, Locale language) throws IOException
+    /**
+     * Resolves the Wikipedia title to its Wikidata item id (eg. Q12345), or returns null if it doesn't resolve.
+     */
+    private String getWikibase_item(String title, Locale language) throws IOException
     {
-        Model retVal = null;
-        if (resourceId != null && !resourceId.toString().isEmpty()) {
-
-            //use a cached result if it's there
-            WikidataQueryEndpoint.CachedExternalModel cacheKey = new WikidataQueryEndpoint.CachedExternalModel(rdfClass, resourceId, language);
-            Model cachedResult = this.getCachedEntry(cacheKey);
-            if (cachedResult != null) {
-                retVal = cachedResult;
-            }
-            else {
-                Client httpClient = null;
-
-                try {
-                    httpClient = ClientBuilder.newClient(new ClientConfig());
-                    URI rdfUri = this.getExternalResourceId(resourceId, language);
-                    //the wikidata endpoint is actually https.
-                    String[] segments = rdfUri.getPath().split("/");
-                    String idStr = segments[segments.length - 1];
-                    //we'll query the https directly so we don't get redirected
-                    rdfUri = new URI("https://www.wikidata.org/entity/" + idStr);
-                    //this seems to be the only RDF format that's accepted
-                    Response response = httpClient.target(rdfUri).request("application/rdf+xml").get();
-                    if (response.getStatus() >= 300 && response.getStatus() < 400) {
-                        //catch redirect
-                        URI redirectUri = new URI(response.getHeaders().get("Location").get(0).toString());
-                        response = httpClient.target(redirectUri).request("application/rdf+xml").get();
-                    }
-                    if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-
-                        Model remoteModel = new SesameImporter(Format.RDF_XML).importDocument(rdfUri, new ByteArrayInputStream(response.readEntity(String.class).getBytes()));
-                        //if we get here, it means we have a model, empty or not
-                        retVal = new LinkedHashModel();
-
-                        for (Statement statement : remoteModel) {
-                            //only adds the properties that hava to do with the actual entity.
-                            //Note that the predicate uses http, while the actual URL uses https.
-                            if (statement.getSubject().stringValue().equals("http://www.wikidata.org/entity/" + new RdfTools.RdfResourceUri(resourceId).getResourceId())) {
-                                retVal.add(statement);
-                            }
-                        }
-                    }
-                    else {
-                        throw new IOException("Wikidata RDF endpoint returned unexpected http code (" + response.getStatus() + ") when fetching dependency model for " + resourceId + "; " +
-                                              response.getStatusInfo().getReasonPhrase());
-                    }
-
-                    this.putCachedEntry(cacheKey, retVal);
-                }
-                catch (URISyntaxException e) {
-                    e.printStackTrace();
-                }
-                finally {
-                    if (httpClient != null) {
-                        httpClient.close();
-                    }
-                }
-            }
+        //we recently learned this title doesn't resolve
+        CachedTitle cacheKey = new CachedTitle(title, language);
+        if (this.isCachedMissing(cacheKey)) {
+            return null;
         }
 
-        return retVal;
-    }
-    @Override
-    public RdfClass getExternalClasses(RdfClass rdfClass)
-    {
-        return WB.Item;
-    }
-
-    private String getBaseString(Locale locale)
-    {
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.WIKIPEDIPrefix);
-        sb.append(locale.getLanguage());
-        sb.append(this.WIKIPEDIA_API_URI);
-        return sb.toString();
-    }
-
-    private String getWikibase_item(String title, Locale language)
-    {
         String wikidataApiString = "https://www.wikidata.org/w/api.php?";
         String action = "action";
         String wbgetentities = "wbgetentities";
@@ -341,10 +552,6 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
         String wikiString = language.toString() + "wiki";
         String titles = "titles";
 
-        Client httpClient = null;
-        Response response = null;
-        ClientConfig config = new ClientConfig();
-        httpClient = ClientBuilder.newClient(config);
         UriBuilder builder = UriBuilder.fromUri(wikidataApiString)
                                        .queryParam(action, wbgetentities)
                                        .queryParam(sites, wikiString)
@@ -352,186 +559,502 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
                                        .queryParam(titles, title);
 
         URI target = builder.build();
-        response = httpClient.target(target).request(MediaType.APPLICATION_JSON).get();
-        String wikibase_item = null;
-        if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-            JsonNode jsonNode = null;
-            try {
-                jsonNode = Json.getObjectMapper().readTree(response.readEntity(String.class));
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+        String wikibase_item = HttpClientPool.instance().get(target, MediaType.APPLICATION_JSON, response -> {
+            String item = null;
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                JsonNode jsonNode = Json.getObjectMapper().readTree(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+                Iterator<Map.Entry<String, JsonNode>> entities = jsonNode.path("entities").fields();
+                if (entities.hasNext()) {
+                    Map.Entry<String, JsonNode> entity = entities.next();
+                    //titles that don't resolve are returned as a 'missing' entity with a negative id (eg. -1)
+                    if (!entity.getValue().has("missing") && !entity.getKey().startsWith("-")) {
+                        item = entity.getKey();
+                    }
+                }
             }
-            wikibase_item = jsonNode.get("entities").fields().next().getKey();
+            return item;
+        });
+        if (wikibase_item == null) {
+            Logger.error("no wikibase item found for: " + title);
+            this.putCachedMissing(cacheKey);
         }
-        Logger.error("no wikibase item found for: " + title);
         return wikibase_item;
     }
 
-    private synchronized Collection<AutocompleteSuggestion> doSearchQueryForLanguage(String query, RdfClass resourceType, Locale language) throws IOException
+    /**
+     * Note: this used to be synchronized, but it doesn't touch any shared state, so there's no need to serialize all searches of this node;
+     * concurrent identical searches are merged in search() instead.
+     * Returns null if Wikidata couldn't be reached.
+     * The result is complete if wbsearchentities returned less than we asked for (before filtering on the instances, since that doesn't affect completeness).
+     */
+    private CachedSuggestions doSearchQueryForLanguage(String query, RdfClass resourceType, Locale language) throws IOException
     {
         Set<AutocompleteSuggestion> retVal = new HashSet<>();
         Set<AutocompleteSuggestion> tempVal = new HashSet<>();
-        Client httpClient = null;
+        boolean complete = false;
 
-        Response response = null;
         try {
-            //basestring in english
-            String englishBaseString = this.getBaseString(Locale.ENGLISH);
-
-            //basestring for current language
-            String baseString = this.getBaseString(language);
-
-            ClientConfig config = new ClientConfig();
-            httpClient = ClientBuilder.newClient(config);
-
             UriBuilder builder = UriBuilder.fromUri("https://www.wikidata.org/w/api.php?")
                                            .queryParam(action, "wbsearchentities")
                                            .queryParam("format", "json")
                                            .queryParam("language", language)
                                            .queryParam("type", "item")
                                            .queryParam("continue", "0")
-                                           .queryParam("limit", "15")
+                                           .queryParam("limit", SEARCH_LIMIT)
                                            .queryParam(search, query);
             URI target = builder.build();
 
-            response = httpClient.target(target).request(MediaType.APPLICATION_JSON).get();
-            if (response.getStatus() == Response.Status.OK.getStatusCode()) {
-                //the request will return a jsonNode.
-                // Resource Titles and links are in seperate trees with the same order.
-                //response example in json : https://en.wikipedia.org/w/api.php?action=opensearch&search=tank&format=json
-                JsonNode jsonNode = Json.getObjectMapper().readTree(response.readEntity(String.class));
+            //the request will return a jsonNode.
+            // Resource Titles and links are in seperate trees with the same order.
+            //response example in json : https://en.wikipedia.org/w/api.php?action=opensearch&search=tank&format=json
+            //Note: we parse the response straight from the stream and only pick out the fields we need
+            List<WikidataSuggestion> suggestions = HttpClientPool.instance().get(target, MediaType.APPLICATION_JSON, response -> {
+                List<WikidataSuggestion> parsed = null;
+                if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                    try (JsonParser parser = Json.getObjectMapper().getFactory().createParser(response.getEntity().getContent())) {
+                        parsed = this.readSearchResults(parser, resourceType, language);
+                    }
+                }
+                return parsed;
+            });
+            if (suggestions != null) {
 
+                complete = suggestions.size() < SEARCH_LIMIT;
                 Map<String, AutocompleteSuggestion> suggestionMap = new HashMap<>();
-                for (JsonNode iteratingNode : jsonNode.get("search")) {
-                    String label = iteratingNode.get("label") == null ? "" : iteratingNode.get("label").textValue();
-                    String description = iteratingNode.get("description") == null ? "" : iteratingNode.get("description").textValue();
-                    String id = iteratingNode.get("id") == null ? "" : iteratingNode.get("id").textValue();
-                    WikidataSuggestion autocompleteSuggestion = new WikidataSuggestion();
-                    autocompleteSuggestion.setLabel(label);
-                    autocompleteSuggestion.setSubtitle(description);
-                    autocompleteSuggestion.setUri(RdfTools.createRelativeResourceId(RdfFactory.getClassForResourceType(resourceType.getCurieName())
-                                    , id).toString());
-                    autocompleteSuggestion.setLanguage(language.getLanguage());
-                    autocompleteSuggestion.setWikidatatId(id);
+                for (WikidataSuggestion autocompleteSuggestion : suggestions) {
                     tempVal.add(autocompleteSuggestion);
-                    suggestionMap.put(id, autocompleteSuggestion);
+                    suggestionMap.put(autocompleteSuggestion.getWikidatatId(), autocompleteSuggestion);
                 }
                 if (this.wikidataInstancesOff != null) {
+                    //the popular items show up for a lot of prefixes, so we only go remote for the ones we don't know the classes of yet;
+                    //subclasses of the classes count too (eg. a 'big city' is a 'city')
+                    Map<String, Boolean> memberships = this.getInstanceMemberships(suggestionMap.keySet());
+                    if (memberships != null) {
+                        retVal = new HashSet<>();
+                        for (Map.Entry<String, AutocompleteSuggestion> entry : suggestionMap.entrySet()) {
+                            if (memberships.get(entry.getKey())) {
+                                retVal.add(entry.getValue());
+                            }
+                        }
+                    }
+                    else {
+                        retVal = null;
+                    }
+                }
+                else {
+                    retVal = tempVal;
+                }
+            }
+
+        }
+        catch (CircuitOpenException e) {
+            //no need to flood the logs; the circuit breaker already logged why it opened
+            Logger.debug("Skipping Wikidata search for " + query + "; " + e.getMessage());
+            retVal = null;
+        }
+        catch (UnknownHostException uhe) {
+            Logger.error("UnknownHostException thrown for " + query + ". No internet connection?");
+            retVal = null;
+        }
+        catch (SocketException | InterruptedIOException exception) {
+            Logger.error(exception.getClass().getSimpleName() + " thrown for " + query + ". No internet connection?");
+            retVal = null;
+        }
+
+        return retVal == null ? null : new CachedSuggestions(retVal, complete);
+    }
+
+    /**
+     * Returns, for every item id, whether it's an instance of (one of) the wikidataInstancesOff classes or of one of their subclasses (at any depth),
+     * or null if we couldn't ask Wikidata. The subclasses are looked up in the local class hierarchy, so we only need the direct classes (P31) of the items.
+     * Note that while the hierarchy of a class is still being fetched, only the items that are a direct instance of it count as members.
+     */
+    private Map<String, Boolean> getInstanceMemberships(Collection<String> itemIds)
+    {
+        Map<String, Boolean> retVal = null;
+
+        Map<String, int[]> itemClasses = this.getInstanceClasses(itemIds);
+        if (itemClasses != null) {
+            List<CompressedBitmap> closures = new ArrayList<>();
+            for (String wikiClass : this.wikidataInstancesOff) {
+                int classId = WikidataClassHierarchy.toNumericId(wikiClass);
+                if (classId >= 0) {
+                    closures.add(WikidataClassHierarchy.instance().getClosure(classId));
+                }
+            }
+
+            retVal = new HashMap<>();
+            for (Map.Entry<String, int[]> entry : itemClasses.entrySet()) {
+                boolean member = false;
+                for (int i = 0; !member && i < closures.size(); i++) {
+                    member = closures.get(i).containsAny(entry.getValue());
+                }
+                retVal.put(entry.getKey(), member);
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Returns the (numeric ids of the) direct classes (P31) of every item, or null if we couldn't ask Wikidata.
+     * The classes of an item hardly ever change, so they're cached for a long time and we only ask about the items we don't know yet,
+     * all of them in one VALUES query.
+     */
+    private Map<String, int[]> getInstanceClasses(Collection<String> itemIds)
+    {
+        Map<String, int[]> retVal = new HashMap<>();
+
+        Set<String> unknownIds = new LinkedHashSet<>();
+        for (String itemId : itemIds) {
+            //Note: the region only holds these, so the item id is all the key we need
+            int[] cachedClasses = (int[]) WIKIDATA_CACHED_CLASSES.getCache().get(itemId);
+            if (cachedClasses != null) {
+                retVal.put(itemId, cachedClasses);
+            }
+            else {
+                unknownIds.add(itemId);
+            }
+        }
+
+        if (!unknownIds.isEmpty()) {
+            StringBuilder query = new StringBuilder("SELECT ?item ?class WHERE { VALUES ?item {");
+            for (String itemId : unknownIds) {
+                query.append(" wd:").append(itemId);
+            }
+            query.append(" } ?item wdt:P31 ?class }");
 
-                    //Start iterating over the entityIds. Add them to the  query.
-                    StringBuilder valuesBuilder = new StringBuilder("VALUES ?values {");
-                    for (String wikiClass : this.wikidataInstancesOff) {
-                        valuesBuilder.append(" wd:");
-                        valuesBuilder.append(wikiClass);
+            Map<String, Set<Integer>> classes = new HashMap<>();
+            try {
+                for (Map<String, String> bindingSet : SparqlEndpoint.WIKIDATA.select(query.toString())) {
+                    String wikidataItemId = bindingSet.get("item");
+                    int classId = WikidataClassHierarchy.toNumericId(bindingSet.get("class"));
+                    if (wikidataItemId != null && classId >= 0) {
+                        classes.computeIfAbsent(wikidataItemId.substring(wikidataItemId.lastIndexOf('/') + 1), k -> new HashSet<>()).add(classId);
                     }
-                    valuesBuilder.append("} ");
-                    String values = valuesBuilder.toString();
-                    Iterator<String> entityIdIterator = suggestionMap.keySet().iterator();
-                    StringBuilder totalSelectQuery = null;
-                    while (entityIdIterator.hasNext()) {
-                        //this is the current wikidataId.
-                        String currentIteratedId = entityIdIterator.next();
-                        if (totalSelectQuery == null) {
-                            totalSelectQuery = new StringBuilder();
-                            totalSelectQuery.append("SELECT ?item WHERE {");
-                            totalSelectQuery.append(values);
-                            totalSelectQuery.append(" {BIND (wd:");
-                            totalSelectQuery.append(currentIteratedId);
-                            totalSelectQuery.append(" as ?item) ?item wdt:P31 ?values}");
-                        }
-                        else {
-                            totalSelectQuery.append("UNION{ BIND (wd:" + currentIteratedId + " as ?item) ?item wdt:P31 ?values}");
+                }
+
+                //items without classes aren't in the result, but that's an answer too
+                for (String itemId : unknownIds) {
+                    int[] itemClasses = classes.getOrDefault(itemId, Collections.emptySet()).stream().mapToInt(Integer::intValue).toArray();
+                    WIKIDATA_CACHED_CLASSES.getCache().put(itemId, itemClasses);
+                    retVal.put(itemId, itemClasses);
+                }
+            }
+            catch (CircuitOpenException e) {
+                //no need to flood the logs; the circuit breaker already logged why it opened
+                Logger.debug("Skipping the classes of Wikidata items " + unknownIds + "; " + e.getMessage());
+                retVal = null;
+            }
+            catch (IOException e) {
+                Logger.error("Error while looking up the classes of Wikidata items " + unknownIds, e);
+                retVal = null;
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Reads the 'search' array of a wbsearchentities response into suggestions, skipping everything we don't need.
+     */
+    private List<WikidataSuggestion> readSearchResults(JsonParser parser, RdfClass resourceType, Locale language) throws IOException
+    {
+        List<WikidataSuggestion> retVal = new ArrayList<>();
+
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (fieldName.equals("search") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String label = "";
+                        String description = "";
+                        String id = "";
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String resultField = parser.getCurrentName();
+                            parser.nextToken();
+                            switch (resultField) {
+                                case "label":
+                                    label = parser.getValueAsString();
+                                    break;
+                                case "description":
+                                    description = parser.getValueAsString();
+                                    break;
+                                case "id":
+                                    id = parser.getValueAsString();
+                                    break;
+                                default:
+                                    parser.skipChildren();
+                                    break;
+                            }
                         }
 
+                        WikidataSuggestion autocompleteSuggestion = new WikidataSuggestion();
+                        autocompleteSuggestion.setLabel(label);
+                        autocompleteSuggestion.setSubtitle(description);
+                        autocompleteSuggestion.setUri(RdfTools.createRelativeResourceId(RdfFactory.getClassForResourceType(resourceType.getCurieName())
+                                        , id).toString());
+                        autocompleteSuggestion.setLanguage(language.getLanguage());
+                        autocompleteSuggestion.setWikidatatId(id);
+                        retVal.add(autocompleteSuggestion);
                     }
-                    //add a closing bracket
-                    totalSelectQuery.append("}");
-                    RepositoryConnection sparqlConnection = null;
-                    try {
-                        SPARQLRepository sparqlRepository = new SPARQLRepository("https://query.wikidata.org/sparql");
-                        sparqlRepository.initialize();
-                        sparqlConnection = sparqlRepository.getConnection();
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
 
+        return retVal;
+    }
+    /**
+     * Reads the 'entities' object of a wbgetentities response into resources, mapped by the id we asked for. Missing entities are left out.
+     */
+    private Map<String, WikidataResourceInfo> readEntities(JsonParser parser, RdfClass resourceType, Locale language) throws IOException
+    {
+        Map<String, WikidataResourceInfo> retVal = new HashMap<>();
+
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (fieldName.equals("entities") && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        this.readEntity(parser, resourceType, language, retVal);
                     }
-                    catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    TupleQuery tupleQuery = null;
-                    try {
-                        tupleQuery = sparqlConnection.prepareTupleQuery(QueryLanguage.SPARQL, totalSelectQuery.toString());
-                    }
-                    catch (MalformedQueryException e) {
-                        e.printStackTrace();
-                    }
-                    catch (RepositoryException e) {
-                        e.printStackTrace();
+                }
+                //this means the entire call was rejected, so we know nothing about the entities
+                else if (fieldName.equals("error")) {
+                    JsonNode error = parser.readValueAsTree();
+                    throw new IOException("Wikidata API returned an error while fetching resources; " + error.path("info").asText());
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return retVal;
+    }
+    /**
+     * Reads a single entity of a wbgetentities response, the same way fetchResource() builds it from its SPARQL result.
+     */
+    private void readEntity(JsonParser parser, RdfClass resourceType, Locale language, Map<String, WikidataResourceInfo> entities) throws IOException
+    {
+        String id = null;
+        boolean missing = false;
+        JsonNode labels = MissingNode.getInstance();
+        JsonNode sitelinks = MissingNode.getInstance();
+        String image = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            switch (fieldName) {
+                case "id":
+                    //the id we asked for wins from the one it redirects to
+                    if (id == null) {
+                        id = parser.getValueAsString();
                     }
-                    String label = null;
-                    retVal = new HashSet<>();
-
-                    try {
-                        TupleQueryResult tupleQueryResult = tupleQuery.evaluate();
-                        while (tupleQueryResult.hasNext()) {
-                            //?item is the wikidataId, it should be the only thing we find
-                            BindingSet bindingSet = tupleQueryResult.next();
-                            String wikidataItemId = bindingSet.getValue("item").stringValue();
-                            String qId = wikidataItemId.substring(wikidataItemId.lastIndexOf('/') + 1);
-                            retVal.add(suggestionMap.get(qId));
+                    break;
+                case "redirects":
+                    id = parser.<JsonNode>readValueAsTree().path("from").asText();
+                    break;
+                case "missing":
+                    missing = true;
+                    parser.skipChildren();
+                    break;
+                case "labels":
+                    labels = parser.readValueAsTree();
+                    break;
+                case "sitelinks":
+                    sitelinks = parser.readValueAsTree();
+                    break;
+                case "claims":
+                    image = this.readImage(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        if (id != null && !missing) {
+            String lang = language.getLanguage();
+            String englishLang = Locale.ENGLISH.getLanguage();
+
+            WikidataResourceInfo resourceInfo = new WikidataResourceInfo();
+            resourceInfo.setId(id);
+
+            //try linking to wikipedia (in the proper language, falling back to english). If not exists, link to wikidata
+            JsonNode sitelink = sitelinks.has(lang + "wiki") ? sitelinks.path(lang + "wiki") : sitelinks.path(englishLang + "wiki");
+            if (sitelink.hasNonNull("url")) {
+                try {
+                    resourceInfo.setLink(new URI(sitelink.path("url").asText()));
+                }
+                catch (URISyntaxException e) {
+                    Logger.error("URISyntaxException for " + sitelink.path("url").asText());
+                }
+            }
+
+            JsonNode label = labels.has(lang) ? labels.path(lang) : labels.path(englishLang);
+            resourceInfo.setName(label.hasNonNull("value") ? label.path("value").asText() : id);
+
+            if (image != null) {
+                try {
+                    resourceInfo.setImage(COMMONS_FILE_PATH + URLEncoder.encode(image, StandardCharsets.UTF_8.name()).replace("+", "%20"));
+                }
+                catch (URISyntaxException e) {
+                    Logger.error("URISyntaxException for " + image);
+                }
+            }
+
+            resourceInfo.setLanguage(language);
+            resourceInfo.setResourceType(resourceType.getCurieName());
+            entities.put(id, resourceInfo);
+        }
+    }
+    /**
+     * Reads the 'claims' object of an entity and returns the file name of its image (the best ranked one, like wdt:P18 in SPARQL), or null if it has none.
+     */
+    private String readImage(JsonParser parser) throws IOException
+    {
+        String preferred = null;
+        String normal = null;
+
+        //note that an entity without claims has an empty array instead of an object
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String property = parser.getCurrentName();
+                parser.nextToken();
+                if (property.equals(IMAGE_PROPERTY)) {
+                    JsonNode statements = parser.readValueAsTree();
+                    for (JsonNode statement : statements) {
+                        JsonNode value = statement.path("mainsnak").path("datavalue").path("value");
+                        if (value.isTextual()) {
+                            String rank = statement.path("rank").asText();
+                            if (preferred == null && rank.equals("preferred")) {
+                                preferred = value.asText();
+                            }
+                            else if (normal == null && rank.equals("normal")) {
+                                normal = value.asText();
+                            }
                         }
                     }
-                    catch (QueryEvaluationException e) {
-                        e.printStackTrace();
-                    }
                 }
                 else {
-                    retVal = tempVal;
+                    parser.skipChildren();
                 }
             }
+        }
+        else {
+            parser.skipChildren();
+        }
 
+        return preferred != null ? preferred : normal;
+    }
+    /**
+     * Wikidata searches are case insensitive and don't care about superfluous whitespace,
+     * so we normalize those away to maximize the number of identical queries we can merge.
+     */
+    private String normalizeQuery(String query)
+    {
+        return query == null ? null : query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+    private CachedSuggestions getCachedEntry(WikidataQueryEndpoint.CachedSearch query)
+    {
+        CachedSuggestions retVal = (CachedSuggestions) WIKIDATA_CACHED_SEARCHES.getCache().get(query);
+
+        if (retVal == null) {
+            retVal = (CachedSuggestions) NEGATIVE_RESULTS.getCache().get(query);
         }
-        catch (UnknownHostException uhe) {
-            Logger.error("UnknownHostException thrown for " + query + ". No internet connection?");
+
+        return retVal;
+    }
+    /**
+     * Empty results go to the negative cache, so they expire sooner and don't push out the real results
+     */
+    private void putCachedEntry(WikidataQueryEndpoint.CachedSearch key, CachedSuggestions results)
+    {
+        if (results.getSuggestions().isEmpty()) {
+            NEGATIVE_RESULTS.getCache().put(key, results);
         }
-        catch (ProcessingException exception) {
-            Logger.error("ProcessingException thrown for " + query + ". No internet connection?");
+        else {
+            WIKIDATA_CACHED_SEARCHES.getCache().put(key, results);
         }
+    }
+    /**
+     * Looks up the cached answer of the search, or null if we need to go remote.
+     * wbsearchentities matches on prefixes, so we walk back the shorter prefixes of the (normalized) query
+     * and if one of them has a complete cached result, we filter it locally (and cache that as well, since it's complete too).
+     */
+    private Collection<AutocompleteSuggestion> getCachedAnswer(WikidataQueryEndpoint.CachedSearch key)
+    {
+        Collection<AutocompleteSuggestion> retVal = null;
 
-        finally {
-            if (response != null) {
-                response.close();
-            }
-            if (httpClient != null) {
-                httpClient.close();
+        CachedSuggestions cachedResult = this.getCachedEntry(key);
+        if (cachedResult != null) {
+            retVal = cachedResult.getSuggestions();
+        }
+        else if (key.query != null) {
+            for (int i = key.query.length() - 1; retVal == null && i > 0; i--) {
+                String prefix = key.query.substring(0, i);
+                CachedSuggestions prefixResult = this.getCachedEntry(new CachedSearch(key.wikidataType, key.resourceType, prefix, key.language, key.instancesOff));
+                if (prefixResult != null) {
+                    //note that we never limited the number of search results for Wikidata
+                    retVal = prefixResult.deriveForPrefix(prefix, key.query, Integer.MAX_VALUE);
+                    if (retVal != null) {
+                        this.putCachedEntry(key, new CachedSuggestions(retVal, true));
+                    }
+                }
             }
         }
+
         return retVal;
     }
-
-    private synchronized Collection<AutocompleteSuggestion> getCachedEntry(WikidataQueryEndpoint.CachedSearch query)
+    /**
+     * Nobody should wait for a resource we already have, so old entries are refreshed in the background
+     */
+    private WikidataResourceInfo getCachedEntry(WikidataQueryEndpoint.CachedResource query)
     {
-        return (Collection<AutocompleteSuggestion>) this.getWikidataCache().get(query);
+        return CACHED_RESOURCES.get(query, () -> this.fetchResourceAsync(query));
     }
-    private synchronized void putCachedEntry(WikidataQueryEndpoint.CachedSearch key, Collection<AutocompleteSuggestion> results)
+    private void putCachedEntry(WikidataQueryEndpoint.CachedResource key, WikidataResourceInfo resourceInfo)
     {
-        this.getWikidataCache().put(key, results);
+        CACHED_RESOURCES.put(key, resourceInfo);
     }
-    private synchronized Model getCachedEntry(WikidataQueryEndpoint.CachedExternalModel externalModel)
+    /**
+     * The models are cached in two tiers: in memory and in the persistent store (that survives restarts).
+     * Like the resources, old models in memory are refreshed in the background.
+     */
+    private Model getCachedEntry(WikidataQueryEndpoint.CachedExternalModel externalModel)
     {
-        return (Model) this.getWikidataCache().get(externalModel);
+        Model retVal = CACHED_MODELS.get(externalModel, () -> this.fetchExternalRdfModelAsync(externalModel));
+
+        if (retVal == null) {
+            URI externalId = this.getExternalResourceId(externalModel.resourceId, externalModel.language);
+            retVal = PersistentModelStore.instance().get(externalId.toString(), Settings.instance().getModelStoreMaxAge() * 1000);
+            if (retVal != null) {
+                CACHED_MODELS.put(externalModel, retVal);
+            }
+        }
+
+        return retVal;
     }
-    private synchronized void putCachedEntry(WikidataQueryEndpoint.CachedExternalModel key, Model model)
+    private void putCachedEntry(WikidataQueryEndpoint.CachedExternalModel key, Model model)
     {
-        this.getWikidataCache().put(key, model);
+        CACHED_MODELS.put(key, model);
+        PersistentModelStore.instance().put(this.getExternalResourceId(key.resourceId, key.language).toString(), model);
     }
-    private synchronized Cache getWikidataCache()
+    private boolean isCachedMissing(Object key)
     {
-        if (!R.cacheManager().cacheExists(WIKIDATA_CACHED_RESULTS.name())) {
-            //we instance a cache where it's entries live for one day (both from creation time as from last accessed time),
-            //Overflows to disk and keep at most 10000 results
-            R.cacheManager().registerCache(new EhCacheAdaptor(WIKIDATA_CACHED_RESULTS.name(), 100, false, false, 24 * 60 * 60, 24 * 60 * 60));
-        }
-        return R.cacheManager().getCache(WIKIDATA_CACHED_RESULTS.name());
+        return NEGATIVE_RESULTS.getCache().get(key) != null;
+    }
+    private void putCachedMissing(Object key)
+    {
+        NEGATIVE_RESULTS.getCache().put(key, Boolean.TRUE);
     }
 
     /**
@@ -541,19 +1064,18 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
     {
         private AbstractWikidata.Type wikidataType;
         private RdfClass resourceType;
+        //Note: this should be the normalized query
         private String query;
-        private QueryType queryType;
         private Locale language;
-        private SearchOption[] options;
+        private String[] instancesOff;
 
-        public CachedSearch(AbstractWikidata.Type wikidataType, RdfClass resourceType, String query, QueryType queryType, Locale language, SearchOption[] options)
+        public CachedSearch(AbstractWikidata.Type wikidataType, RdfClass resourceType, String query, Locale language, String[] instancesOff)
         {
             this.wikidataType = wikidataType;
             this.resourceType = resourceType;
             this.query = query;
-            this.queryType = queryType;
             this.language = language;
-            this.options = options;
+            this.instancesOff = instancesOff;
         }
 
         @Override
@@ -577,14 +1099,10 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
             if (query != null ? !query.equals(that.query) : that.query != null) {
                 return false;
             }
-            if (queryType != that.queryType) {
-                return false;
-            }
             if (language != null ? !language.equals(that.language) : that.language != null) {
                 return false;
             }
-            // Probably incorrect - comparing Object[] arrays with Arrays.equals
-            return Arrays.equals(options, that.options);
+            return Arrays.equals(instancesOff, that.instancesOff);
 
         }
         @Override
@@ -593,9 +1111,8 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
             int result = wikidataType != null ? wikidataType.hashCode() : 0;
             result = 31 * result + (resourceType != null ? resourceType.hashCode() : 0);
             result = 31 * result + (query != null ? query.hashCode() : 0);
-            result = 31 * result + (queryType != null ? queryType.hashCode() : 0);
             result = 31 * result + (language != null ? language.hashCode() : 0);
-            result = 31 * result + Arrays.hashCode(options);
+            result = 31 * result + Arrays.hashCode(instancesOff);
             return result;
         }
     }
@@ -644,15 +1161,54 @@ public class WikidataQueryEndpoint implements com.beligum.blocks.endpoints.iface
         }
     }
 
-    private static class CachedExternalModel
+    private static class CachedTitle
     {
-        private RdfClass resourceType;
+        private String title;
+        private Locale language;
+
+        public CachedTitle(String title, Locale language)
+        {
+            this.title = title;
+            this.language = language;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WikidataQueryEndpoint.CachedTitle)) {
+                return false;
+            }
+
+            WikidataQueryEndpoint.CachedTitle that = (WikidataQueryEndpoint.CachedTitle) o;
+
+            if (title != null ? !title.equals(that.title) : that.title != null) {
+                return false;
+            }
+            return language != null ? language.equals(that.language) : that.language == null;
+
+        }
+        @Override
+        public int hashCode()
+        {
+            int result = title != null ? title.hashCode() : 0;
+            result = 31 * result + (language != null ? language.hashCode() : 0);
+            return result;
+        }
+    }
+
+    //Note: this one is serializable (and only holds the name of the resource type) because the models can overflow to disk
+    private static class CachedExternalModel implements Serializable
+    {
+        private URI resourceType;
         private URI resourceId;
         private Locale language;
 
         public CachedExternalModel(RdfClass resourceType, URI resourceId, Locale language)
         {
-            this.resourceType = resourceType;
+            this.resourceType = resourceType == null ? null : resourceType.getCurieName();
             this.resourceId = resourceId;
             this.language = language;
         }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that models survive a round-trip through the binary encoding and that corrupt input is refused (instead of decoded into garbage).
+ */
+public class BinaryRdfEncodingTest
+{
+    //-----CONSTANTS-----
+    private static final ValueFactory FACTORY = SimpleValueFactory.getInstance();
+
+    //-----VARIABLES-----
+
+    //-----PUBLIC METHODS-----
+    @Test
+    public void roundTripKeepsAllKindsOfTerms() throws IOException
+    {
+        Model model = createModel();
+
+        assertEquals(model, BinaryRdfEncoding.decode(ByteBuffer.wrap(BinaryRdfEncoding.encode(model))));
+    }
+    @Test
+    public void roundTripOfEmptyModel() throws IOException
+    {
+        Model model = new LinkedHashModel();
+
+        assertEquals(model, BinaryRdfEncoding.decode(ByteBuffer.wrap(BinaryRdfEncoding.encode(model))));
+    }
+    @Test
+    public void decodeStopsAtTheEndOfTheModel() throws IOException
+    {
+        Model first = createModel();
+        Model second = new LinkedHashModel();
+        second.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/other"), FACTORY.createIRI("http://example.com/name"),
+                                           FACTORY.createLiteral("Other")));
+
+        byte[] firstBytes = BinaryRdfEncoding.encode(first);
+        byte[] secondBytes = BinaryRdfEncoding.encode(second);
+        ByteBuffer buffer = ByteBuffer.allocate(firstBytes.length + secondBytes.length);
+        buffer.put(firstBytes).put(secondBytes).flip();
+
+        assertEquals(first, BinaryRdfEncoding.decode(buffer));
+        assertEquals(firstBytes.length, buffer.position());
+        assertEquals(second, BinaryRdfEncoding.decode(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+    @Test
+    public void truncatedInputIsRefused()
+    {
+        byte[] bytes = BinaryRdfEncoding.encode(createModel());
+
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                BinaryRdfEncoding.decode(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+                fail("Expected a model that's cut off after " + length + " bytes to be refused");
+            }
+            catch (IOException e) {
+                //expected
+            }
+        }
+    }
+    @Test
+    public void unknownTermKindIsRefused()
+    {
+        //no strings, one statement with a subject of an unknown kind
+        assertCorrupt(new byte[] { 0, 1, 9 });
+    }
+    @Test
+    public void literalSubjectIsRefused()
+    {
+        //one string ("a"), one statement: a typed literal subject, predicate "a" and an IRI object
+        assertCorrupt(new byte[] { 1, 1, 'a', 1, 3, 0, 0, 0, 1, 0 });
+    }
+    @Test
+    public void outOfRangeStringIndexIsRefused()
+    {
+        //one string ("a"), one statement with an IRI subject that points to the second string
+        assertCorrupt(new byte[] { 1, 1, 'a', 1, 1, 1, 0, 1, 0 });
+    }
+    @Test
+    public void malformedVarIntIsRefused()
+    {
+        //the continuation bit is set on every byte of the number of strings
+        assertCorrupt(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0 });
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private static Model createModel()
+    {
+        Model retVal = new LinkedHashModel();
+
+        //a name with non-ASCII characters and a long description, so the string lengths need more than one byte
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            description.append("A long description. ");
+        }
+
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/brussels"), FACTORY.createIRI("http://example.com/name"),
+                                           FACTORY.createLiteral("Bruxelles", "fr")));
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/brussels"), FACTORY.createIRI("http://example.com/name"),
+                                           FACTORY.createLiteral("Brüssel", "de")));
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/brussels"), FACTORY.createIRI("http://example.com/population"),
+                                           FACTORY.createLiteral("1208542", FACTORY.createIRI("http://www.w3.org/2001/XMLSchema#integer"))));
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/brussels"), FACTORY.createIRI("http://example.com/description"),
+                                           FACTORY.createLiteral(description.toString())));
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/brussels"), FACTORY.createIRI("http://example.com/location"),
+                                           FACTORY.createBNode("location1")));
+        retVal.add(FACTORY.createStatement(FACTORY.createBNode("location1"), FACTORY.createIRI("http://example.com/latitude"),
+                                           FACTORY.createLiteral("50.85045", FACTORY.createIRI("http://www.w3.org/2001/XMLSchema#decimal"))));
+
+        return retVal;
+    }
+    private static void assertCorrupt(byte[] bytes)
+    {
+        try {
+            BinaryRdfEncoding.decode(ByteBuffer.wrap(bytes));
+            fail("Expected the corrupt model to be refused");
+        }
+        catch (IOException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the membership of both kinds of chunks of the compressed bitmap: the sorted arrays (up to 4096 values) and the bitmaps (above that).
+ */
+public class CompressedBitmapTest
+{
+    //-----CONSTANTS-----
+    //see CompressedBitmap
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    //-----VARIABLES-----
+
+    //-----PUBLIC METHODS-----
+    @Test
+    public void sparseValues()
+    {
+        CompressedBitmap bitmap = CompressedBitmap.of(new int[] { 70000, 5, 1, 65535, 65536 });
+
+        assertEquals(5, bitmap.size());
+        assertTrue(bitmap.contains(1));
+        assertTrue(bitmap.contains(5));
+        assertTrue(bitmap.contains(65535));
+        assertTrue(bitmap.contains(65536));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(0));
+        assertFalse(bitmap.contains(2));
+        assertFalse(bitmap.contains(65536 + 5));
+        assertFalse(bitmap.contains(-1));
+        assertFalse(bitmap.contains(Integer.MAX_VALUE));
+    }
+    @Test
+    public void chunkAtTheArrayLimit()
+    {
+        assertEveryOtherValue(3 << 16, MAX_ARRAY_SIZE);
+    }
+    @Test
+    public void chunkAboveTheArrayLimit()
+    {
+        assertEveryOtherValue(3 << 16, MAX_ARRAY_SIZE + 1);
+    }
+    @Test
+    public void fullChunk()
+    {
+        int[] values = new int[1 << 16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (1 << 16) + i;
+        }
+        CompressedBitmap bitmap = CompressedBitmap.of(values);
+
+        assertEquals(values.length, bitmap.size());
+        assertFalse(bitmap.contains((1 << 16) - 1));
+        for (int value : values) {
+            assertTrue(bitmap.contains(value));
+        }
+        assertFalse(bitmap.contains(2 << 16));
+    }
+    @Test
+    public void duplicatesAreIgnored()
+    {
+        int[] values = new int[2 * (MAX_ARRAY_SIZE + 1)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i / 2;
+        }
+        CompressedBitmap bitmap = CompressedBitmap.of(values);
+
+        assertEquals(MAX_ARRAY_SIZE + 1, bitmap.size());
+        assertTrue(bitmap.contains(MAX_ARRAY_SIZE));
+        assertFalse(bitmap.contains(MAX_ARRAY_SIZE + 1));
+    }
+    @Test
+    public void containsAny()
+    {
+        CompressedBitmap bitmap = CompressedBitmap.of(new int[] { 10, 20, 30 });
+
+        assertTrue(bitmap.containsAny(new int[] { 1, 2, 30 }));
+        assertFalse(bitmap.containsAny(new int[] { 1, 2, 3 }));
+        assertFalse(bitmap.containsAny(new int[0]));
+    }
+    @Test
+    public void emptyBitmap()
+    {
+        assertEquals(0, CompressedBitmap.EMPTY.size());
+        assertFalse(CompressedBitmap.EMPTY.contains(0));
+        assertEquals(0, CompressedBitmap.of(new int[0]).size());
+        assertFalse(CompressedBitmap.of(new int[0]).contains(0));
+    }
+    @Test
+    public void negativeValuesAreRefused()
+    {
+        try {
+            CompressedBitmap.of(new int[] { 1, -1 });
+            fail("Expected a negative value to be refused");
+        }
+        catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * Checks a chunk that holds the given number of even values (counting up from the start of the chunk), in reverse order
+     */
+    private static void assertEveryOtherValue(int start, int count)
+    {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = start + 2 * (count - 1 - i);
+        }
+        CompressedBitmap bitmap = CompressedBitmap.of(values);
+
+        assertEquals(count, bitmap.size());
+        for (int i = 0; i < 2 * count; i++) {
+            assertEquals(i % 2 == 0, bitmap.contains(start + i));
+        }
+        assertFalse(bitmap.contains(start - 1));
+        assertFalse(bitmap.contains(start + 2 * count));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the stored models survive a reopen of the store, that a corrupt record ends the valid data and that overwritten and expired
+ * records are compacted away.
+ */
+public class PersistentModelStoreTest
+{
+    //-----CONSTANTS-----
+    private static final ValueFactory FACTORY = SimpleValueFactory.getInstance();
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    //see PersistentModelStore
+    private static final int HEADER_SIZE = 3 * 4;
+    private static final long MIN_MAPPED_SIZE = 16 * 1024 * 1024;
+
+    //-----VARIABLES-----
+    private File file;
+    private PersistentModelStore store;
+
+    //-----PUBLIC METHODS-----
+    @Before
+    public void setUp() throws IOException
+    {
+        this.file = File.createTempFile("persistent-model-store-test", ".bin");
+    }
+    @After
+    public void tearDown()
+    {
+        if (this.store != null) {
+            this.store.close();
+        }
+        this.file.delete();
+    }
+    @Test
+    public void modelsSurviveReopen()
+    {
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        this.store.put("first", createModel("first", 10));
+        this.store.put("second", createModel("second", 10));
+        this.store.put("first", createModel("first, again", 10));
+        this.store.close();
+
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        assertEquals(createModel("first, again", 10), this.store.get("first", MAX_AGE));
+        assertEquals(createModel("second", 10), this.store.get("second", MAX_AGE));
+        assertNull(this.store.get("third", MAX_AGE));
+    }
+    @Test
+    public void oldModelsAreNotReturned() throws InterruptedException
+    {
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        this.store.put("first", createModel("first", 10));
+        Thread.sleep(5);
+
+        assertNull(this.store.get("first", 1));
+        assertNotNull(this.store.get("first", MAX_AGE));
+    }
+    @Test
+    public void corruptRecordEndsTheValidData() throws IOException
+    {
+        Model first = createModel("first", 10);
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        this.store.put("first", first);
+        this.store.put("second", createModel("second", 10));
+        this.store.close();
+
+        //flip a byte in the body of the second record, so it fails its checksum
+        long secondOffset = HEADER_SIZE + 2 + "first".getBytes(StandardCharsets.UTF_8).length + 8 + BinaryRdfEncoding.encode(first).length;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw")) {
+            randomAccessFile.seek(secondOffset + HEADER_SIZE + 4);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(secondOffset + HEADER_SIZE + 4);
+            randomAccessFile.write(value ^ 0xFF);
+        }
+
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        assertEquals(first, this.store.get("first", MAX_AGE));
+        assertNull(this.store.get("second", MAX_AGE));
+
+        //the corrupt record is simply overwritten by the next one
+        this.store.put("third", createModel("third", 10));
+        this.store.close();
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        assertEquals(first, this.store.get("first", MAX_AGE));
+        assertEquals(createModel("third", 10), this.store.get("third", MAX_AGE));
+    }
+    @Test
+    public void overwrittenModelsAreCompacted()
+    {
+        //20 keys of about 10KB, overwritten 100 times, is 20MB of records; more than the initial mapped region
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        for (int round = 0; round < 100; round++) {
+            for (int key = 0; key < 20; key++) {
+                this.store.put("key" + key, createModel("round " + round, 10 * 1024));
+            }
+        }
+        assertEquals(MIN_MAPPED_SIZE, this.file.length());
+        this.store.close();
+
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        for (int key = 0; key < 20; key++) {
+            assertEquals(createModel("round 99", 10 * 1024), this.store.get("key" + key, MAX_AGE));
+        }
+    }
+    @Test
+    public void expiredModelsAreCompactedOnStartup() throws InterruptedException
+    {
+        this.store = new PersistentModelStore(this.file, 1);
+        this.store.put("first", createModel("first", 10));
+        this.store.close();
+        Thread.sleep(5);
+
+        this.store = new PersistentModelStore(this.file, 1);
+        this.store.close();
+
+        //even with a longer max age, the model is gone now
+        this.store = new PersistentModelStore(this.file, MAX_AGE);
+        assertNull(this.store.get("first", MAX_AGE));
+    }
+    @Test
+    public void storeWithoutFileStoresNothing()
+    {
+        this.store = new PersistentModelStore(null, MAX_AGE);
+        this.store.put("first", createModel("first", 10));
+
+        assertNull(this.store.get("first", MAX_AGE));
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    /**
+     * Creates a model with a name and a description of (about) the given size
+     */
+    private static Model createModel(String name, int size)
+    {
+        Model retVal = new LinkedHashModel();
+
+        StringBuilder description = new StringBuilder();
+        while (description.length() < size) {
+            description.append(name).append(' ');
+        }
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/resource"), FACTORY.createIRI("http://example.com/name"),
+                                           FACTORY.createLiteral(name)));
+        retVal.add(FACTORY.createStatement(FACTORY.createIRI("http://example.com/resource"), FACTORY.createIRI("http://example.com/description"),
+                                           FACTORY.createLiteral(description.toString())));
+
+        return retVal;
+    }
+}
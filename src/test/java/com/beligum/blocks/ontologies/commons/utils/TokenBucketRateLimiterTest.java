@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the refill and the queueing of the token bucket with a fake clock and a scheduler that follows it, so nothing here really waits.
+ */
+public class TokenBucketRateLimiterTest
+{
+    //-----CONSTANTS-----
+    /**
+     * A clock that only moves when we tell it to
+     */
+    private static class FakeClock extends Clock
+    {
+        private long millis;
+
+        @Override
+        public ZoneId getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+        @Override
+        public Clock withZone(ZoneId zone)
+        {
+            return this;
+        }
+        @Override
+        public Instant instant()
+        {
+            return Instant.ofEpochMilli(this.millis);
+        }
+    }
+
+    /**
+     * Runs the scheduled tasks when the fake clock passes their time
+     */
+    private static class FakeScheduler implements TokenBucketRateLimiter.Scheduler
+    {
+        private final FakeClock clock;
+        private final List<Long> times = new ArrayList<>();
+        private final List<FutureTask<?>> tasks = new ArrayList<>();
+
+        public FakeScheduler(FakeClock clock)
+        {
+            this.clock = clock;
+        }
+
+        @Override
+        public Future<?> schedule(Runnable task, long delayMillis)
+        {
+            FutureTask<?> retVal = new FutureTask<>(task, null);
+            this.times.add(this.clock.millis + delayMillis);
+            this.tasks.add(retVal);
+            return retVal;
+        }
+        @Override
+        public void shutdown()
+        {
+            this.tasks.clear();
+            this.times.clear();
+        }
+        public void advance(long millis)
+        {
+            long target = this.clock.millis + millis;
+            //run everything that's due, in order, moving the clock along (a task can schedule a new one)
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < this.times.size(); i++) {
+                    if (this.times.get(i) <= target && (next < 0 || this.times.get(i) < this.times.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                this.clock.millis = Math.max(this.clock.millis, this.times.remove(next));
+                this.tasks.remove(next).run();
+            }
+            this.clock.millis = target;
+        }
+    }
+
+    //-----VARIABLES-----
+    private FakeClock clock;
+    private FakeScheduler scheduler;
+    //a burst of 2 and one token per second
+    private TokenBucketRateLimiter rateLimiter;
+
+    //-----PUBLIC METHODS-----
+    @Before
+    public void setUp()
+    {
+        this.clock = new FakeClock();
+        this.scheduler = new FakeScheduler(this.clock);
+        this.rateLimiter = new TokenBucketRateLimiter("test", 2, 60, 1, TimeUnit.MINUTES, this.clock, this.scheduler);
+    }
+    @Test
+    public void burstIsGrantedRightAway()
+    {
+        assertTrue(this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 0).isDone());
+        assertTrue(this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 0).isDone());
+        assertEquals(0, this.rateLimiter.getAvailableTokens());
+    }
+    @Test
+    public void waitsForRefill()
+    {
+        this.emptyBucket();
+
+        CompletableFuture<Void> permit = this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 10000);
+        this.scheduler.advance(999);
+        assertFalse(permit.isDone());
+        this.scheduler.advance(1);
+        assertTrue(permit.isDone());
+        assertFalse(permit.isCompletedExceptionally());
+    }
+    @Test
+    public void refillIsCappedAtCapacity()
+    {
+        this.emptyBucket();
+
+        this.scheduler.advance(TimeUnit.HOURS.toMillis(1));
+        assertEquals(2, this.rateLimiter.getAvailableTokens());
+    }
+    @Test
+    public void interactiveCallsGoFirst()
+    {
+        this.emptyBucket();
+
+        CompletableFuture<Void> background = this.rateLimiter.acquire(RateLimiter.Priority.BACKGROUND, 10000);
+        CompletableFuture<Void> interactive = this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 10000);
+
+        this.scheduler.advance(1000);
+        assertTrue(interactive.isDone());
+        assertFalse(background.isDone());
+
+        this.scheduler.advance(1000);
+        assertTrue(background.isDone());
+    }
+    @Test
+    public void callsWithTheSamePriorityAreFirstInFirstOut()
+    {
+        this.emptyBucket();
+
+        CompletableFuture<Void> first = this.rateLimiter.acquire(RateLimiter.Priority.BACKGROUND, 10000);
+        CompletableFuture<Void> second = this.rateLimiter.acquire(RateLimiter.Priority.BACKGROUND, 10000);
+
+        this.scheduler.advance(1000);
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+    }
+    @Test
+    public void failsAfterMaxWait() throws InterruptedException
+    {
+        this.emptyBucket();
+
+        CompletableFuture<Void> permit = this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 500);
+        this.scheduler.advance(499);
+        assertFalse(permit.isDone());
+        this.scheduler.advance(1);
+        assertTrue(permit.isCompletedExceptionally());
+        try {
+            permit.get();
+            fail("Expected the permit to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+        }
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+    private void emptyBucket()
+    {
+        this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 0);
+        this.rateLimiter.acquire(RateLimiter.Priority.INTERACTIVE, 0);
+    }
+}
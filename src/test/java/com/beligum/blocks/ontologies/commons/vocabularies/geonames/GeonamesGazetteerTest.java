@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Republic of Reinvention bvba. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.beligum.blocks.ontologies.commons.vocabularies.geonames;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the edit distance the typo-tolerant search of the gazetteer ranks its matches with.
+ */
+public class GeonamesGazetteerTest
+{
+    //-----CONSTANTS-----
+
+    //-----VARIABLES-----
+
+    //-----PUBLIC METHODS-----
+    @Test
+    public void identicalNames()
+    {
+        assertEquals(0, GeonamesGazetteer.getEditDistance("antwerpen", "antwerpen", false));
+        assertEquals(0, GeonamesGazetteer.getEditDistance("", "", false));
+    }
+    @Test
+    public void singleTypos()
+    {
+        //replaced, inserted and deleted characters
+        assertEquals(1, GeonamesGazetteer.getEditDistance("antwarpen", "antwerpen", false));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("antwerrpen", "antwerpen", false));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("antwepen", "antwerpen", false));
+    }
+    @Test
+    public void swappedCharactersAreASingleTypo()
+    {
+        assertEquals(1, GeonamesGazetteer.getEditDistance("antwrepen", "antwerpen", false));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("gnet", "gent", false));
+        //at the start and at the end of the name
+        assertEquals(1, GeonamesGazetteer.getEditDistance("ngent", "ngetn", false));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("rbugge", "brugge", false));
+        assertEquals(2, GeonamesGazetteer.getEditDistance("rbgugge", "brugge", false));
+    }
+    @Test
+    public void swapsAreNotCountedTwice()
+    {
+        //two separate swaps are two typos, and a swapped pair isn't edited any further (so "abc" to "ca" takes three edits, not two)
+        assertEquals(2, GeonamesGazetteer.getEditDistance("nagtwerpen", "antwerpen", false));
+        assertEquals(3, GeonamesGazetteer.getEditDistance("abc", "ca", false));
+    }
+    @Test
+    public void distanceToEmptyName()
+    {
+        assertEquals(4, GeonamesGazetteer.getEditDistance("gent", "", false));
+        assertEquals(4, GeonamesGazetteer.getEditDistance("", "gent", false));
+    }
+    @Test
+    public void prefixDistance()
+    {
+        assertEquals(0, GeonamesGazetteer.getEditDistance("brus", "brussel", true));
+        assertEquals(3, GeonamesGazetteer.getEditDistance("brus", "brussel", false));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("burss", "brussel", true));
+        assertEquals(1, GeonamesGazetteer.getEditDistance("bruxs", "brussel", true));
+        assertEquals(0, GeonamesGazetteer.getEditDistance("", "brussel", true));
+    }
+
+    //-----PROTECTED METHODS-----
+
+    //-----PRIVATE METHODS-----
+}